@@ -2,28 +2,37 @@ package me.jbakita.pebbledatalogging;
 
 import android.app.Activity;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.content.Context;
 import android.content.DialogInterface;
+import android.content.IntentFilter;
 import android.media.MediaScannerConnection;
 import android.os.Bundle;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.TextView;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 
-import com.getpebble.android.kit.PebbleKit;
+import com.getpebble.android.kit.Constants;
 import com.getpebble.android.kit.PebbleKit.PebbleDataLogReceiver;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.text.DateFormat;
+import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
 import java.util.UUID;
 import java.util.ArrayList;
 
@@ -36,27 +45,33 @@ public class MainActivity extends Activity {
 
     // WATCHAPP_UUID *MUST* match the UUID used in the watchapp
     private static final UUID WATCHAPP_UUID = UUID.fromString("631b528e-c553-486c-b5ac-da08f63f01de");
-    // 'features' needs to be kept in sync with the watchapp menu items and ordering
-    private String[] features = {
-        "DOMINANT_WRIST",
-        "NON_DOMINANT_WRIST",
-        "WAIST",
-        "RIGHT_ANKLE",
-        "LEFT_ANKLE",
-        "UPPER_DOMINANT_ARM",
-        "UPPER_NON_DOMINANT_ARM",
-        "RIGHT_THIGH",
-        "LEFT_THIGH",
-        "CHEST",
-        "NECK"
-    };
+    // Loopback port readings are streamed on, reachable with "adb forward tcp:<port> tcp:<port>"
+    private static final int STREAM_PORT = StreamTap.DEFAULT_PORT;
+    // How many hours of readings continuous logging may keep, if a sensor's ring fits in the heap
+    private static final int[] RETENTION_HOURS = {1, 2, 4, 8};
+    // Sensor names indexed by data log tag, in the watchapp's menu order
+    private String[] features = PacketProcessor.FEATURES;
     private String[] activityStrings = {"Pushups", "Situps", "Jumping Jacks", "Staying Still", "Jogging", "Walking"};
 
     private PebbleDataLogReceiver dataloggingReceiver = null;
-    private final ArrayList<Sensor> sensors = new ArrayList<>();
+    // Runs the receiver, so a full ingestion queue holds back PebbleKit rather than the UI
+    private HandlerThread receiverThread;
+    private SensorRegistry sensors;
+    // The sensors currently shown, only modified on the UI thread
+    private final ArrayList<Sensor> displayedSensors = new ArrayList<>();
     private final ArrayList<MotionActivity> activities = new ArrayList<>();
     private ArrayAdapter<Sensor> adapter;
+    private IngestionPipeline pipeline;
+    private final ExportEngine exportEngine = new ExportEngine();
+    // Whether received items are being recorded so the session can be replayed
+    private boolean capturing = false;
     private Button startStopButton;
+    private PlotView plotView;
+    // Streams readings to local subscribers, or null when not streaming
+    private StreamTap tap = null;
+    // The open error dialog, and how many errors it has shown
+    private AlertDialog errorDialog = null;
+    private int errorCount = 0;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -70,15 +85,16 @@ public class MainActivity extends Activity {
         sensorsView.setEmptyView(progressBar);
 
         // Setup data adapter
-        adapter = new ArrayAdapter<Sensor>(this, android.R.layout.simple_list_item_2, android.R.id.text1, sensors) {
+        adapter = new ArrayAdapter<Sensor>(this, android.R.layout.simple_list_item_2, android.R.id.text1, displayedSensors) {
             @Override
             public View getView(int position, View convertView, ViewGroup parent) {
                 View view = super.getView(position, convertView, parent);
                 TextView text1 = (TextView) view.findViewById(android.R.id.text1);
                 TextView text2 = (TextView) view.findViewById(android.R.id.text2);
 
-                text1.setText(sensors.get(position).getTitle());
-                text2.setText(sensors.get(position).getInfo());
+                Sensor sensor = getItem(position);
+                text1.setText(sensor.getTitle() + " (" + sensor.getWatchId() + ")");
+                text2.setText(sensor.getInfo());
                 return view;
             }
         };
@@ -86,6 +102,15 @@ public class MainActivity extends Activity {
         // Add listview display adapter
         sensorsView.setAdapter(adapter);
 
+        // Plot whichever sensor is tapped
+        plotView = (PlotView)findViewById(R.id.plotView);
+        sensorsView.setOnItemClickListener(new AdapterView.OnItemClickListener() {
+            @Override
+            public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
+                plotView.setSensor(displayedSensors.get(position));
+            }
+        });
+
         // Setup start/stop button
         startStopButton = (Button)findViewById(R.id.startstopbutton);
         startStopButton.setOnClickListener(new startStopListener());
@@ -100,6 +125,26 @@ public class MainActivity extends Activity {
         saveAllButton.setOnClickListener(new saveAllListener());
         saveAllButton.setText("Save All");
 
+        // Start decoding received data in the background, journaling it in case we are killed
+        sensors = new SensorRegistry(features.length, new File(getFilesDir(), "journal"));
+        pipeline = new IngestionPipeline(features, sensors, new pipelineListener());
+        pipeline.start();
+        receiverThread = new HandlerThread("DataLogReceiver");
+        receiverThread.start();
+        // Bring back any session interrupted by the app closing
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (sensors.restore() > 0)
+                        refreshSensors();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    showError("Unable to restore the previous session. See ADB log for details.");
+                }
+            }
+        });
+
         // Display instructions
         displayDialog("Instructions",
                 "(1) Open the accelerometer app on the Pebble. \n" +
@@ -120,61 +165,22 @@ public class MainActivity extends Activity {
         dataloggingReceiver = new PebbleDataLogReceiver(WATCHAPP_UUID) {
             @Override
             public void receiveData(Context context, UUID logUuid, Long timestamp, Long tag, byte[] data) {
-                // Check this is a valid data log
-                if (tag.intValue() <= features.length) {
-                    // To distinguish between timestamps and readings,
-                    // the first bit is 0 for readings and 1 for timestamp
-                    /* To conserve data, but maximize accuracy, the first 'reading'
-                     * for each data log ID is the beginning timestamp.
-                     */
-                    if (sensors.indexOf(new Sensor(features[tag.intValue()], 0)) == -1) {
-                        // First reading must be a timestamp
-                        if (data[0] >> 31 != 0xffffffff) {
-                            displayDialog("Error", "It seems like a data buffer is out of sync. Data will be corrupted. Please flush buffers and try again.");
-                            return;
-                        }
-                        // Erase the tag bit with sign extension to prep for decoding
-                        data[0] = (byte)(data[0] << 25 >> 25);
-                        // Decode and save
-                        Sensor sensor = new Sensor(features[tag.intValue()], decodeBytes(data));
-                        sensors.add(sensor);
-                    }
-                    else if (data[0] >> 31 == 0xffffffff) {
-                        // We have a timestamp
-                        // Erase the tag bit with sign extension to prep for decoding
-                        data[0] = (byte)(data[0] << 25 >> 25);
-                        // Decode and add timestamp
-                        long syncTimestamp = decodeBytes(data);
-                        Sensor sensor = sensors.get(sensors.indexOf(new Sensor(features[tag.intValue()], 0)));
-                        sensor.addTimestamp(syncTimestamp);
-                        // Refresh UI
-                        adapter.notifyDataSetChanged();
-                    }
-                    else {
-                        // We have a reading
-                        // Erase the tag bit with sign extension to prep for decoding
-                        data[0] = (byte)(data[0] << 25 >> 25);
-                        // Decode and add reading
-                        int x = (int)decodeBytes(new byte[]{data[0], data[1]});
-                        int y = (int)decodeBytes(new byte[]{data[2], data[3]});
-                        int z = (int)decodeBytes(new byte[]{data[4], data[5]});
-                        Sensor sensor = sensors.get(sensors.indexOf(new Sensor(features[tag.intValue()], 0)));
-                        sensor.addReading(new AccelerometerReading(x, y, z));
-                    }
-                }
-                else {
-                    throw new IllegalArgumentException(tag.intValue() + " is not a valid data log ID.");
-                }
+                // Hand the item off to be decoded (and captured) on the ingestion thread
+                pipeline.receive(logUuid, tag.intValue(), timestamp, data);
             }
 
             @Override
             public void onFinishSession(Context context, UUID logUuid, Long timestamp, Long tag) {
                 super.onFinishSession(context, logUuid, timestamp, tag);
+                pipeline.finishSession(logUuid, tag.intValue());
             }
 
         };
-        // Register DataLogging Receiver
-        PebbleKit.registerDataLogReceiver(this, dataloggingReceiver);
+        // Register DataLogging Receiver, as PebbleKit.registerDataLogReceiver does but off the UI thread
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Constants.INTENT_DL_RECEIVE_DATA);
+        filter.addAction(Constants.INTENT_DL_FINISH_SESSION);
+        registerReceiver(dataloggingReceiver, filter, null, new Handler(receiverThread.getLooper()));
     }
 
     @Override
@@ -186,22 +192,235 @@ public class MainActivity extends Activity {
         }
     }
 
-    /* Decode an array of bytes to an integer
-     * @param bytes An array of bytes, big endian
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        receiverThread.quit();
+        // Decodes whatever is queued, then closes the sensors' journals and any capture
+        pipeline.stop();
+        exportEngine.shutdown();
+        if (tap != null)
+            tap.close();
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.menu_main, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        if (item.getItemId() == R.id.action_save_merged) {
+            chooseMergedInterpolation();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_continuous) {
+            if (sensors.getRetention() == 0)
+                chooseRetention();
+            else
+                confirmNewSession("Stop continuous logging", "Keep every reading from now on? This starts a new session, "
+                        + "discarding all received readings and activities. Save them first if you need them.", 0);
+            return true;
+        }
+        if (item.getItemId() == R.id.action_stream) {
+            if (tap == null)
+                chooseBackpressure();
+            else
+                stopStreaming();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_capture) {
+            if (capturing)
+                stopCapture();
+            else
+                startCapture();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_metrics) {
+            showMetrics();
+            return true;
+        }
+        if (item.getItemId() == R.id.action_clear) {
+            confirmNewSession("Clear session", "Discard all received readings and activities? Save them first if you need them.",
+                    sensors.getRetention());
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    /* Ask how long to keep readings for, offering only the times which fit
+     * in the heap, then start logging continuously
      */
-    private long decodeBytes(byte[] bytes) {
-        /* Note on Java and Bitwise Operators
-         *  Java bitwise operators only work on ints and longs,
-         *  Bytes will undergo promotion with sign extension first.
-         *  So, we have to undo the sign extension on the lower order
-         *  bits here.
-         */
-        long ans = bytes[0];
-        for (int i = 1; i < bytes.length; i++) {
-            ans <<= 8;
-            ans |= bytes[i] & 0x000000FF;
+    private void chooseRetention() {
+        final ArrayList<Integer> hours = new ArrayList<>();
+        for (int hour : RETENTION_HOURS)
+            if (sensors.getRetentionMemory(hour * 3600000L) <= sensors.getRetentionBudget())
+                hours.add(hour);
+        if (hours.isEmpty()) {
+            displayDialog("Error", "Not enough memory to log continuously.");
+            return;
         }
-        return ans;
+        String[] choices = new String[hours.size()];
+        for (int i = 0; i < choices.length; i++)
+            choices[i] = "Last " + hours.get(i) + (hours.get(i) == 1 ? " hour" : " hours");
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Keep readings from the")
+                .setItems(choices, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        confirmNewSession("Log continuously", "Older readings will be overwritten, except during activities, "
+                                + "which are kept until they are saved. Sensors keep readings for less time if memory "
+                                + "runs short. This starts a new session, discarding all received readings and "
+                                + "activities. Save them first if you need them.",
+                                hours.get(which) * 3600000L);
+                    }
+                });
+        builder.create().show();
+    }
+
+    /* Ask before discarding the session
+     * @param retention How long the new session keeps readings for (ms), or 0 to keep every reading
+     */
+    private void confirmNewSession(String title, String message, final long retention) {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(title)
+                .setMessage(message)
+                .setNegativeButton("Cancel", null)
+                .setPositiveButton("Okay", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        clearSession(retention);
+                    }
+                });
+        builder.create().show();
+    }
+
+    /* Ask what to do when a subscriber falls behind, then start streaming
+     */
+    private void chooseBackpressure() {
+        String[] policies = {"Drop readings", "Wait briefly, then disconnect"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("When a subscriber falls behind")
+                .setItems(policies, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        startStreaming(StreamTap.Backpressure.values()[which]);
+                    }
+                });
+        builder.create().show();
+    }
+
+    /* Publish readings on the loopback port as they are decoded
+     */
+    private void startStreaming(StreamTap.Backpressure backpressure) {
+        try {
+            tap = new StreamTap(STREAM_PORT, StreamTap.DEFAULT_QUEUE_CAPACITY, backpressure, StreamTap.DEFAULT_BLOCK_TIMEOUT);
+        } catch (IOException e) {
+            e.printStackTrace();
+            displayDialog("Error", "Unable to stream on port " + STREAM_PORT + ". " + e.getMessage());
+            return;
+        }
+        pipeline.setTap(tap);
+        displayDialog("Streaming", "New readings are streamed on port " + STREAM_PORT + ". To watch them from a computer, run "
+                + "\"adb forward tcp:" + STREAM_PORT + " tcp:" + STREAM_PORT + "\" and connect to that port. "
+                + "Choose Stream again to stop.");
+    }
+
+    private void stopStreaming() {
+        pipeline.setTap(null);
+        tap.close();
+        tap = null;
+        displayDialog("Streaming", "Stopped streaming.");
+    }
+
+    /* Record received items so they can be replayed with CaptureReplay
+     */
+    private void startCapture() {
+        File captureDir = getExternalFilesDir("captures");
+        if (captureDir == null) {
+            displayDialog("Error", "Unable to capture received data, as external storage is unavailable.");
+            return;
+        }
+        pipeline.startCapture(captureDir);
+        capturing = true;
+        displayDialog("Capture", "Received data is recorded to " + captureDir + ". Only the newest "
+                + IngestionPipeline.MAX_CAPTURES + " capture files are kept. Choose Capture again to stop.");
+    }
+
+    private void stopCapture() {
+        pipeline.stopCapture();
+        capturing = false;
+        displayDialog("Capture", "Stopped capturing.");
+    }
+
+    /* Collect the metrics of ingestion, export and every sensor
+     */
+    private List<Metrics> getMetrics() {
+        ArrayList<Metrics> metrics = new ArrayList<>();
+        metrics.add(pipeline.getMetrics());
+        metrics.add(exportEngine.getMetrics());
+        if (tap != null)
+            metrics.add(tap.getMetrics());
+        for (Sensor sensor : sensors.getSensors())
+            metrics.add(sensor.getMetrics());
+        return metrics;
+    }
+
+    /* Show the current metrics, with the option to save them as JSON
+     */
+    private void showMetrics() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Metrics")
+                .setMessage(Metrics.toText(getMetrics()))
+                .setNeutralButton("Okay", null)
+                .setPositiveButton("Save", new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        saveMetrics();
+                    }
+                });
+        builder.create().show();
+    }
+
+    /* Dump the current metrics to a JSON file
+     */
+    private void saveMetrics() {
+        File dir = getExternalFilesDir("metrics");
+        if (dir == null) {
+            displayDialog("Error", "External storage is not writable. Unable to save metrics.");
+            return;
+        }
+        File file = new File(dir, new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date()) + ".json");
+        try {
+            Metrics.writeJson(file, getMetrics());
+        } catch (IOException e) {
+            e.printStackTrace();
+            displayDialog("Error", "Unable to save metrics. See ADB log for details.");
+            return;
+        }
+        MediaScannerConnection.scanFile(this, new String[]{file.getAbsolutePath()}, null, null);
+        displayDialog("Saved", "Metrics saved to " + file.getAbsolutePath());
+    }
+
+    /* Discard all readings, including their journals, and activities
+     * @param retention How long the new session keeps readings for (ms), or 0 to keep every reading
+     */
+    private void clearSession(final long retention) {
+        for (MotionActivity activity : activities)
+            activity.release();
+        activities.clear();
+        startStopButton.setText("Start");
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sensors.clear();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    showError("Unable to delete the saved session. See ADB log for details.");
+                }
+                pipeline.clearSessions();
+                sensors.setRetention(retention);
+                refreshSensors();
+            }
+        });
     }
 
     private void getMotionActivity(final MotionActivity act) {
@@ -217,76 +436,134 @@ public class MainActivity extends Activity {
     }
 
     /**
-     * Save the contents of each sensor for each activity
+     * Save the contents of each sensor for each activity in the background
      * @param saveAll If true, ignore activities and dump unbounded sensor data
      */
     private void finishAndSaveReading(boolean saveAll) {
         Log.d("MainActivity", sensors.toString());
-        if (!isExternalStorageWritable()) {
-            displayDialog("Error", "External storage is not writable. Unable to save readings.");
+        File dir = getSaveDir();
+        if (dir == null)
             return;
+        // Create the files in the <activity name>-<sensor name>-<system time>.csv/.pdlb format
+        String date = DateFormat.getDateTimeInstance().format(new Date());
+        ArrayList<ExportEngine.Job> jobs = new ArrayList<>();
+        ArrayList<MotionActivity> finished = new ArrayList<>();
+        if (saveAll) {
+            for (Sensor sensor : sensors.getSensors()) {
+                if (sensor.getReadings().isEmpty())
+                    continue;
+                // The stop time is exclusive, so add 1 to include the last reading
+                jobs.add(new ExportEngine.Job("All Readings", sensor, sensor.getStartTime(), sensor.getStopTime() + 1, dir,
+                        "All Readings " + sensor.getTitle() + " " + sensor.getWatchId() + " " + date));
+            }
         }
-        try {
-            if (saveAll) {
-                for (Sensor sensor : sensors) {
-                    saveSensorReadings("All Readings", sensor, sensor.getStartTime(), sensor.getStopTime());
+        else {
+            for (MotionActivity activity : activities) {
+                if (!activity.isFinished())
+                    continue;
+                finished.add(activity);
+                for (Sensor sensor : sensors.getSensors()) {
+                    jobs.add(new ExportEngine.Job(activity.name, sensor, activity.getStartTime(), activity.getStopTime(), dir,
+                            activity.name + " " + sensor.getTitle() + " " + sensor.getWatchId() + " " + date));
                 }
             }
-            else {
-                for (MotionActivity activity : activities) {
-                    for (Sensor sensor : sensors) {
-                        saveSensorReadings(activity.name, sensor, activity.getStartTime(), activity.getStopTime());
+        }
+
+        submitJobs(jobs, jobs.size() * 3, finished);
+    }
+
+    /* Ask how to resample, then save every sensor of each activity to one
+     * merged file in the background
+     */
+    private void chooseMergedInterpolation() {
+        final MergedExport.Interpolation[] choices = MergedExport.Interpolation.values();
+        String[] names = {"Linear", "Nearest"};
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle("Resample readings by")
+                .setItems(names, new DialogInterface.OnClickListener() {
+                    public void onClick(DialogInterface dialog, int which) {
+                        saveMerged(choices[which]);
                     }
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-            displayDialog("Error", "Unable to completely save readings. See ADB log for details.");
+                });
+        builder.create().show();
+    }
+
+    /* Save every sensor on a common time grid, one file per finished
+     * activity, or one file for the whole session if none are finished
+     */
+    private void saveMerged(MergedExport.Interpolation interpolation) {
+        List<Sensor> merged = new ArrayList<>();
+        long startTime = Long.MAX_VALUE;
+        long stopTime = Long.MIN_VALUE;
+        for (Sensor sensor : sensors.getSensors()) {
+            if (sensor.getReadings().isEmpty())
+                continue;
+            merged.add(sensor);
+            startTime = Math.min(startTime, sensor.getStartTime());
+            stopTime = Math.max(stopTime, sensor.getStopTime() + 1);
+        }
+        if (merged.isEmpty()) {
+            displayDialog("Error", "No readings to save.");
+            return;
+        }
+        File dir = getSaveDir();
+        if (dir == null)
             return;
+        String date = DateFormat.getDateTimeInstance().format(new Date());
+        ArrayList<ExportEngine.Job> jobs = new ArrayList<>();
+        ArrayList<MotionActivity> finished = new ArrayList<>();
+        for (MotionActivity activity : activities) {
+            if (!activity.isFinished())
+                continue;
+            finished.add(activity);
+            jobs.add(new ExportEngine.Job(activity.name, merged, activity.getStartTime(), activity.getStopTime(), dir,
+                    activity.name + " merged " + date, MergedExport.DEFAULT_PERIOD, interpolation));
         }
-        displayDialog("Success", "Data successfully saved.");
+        if (jobs.isEmpty()) {
+            jobs.add(new ExportEngine.Job("All Readings", merged, startTime, stopTime, dir,
+                    "All Readings merged " + date, MergedExport.DEFAULT_PERIOD, interpolation));
+        }
+        submitJobs(jobs, jobs.size(), finished);
     }
 
-    private void saveSensorReadings(String name, Sensor sensor, long startTime, long stopTime) throws IOException {
-        ArrayList<AccelerometerReading> readings = sensor.getReadings();
-        long lastReading = 0;
-        long firstReading = 0;
-        // Get/create our application's save folder
+    /* Get or create our application's save folder
+     * @return null if it cannot be used, after telling the user why
+     */
+    private File getSaveDir() {
+        if (!isExternalStorageWritable()) {
+            displayDialog("Error", "External storage is not writable. Unable to save readings.");
+            return null;
+        }
         File dir = new File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DOWNLOADS).getAbsolutePath() + "/PebbleDataLogging/");
         // Make sure that the path is a directory if it exists, otherwise create it
         if (dir.exists() && !dir.isDirectory()) {
             displayDialog("Error", "Unable to save readings. Save path exists, but is not a directory");
-            return;
+            return null;
         }
         else if (!dir.exists() && !dir.mkdir()) {
             displayDialog("Error", "Unable to create directory in which to save readings. Maybe out of space?");
-            return;
+            return null;
         }
-        // Create the file in the <activity name>-<sensor name>-<system time>.csv format
-        File file = new File(dir, name + " " + sensor.getTitle() + " " + DateFormat.getDateTimeInstance().format(new Date()) + ".csv");
-        FileOutputStream outputStream = new FileOutputStream(file);
-
-        // Write the column headers
-        outputStream.write((AccelerometerReading.CSV_HEADER + "\n").getBytes());
-        // Write all the readings which correlate to our current activity
-        for (int k = 0; k < readings.size(); k++) {
-            if (readings.get(k).getTimestamp() >= startTime && readings.get(k).getTimestamp() < stopTime) {
-                if (firstReading == 0)
-                    firstReading = readings.get(k).getTimestamp();
-                outputStream.write((readings.get(k).toCSV() + "\n").getBytes());
-                lastReading = readings.get(k).getTimestamp();
+        return dir;
+    }
+
+    /* Run an export, showing its progress with the option to cancel
+     * @param saved Activities whose readings may be overwritten once saved
+     */
+    private void submitJobs(List<ExportEngine.Job> jobs, int files, List<MotionActivity> saved) {
+        final ProgressDialog progress = new ProgressDialog(this);
+        progress.setTitle("Saving");
+        progress.setMessage("Saving " + files + " files...");
+        progress.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        progress.setMax(1000);
+        progress.setCancelable(false);
+        final ExportEngine.Export export = exportEngine.submit(jobs, new exportListener(progress, saved));
+        progress.setButton(DialogInterface.BUTTON_NEGATIVE, "Cancel", new DialogInterface.OnClickListener() {
+            public void onClick(DialogInterface dialog, int which) {
+                export.cancel();
             }
-        }
-        // Do some validation on the dataset
-        if (lastReading + 1000 < stopTime) {
-            displayDialog("Warning!", "It seems like the dataset you just saved stopped sooner than expected. Make sure that you have all your sensor data.");
-        }
-        if (firstReading - 1000 > startTime) {
-            displayDialog("Warning!", "It seems like the dataset you just saved started later than expected. Make sure that you have all your sensor data.");
-        }
-        outputStream.close();
-        // Workaround for Android bug #38282
-        MediaScannerConnection.scanFile(this, new String[]{file.getAbsolutePath()}, null, null);
+        });
+        progress.show();
     }
 
     public boolean isExternalStorageWritable() {
@@ -303,98 +580,130 @@ public class MainActivity extends Activity {
         dialog.show();
         return dialog;
     }
-    private class Sensor {
-        private String name;
-        private long lastTimestamp = 0;
-        private ArrayList<AccelerometerReading> readings = new ArrayList<>();
-        private ArrayList<AccelerometerReading> readingBuffer = new ArrayList<>();
-        /* Initialize the sensor with a name. Setting the sample rate, and start time are required before adding readings.
-         * @param name The sensor name, used only for display
-         * @param timestamp ms since POSIX epoch at which this sensor started (GMT)
-         */
-        public Sensor(String name, long timestamp) {
-            this.name = name;
-            this.lastTimestamp = timestamp;
-        }
-        /* Add a sequential accelerometer reading. The time is automatically calculated.
-         * @param r the reading to add
-         * @throws UnsupportedOperationException if the sample rate and beginning timestamp
-         *                                       have yet to be set.
-         */
-        public void addReading(AccelerometerReading r) {
-            // Check that everything is setup
-            if (lastTimestamp == 0)
-                throw new UnsupportedOperationException("No starting timestamp set on sensor");
-            // Log the reading (we add timestamps later)
-            readingBuffer.add(r);
-        }
-        public String getTitle() {
-            return name;
-        }
-        public String getInfo() {
-            return readings.size() + " readings taken over " + getDuration() / 60000 + "m " + getDuration() % 60000 / 1000 + "s " + getDuration() % 60000 % 1000 + "ms";
+    /* Show the current sensors and their readings. Safe to call from any thread.
+     */
+    private void refreshSensors() {
+        runOnUiThread(refresh);
+    }
+    private final Runnable refresh = new Runnable() {
+        @Override
+        public void run() {
+            displayedSensors.clear();
+            displayedSensors.addAll(sensors.getSensors());
+            adapter.notifyDataSetChanged();
+            // Plot the first sensor until another is chosen
+            if (!displayedSensors.contains(plotView.getSensor()))
+                plotView.setSensor(displayedSensors.isEmpty() ? null : displayedSensors.get(0));
         }
-        /* Get the duration of time that this sensor has been monitoring in ms
-         */
-        public long getDuration() {
-            if (readings.isEmpty())
-                return 0;
-            return getStopTime() - getStartTime();
-        }
-        public void addTimestamp(long t) {
-            if (readingBuffer.isEmpty())
-                throw new UnsupportedOperationException("No readings in buffer. Cannot add timestamp.");
-            long dur = t - lastTimestamp;
-            double readingSize = dur / (double)(readingBuffer.size() + 1);
-            AccelerometerReading reading0 = readingBuffer.remove(0);
-            reading0.setTimestamp(lastTimestamp);
-            readings.add(reading0);
-            for (AccelerometerReading r : readingBuffer) {
-                r.setTimestamp(lastTimestamp += readingSize);
-                readings.add(r);
+    };
+    /* Display an error dialog, or show the error in the one already open.
+     * Safe to call from any thread.
+     */
+    private void showError(final String message) {
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                if (errorDialog != null && errorDialog.isShowing()) {
+                    errorCount++;
+                    errorDialog.setMessage(message + "\n\n" + (errorCount - 1) + " earlier error(s) were also reported.");
+                } else {
+                    errorCount = 1;
+                    errorDialog = displayDialog("Error", message);
+                }
             }
-            lastTimestamp = t;
-            readingBuffer.clear();
+        });
+    }
+    /* Forwards ingestion events to the UI thread
+     */
+    private class pipelineListener implements IngestionPipeline.Listener {
+        @Override
+        public void onDataChanged() {
+            refreshSensors();
         }
-        public ArrayList<AccelerometerReading> getReadings() {
-            return readings;
+        @Override
+        public void onError(String message) {
+            showError(message);
         }
-        public long getStartTime() {
-            if (readings.isEmpty())
-                throw new UnsupportedOperationException("No readings. Cannot determine start time.");
-            return readings.get(0).getTimestamp();
+    }
+    /* Shows export progress, then a summary once it finishes
+     */
+    private class exportListener implements ExportEngine.Listener {
+        private final ProgressDialog progress;
+        private final List<MotionActivity> saved;
+        public exportListener(ProgressDialog progress, List<MotionActivity> saved) {
+            this.progress = progress;
+            this.saved = saved;
         }
-        public long getStopTime() {
-            if (readings.isEmpty())
-                throw new UnsupportedOperationException("No readings. Cannot determine stop time.");
-            return readings.get(readings.size() - 1).getTimestamp();
+        @Override
+        public void onProgress(final long written, final long total) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    progress.setProgress(total == 0 ? 1000 : (int)(written * 1000 / total));
+                }
+            });
         }
         @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof String)
-                return name.equals(obj);
-            else if (obj instanceof Sensor)
-                if (name.equals(((Sensor) obj).getTitle()))
-                    return true;
-            return false;
+        public void onFileWritten(File file) {
+            // Workaround for Android bug #38282
+            MediaScannerConnection.scanFile(MainActivity.this, new String[]{file.getAbsolutePath()}, null, null);
         }
         @Override
-        public String toString() {
-            return readings.toString();
+        public void onFinished(final ExportEngine.Summary summary) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    progress.dismiss();
+                    if (!summary.isCancelled() && summary.getErrors().isEmpty()) {
+                        for (MotionActivity activity : saved)
+                            activity.release();
+                    }
+                    if (summary.isCancelled()) {
+                        displayDialog("Cancelled", "Saving was cancelled. " + summary.getFilesWritten() + " files were saved.");
+                    }
+                    else if (!summary.getErrors().isEmpty()) {
+                        displayDialog("Error", "Unable to completely save readings. See ADB log for details.\n\n" + joinLines(summary.getErrors()));
+                    }
+                    else if (!summary.getWarnings().isEmpty()) {
+                        displayDialog("Warning!", "Some datasets you just saved stopped sooner or started later than expected. Make sure that you have all your sensor data.\n\n" + joinLines(summary.getWarnings()));
+                    }
+                    else {
+                        displayDialog("Success", "Data successfully saved.");
+                    }
+                }
+            });
         }
     }
+    private static String joinLines(List<String> lines) {
+        StringBuilder builder = new StringBuilder();
+        for (String line : lines)
+            builder.append(line).append('\n');
+        return builder.toString();
+    }
     private class MotionActivity {
         private long startTime;
         private long stopTime = -1;
         public String name = "";
+        // Holds back the activity's readings when logging continuously, until saved
+        private RetentionPins.Pin pin;
         public MotionActivity(long startTime) {
             this.startTime = startTime;
+            if (sensors.getRetention() != 0)
+                pin = sensors.getPins().pin(startTime);
         }
         public boolean isFinished() {
             return stopTime != -1;
         }
         public void finish(long time) {
             stopTime = time;
+            if (pin != null)
+                pin.setStopTime(time);
+        }
+        /* Let the activity's readings be overwritten
+         */
+        public void release() {
+            if (pin != null)
+                pin.release();
         }
         public long getStartTime() {
             return startTime;
@@ -0,0 +1,157 @@
+package me.jbakita.pebbledatalogging;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.View;
+
+/**
+ * Live plot of one sensor's X, Y, Z and magnitude, drawn as the minimum to
+ * maximum of each pixel. Pixels come from the store's MinMaxPyramid, so a
+ * frame costs time proportional to the view's width however long the
+ * session is, and nothing is allocated per frame.
+ * Tap to switch between the whole session and the last minute.
+ */
+public class PlotView extends View {
+    // Time between checks for new readings (ms)
+    private static final long FRAME_INTERVAL = 33;
+    // Span of the zoomed in view (ms)
+    private static final long RECENT_SPAN = 60 * 1000;
+    // The accelerometer's range (mG)
+    private static final int RANGE = 4000;
+    private static final int[] COLORS = {Color.RED, Color.GREEN, Color.BLUE, Color.BLACK};
+
+    private final Paint[] paints = new Paint[MinMaxPyramid.CHANNELS.length];
+    private final Paint labelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    // Only accessed on the UI thread
+    private Sensor sensor = null;
+    private boolean recent = false;
+    private MinMaxPyramid.Buckets buckets = null;
+    private float[] lines = new float[0];
+    // Size of the store when last drawn, or -1 to force a redraw
+    private int drawnSize = -1;
+    private boolean attached = false;
+
+    public PlotView(Context context) {
+        super(context);
+        init();
+    }
+
+    public PlotView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        init();
+    }
+
+    private void init() {
+        for (int i = 0; i < paints.length; i++) {
+            paints[i] = new Paint();
+            paints[i].setColor(COLORS[i]);
+            paints[i].setStrokeWidth(1);
+        }
+        labelPaint.setColor(Color.DKGRAY);
+        labelPaint.setTextSize(32);
+        setOnClickListener(new OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                recent = !recent;
+                drawnSize = -1;
+                invalidate();
+            }
+        });
+    }
+
+    /**
+     * Plot a sensor, or nothing if null
+     */
+    public void setSensor(Sensor sensor) {
+        this.sensor = sensor;
+        drawnSize = -1;
+        invalidate();
+    }
+
+    public Sensor getSensor() {
+        return sensor;
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        attached = true;
+        postDelayed(frame, FRAME_INTERVAL);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        attached = false;
+        removeCallbacks(frame);
+    }
+
+    @Override
+    protected void onSizeChanged(int width, int height, int oldWidth, int oldHeight) {
+        super.onSizeChanged(width, height, oldWidth, oldHeight);
+        if (width > 0) {
+            buckets = new MinMaxPyramid.Buckets(width);
+            lines = new float[width * 4];
+        }
+        drawnSize = -1;
+    }
+
+    /* Redraw only when readings have arrived
+     */
+    private final Runnable frame = new Runnable() {
+        @Override
+        public void run() {
+            if (!attached)
+                return;
+            if (sensor != null && sensor.getReadings().size() != drawnSize)
+                invalidate();
+            postDelayed(this, FRAME_INTERVAL);
+        }
+    };
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        canvas.drawColor(Color.WHITE);
+        Sensor sensor = this.sensor;
+        if (sensor == null || buckets == null) {
+            canvas.drawText("Select a sensor to plot", 8, 40, labelPaint);
+            return;
+        }
+        SampleStore readings = sensor.getReadings();
+        int size = readings.size();
+        drawnSize = size;
+        if (size == 0) {
+            canvas.drawText(sensor.getTitle() + ": waiting for readings", 8, 40, labelPaint);
+            return;
+        }
+        if (recent) {
+            long stopTime = readings.getTimestamp(size - 1) + 1;
+            readings.downsampleTimes(stopTime - RECENT_SPAN, stopTime, buckets);
+        }
+        else {
+            readings.downsample(Math.min(readings.getFirstIndex(), size), size, buckets);
+        }
+        float height = getHeight();
+        float scale = height / (2 * RANGE);
+        for (int channel = 0; channel < paints.length; channel++) {
+            int count = 0;
+            for (int pixel = 0; pixel < buckets.getWidth(); pixel++) {
+                if (buckets.getCount(pixel) == 0)
+                    continue;
+                float top = height / 2 - buckets.getMax(channel, pixel) * scale;
+                float bottom = height / 2 - buckets.getMin(channel, pixel) * scale;
+                lines[count++] = pixel;
+                lines[count++] = top;
+                lines[count++] = pixel;
+                // Make flat pixels visible
+                lines[count++] = Math.max(bottom, top + 1);
+            }
+            canvas.drawLines(lines, 0, count, paints[channel]);
+        }
+        canvas.drawText(sensor.getTitle() + (recent ? ": last minute" : ": whole session"), 8, 40, labelPaint);
+    }
+}
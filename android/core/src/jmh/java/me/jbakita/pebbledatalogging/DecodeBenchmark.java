@@ -0,0 +1,80 @@
+package me.jbakita.pebbledatalogging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings decoded per second. An invocation decodes the next
+ * SYNC_INTERVAL readings' worth of items along with their timestamp,
+ * cycling through the session. Items hold one record, as the default
+ * watch build logs them, or a batch of readings.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({"1", "4"})
+    public int sensors;
+    @Param({"25000", "250000"})
+    public int readings;
+    // Readings per item: one as the default watch build logs, or SyntheticSession.BATCHED_READINGS
+    @Param({"1", "25"})
+    public int itemReadings;
+
+    private SyntheticSession session;
+    private final DataLogDecoder decoder = new DataLogDecoder();
+    private BlackholeCallback callback;
+    private int next = 0;
+
+    /* Hands every record to JMH so decoding cannot be optimized away
+     */
+    private static class BlackholeCallback implements DataLogDecoder.Callback {
+        private final Blackhole blackhole;
+        BlackholeCallback(Blackhole blackhole) {
+            this.blackhole = blackhole;
+        }
+        @Override
+        public void onTimestamp(long timestamp) {
+            blackhole.consume(timestamp);
+        }
+        @Override
+        public void onReading(int x, int y, int z) {
+            blackhole.consume(x);
+            blackhole.consume(y);
+            blackhole.consume(z);
+        }
+    }
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        session = new SyntheticSession(sensors, readings, itemReadings);
+        callback = new BlackholeCallback(blackhole);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticSession.SYNC_INTERVAL)
+    public void decode() {
+        for (int i = 0; i < session.syncItems; i++) {
+            byte[] item = session.items[next];
+            decoder.decode(item, 0, item.length, callback);
+            if (++next == session.items.length)
+                next = 0;
+        }
+    }
+}
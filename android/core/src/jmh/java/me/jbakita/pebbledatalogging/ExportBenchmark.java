@@ -0,0 +1,162 @@
+package me.jbakita.pebbledatalogging;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings exported per second. An invocation exports the next
+ * SYNC_INTERVAL readings of the next sensor. The bytes secondary result is
+ * output bytes per second.
+ * CSV is written to a channel which discards it, so only formatting is
+ * measured; the binary format is written to a temporary file, which is
+ * started again every time the session has been exported.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExportBenchmark {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    @Param({"1", "4"})
+    public int sensors;
+    @Param({"25000", "250000"})
+    public int readings;
+    // Whether settled pages are compressed, as they are in the app
+    @Param({"false", "true"})
+    public boolean sealed;
+
+    private List<Sensor> sessionSensors;
+    private CsvWriter csvWriter;
+    private final CountingChannel csvChannel = new CountingChannel();
+    private File binaryFile;
+    private BinaryExportWriter binaryWriter;
+    private int sensor = 0;
+    private int position = 0;
+
+    /**
+     * Output size reported alongside the throughput
+     */
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Output {
+        public long bytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            bytes = 0;
+        }
+    }
+
+    /* Discards everything written to it, counting the bytes
+     */
+    private static class CountingChannel implements WritableByteChannel {
+        long count = 0;
+        @Override
+        public int write(ByteBuffer src) {
+            int length = src.remaining();
+            src.position(src.limit());
+            count += length;
+            return length;
+        }
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        SensorRegistry registry = new SyntheticSession(sensors, readings).ingest();
+        if (sealed)
+            registry.sync();
+        sessionSensors = registry.getSensors();
+        csvWriter = new CsvWriter(csvChannel);
+        binaryFile = File.createTempFile("benchmark", ".pdlb");
+        binaryWriter = new BinaryExportWriter(binaryFile, "Benchmark", "Benchmark");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        binaryWriter.close();
+        binaryFile.delete();
+    }
+
+    /* Get the cursor for the next SYNC_INTERVAL readings to export
+     */
+    private SampleStore.Cursor nextSlice() {
+        SampleStore store = sessionSensors.get(sensor).getReadings();
+        int end = Math.min(position + SyntheticSession.SYNC_INTERVAL, store.size());
+        SampleStore.Cursor cursor = store.cursor(position, end);
+        if (++sensor == sensors) {
+            sensor = 0;
+            position = end >= store.size() ? 0 : end;
+        }
+        return cursor;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticSession.SYNC_INTERVAL)
+    public void csv(Output output) throws IOException {
+        SampleStore.Cursor reading = nextSlice();
+        long before = csvWriter.getBytesWritten();
+        while (reading.next())
+            csvWriter.writeReading(reading);
+        output.bytes += csvWriter.getBytesWritten() - before;
+    }
+
+    /**
+     * The per-reading String formatting CsvWriter replaced, for comparison
+     */
+    @Benchmark
+    @OperationsPerInvocation(SyntheticSession.SYNC_INTERVAL)
+    public void csvToString(Output output) throws IOException {
+        SampleStore.Cursor reading = nextSlice();
+        while (reading.next()) {
+            byte[] line = (reading.toCSV() + "\n").getBytes(ASCII);
+            csvChannel.write(ByteBuffer.wrap(line));
+            output.bytes += line.length;
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticSession.SYNC_INTERVAL)
+    public void binary(Output output) throws IOException {
+        SampleStore.Cursor reading = nextSlice();
+        long before = binaryWriter.getBytesWritten();
+        while (reading.next())
+            binaryWriter.writeReading(reading);
+        output.bytes += binaryWriter.getBytesWritten() - before;
+        if (position == 0 && sensor == 0) {
+            // Start the file again so it does not grow without bound
+            binaryWriter.close();
+            binaryWriter = new BinaryExportWriter(binaryFile, "Benchmark", "Benchmark");
+        }
+    }
+}
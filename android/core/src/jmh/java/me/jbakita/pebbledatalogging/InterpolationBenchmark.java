@@ -0,0 +1,77 @@
+package me.jbakita.pebbledatalogging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Readings timestamped and stored per second. An invocation adds
+ * SYNC_INTERVAL readings and a timestamp to the next sensor, so it includes
+ * re-stamping and page allocation. Once every sensor holds the session's
+ * readings they are replaced by empty sensors.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterpolationBenchmark {
+    @Param({"1", "4"})
+    public int sensors;
+    @Param({"25000", "250000"})
+    public int readings;
+
+    private SyntheticSession session;
+    private Sensor[] active;
+    private long[] nextTimestamp;
+    private int sensor = 0;
+    private int position = 0;
+
+    @Setup
+    public void setUp() {
+        session = new SyntheticSession(sensors, readings);
+        active = new Sensor[sensors];
+        nextTimestamp = new long[sensors];
+        reset();
+    }
+
+    private void reset() {
+        for (int i = 0; i < sensors; i++) {
+            active[i] = new Sensor(PacketProcessor.FEATURES[i], session.logUuid, i, SyntheticSession.START);
+            nextTimestamp[i] = SyntheticSession.START;
+        }
+        position = 0;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SyntheticSession.SYNC_INTERVAL)
+    public Sensor interpolate() {
+        Sensor target = active[sensor];
+        int end = Math.min(position + SyntheticSession.SYNC_INTERVAL, session.readingsPerSensor);
+        for (int i = position; i < end; i++)
+            target.addReading(session.x[i], session.y[i], session.z[i]);
+        // A slightly fast clock, so every timestamp re-stamps the interval
+        nextTimestamp[sensor] += 40 * SyntheticSession.SYNC_INTERVAL + 7;
+        target.addTimestamp(nextTimestamp[sensor]);
+        if (++sensor == sensors) {
+            sensor = 0;
+            position = end;
+            if (position == session.readingsPerSensor)
+                reset();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,135 @@
+package me.jbakita.pebbledatalogging;
+
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * A recording session generated for benchmarking, encoded exactly as the
+ * default watch build sends it: one record per data log item, with a
+ * timestamp item before every 1000th reading, and items from each sensor
+ * interleaved as they would be received. Sessions may instead pack several
+ * readings into each item, to measure decoding larger items.
+ */
+public class SyntheticSession {
+    // Readings per item for batched sessions, as delivered by one accelerometer callback
+    public static final int BATCHED_READINGS = 25;
+    // Readings between timestamps, as sent by the watch
+    public static final int SYNC_INTERVAL = 1000;
+    public static final long START = 1435000000000L;
+
+    public final int sensors;
+    public final int readingsPerSensor;
+    // Readings per data log item
+    public final int itemReadings;
+    // Items holding one sensor's readings between two timestamps, including the timestamp
+    public final int syncItems;
+    public final UUID logUuid = new UUID(0x0f0e0d0c0b0a0908L, 0x0706050403020100L);
+    // Every data log item, in the order received
+    public final byte[][] items;
+    // The tag each item was logged under
+    public final int[] tags;
+    // Raw readings of the first sensor, for feeding sensors directly
+    public final short[] x;
+    public final short[] y;
+    public final short[] z;
+
+    /**
+     * Generate a session logged one record per item, as the default watch build does
+     * @param sensors Number of sensors recording at once, at most PacketProcessor.FEATURES.length
+     * @param readingsPerSensor Readings recorded by each sensor
+     */
+    public SyntheticSession(int sensors, int readingsPerSensor) {
+        this(sensors, readingsPerSensor, 1);
+    }
+
+    /**
+     * @param sensors Number of sensors recording at once, at most PacketProcessor.FEATURES.length
+     * @param readingsPerSensor Readings recorded by each sensor, rounded up to a whole item
+     * @param itemReadings Readings per item, which must divide SYNC_INTERVAL. Items of
+     *                     more than one reading start with the timestamp, if one is due,
+     *                     rather than sending it as an item of its own.
+     */
+    public SyntheticSession(int sensors, int readingsPerSensor, int itemReadings) {
+        if (itemReadings < 1 || SYNC_INTERVAL % itemReadings != 0)
+            throw new IllegalArgumentException("Readings per item must divide " + SYNC_INTERVAL + ".");
+        this.sensors = sensors;
+        this.itemReadings = itemReadings;
+        int readingItems = (readingsPerSensor + itemReadings - 1) / itemReadings;
+        this.readingsPerSensor = readingItems * itemReadings;
+        this.syncItems = SYNC_INTERVAL / itemReadings + (itemReadings == 1 ? 1 : 0);
+        Random random = new Random(42);
+        x = new short[this.readingsPerSensor];
+        y = new short[this.readingsPerSensor];
+        z = new short[this.readingsPerSensor];
+        for (int i = 0; i < this.readingsPerSensor; i++) {
+            // Gravity plus a walking-like wobble and noise, in mG
+            x[i] = (short)(300 * Math.sin(i / 12.5) + random.nextInt(40) - 20);
+            y[i] = (short)(150 * Math.cos(i / 12.5) + random.nextInt(40) - 20);
+            z[i] = (short)(-1000 + 200 * Math.sin(i / 6.25) + random.nextInt(40) - 20);
+        }
+        // Single record sessions send each timestamp as an item of its own
+        int timestampItems = itemReadings == 1 ? (this.readingsPerSensor + SYNC_INTERVAL - 1) / SYNC_INTERVAL : 0;
+        int itemsPerSensor = readingItems + timestampItems;
+        items = new byte[itemsPerSensor * sensors][];
+        tags = new int[items.length];
+        for (int sensor = 0; sensor < sensors; sensor++) {
+            int item = 0;
+            for (int first = 0; first < this.readingsPerSensor; first += itemReadings) {
+                boolean sync = first % SYNC_INTERVAL == 0;
+                if (sync && itemReadings == 1) {
+                    byte[] timestamp = new byte[DataLogDecoder.RECORD_SIZE];
+                    encodeTimestamp(timestamp, first, sensor);
+                    items[item * sensors + sensor] = timestamp;
+                    item++;
+                    sync = false;
+                }
+                items[item * sensors + sensor] = encodeItem(first, sensor, sync);
+                item++;
+            }
+            for (int i = 0; i < itemsPerSensor; i++)
+                tags[i * sensors + sensor] = sensor;
+        }
+    }
+
+    /* Encode the timestamp of a reading into the start of an item
+     */
+    private static void encodeTimestamp(byte[] item, int reading, int sensor) {
+        // Each sensor's clock runs slightly fast, like a real watch
+        long t = START + reading * (40L * 1000 + sensor) / 1000;
+        for (int i = 0; i < DataLogDecoder.RECORD_SIZE; i++)
+            item[i] = (byte)(t >>> (8 * (DataLogDecoder.RECORD_SIZE - 1 - i)));
+        item[0] |= 0x80;
+    }
+
+    /* Encode one item of readings, starting with a timestamp if asked
+     */
+    private byte[] encodeItem(int first, int sensor, boolean sync) {
+        byte[] item = new byte[((sync ? 1 : 0) + itemReadings) * DataLogDecoder.RECORD_SIZE];
+        int offset = 0;
+        if (sync) {
+            encodeTimestamp(item, first, sensor);
+            offset = DataLogDecoder.RECORD_SIZE;
+        }
+        for (int i = first; i < first + itemReadings; i++) {
+            item[offset] = (byte)(x[i] >> 8 & 0x7F);
+            item[offset + 1] = (byte)x[i];
+            item[offset + 2] = (byte)(y[i] >> 8);
+            item[offset + 3] = (byte)y[i];
+            item[offset + 4] = (byte)(z[i] >> 8);
+            item[offset + 5] = (byte)z[i];
+            offset += DataLogDecoder.RECORD_SIZE;
+        }
+        return item;
+    }
+
+    /**
+     * Process the whole session into a new, in-memory registry
+     */
+    public SensorRegistry ingest() {
+        SensorRegistry registry = new SensorRegistry(PacketProcessor.FEATURES.length);
+        PacketProcessor processor = new PacketProcessor(PacketProcessor.FEATURES, registry);
+        for (int i = 0; i < items.length; i++)
+            processor.process(logUuid, tags[i], items[i], items[i].length);
+        return registry;
+    }
+}
@@ -68,7 +68,7 @@ public class AccelerometerReading {
      * (computed using extended pythogorian theorem)
      */
     public double getMagnitude() {
-        return Math.sqrt(x * x + y * y + z * z);
+        return Math.sqrt((long)x * x + (long)y * y + (long)z * z);
     }
 
     public long getTimestamp() {
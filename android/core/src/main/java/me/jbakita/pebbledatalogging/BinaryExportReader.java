@@ -0,0 +1,255 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads files written by BinaryExportWriter. Readings can be streamed in
+ * order, or a time range can be read by seeking straight to the chunks that
+ * cover it using the chunk index.
+ */
+public class BinaryExportReader implements Closeable {
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final String sensorName;
+    private final String activity;
+    private final long startTime;
+    private final long stopTime;
+    private final long sampleCount;
+    // Chunk index, one entry per chunk
+    private final long[] chunkFirstTimes;
+    private final long[] chunkLastTimes;
+    private final long[] chunkOffsets;
+
+    /**
+     * Open a binary session file and read its header and index
+     * @throws IOException if the file is not a binary session file
+     */
+    public BinaryExportReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            byte[] magic = new byte[BinaryExportWriter.MAGIC.length];
+            this.file.readFully(magic);
+            if (!Arrays.equals(magic, BinaryExportWriter.MAGIC))
+                throw new IOException(file + " is not a binary session file.");
+            int version = this.file.readUnsignedByte();
+            if (version != BinaryExportWriter.VERSION)
+                throw new IOException("Unsupported binary session file version " + version + ".");
+            sensorName = this.file.readUTF();
+            activity = this.file.readUTF();
+            startTime = this.file.readLong();
+            stopTime = this.file.readLong();
+            sampleCount = this.file.readLong();
+            int chunkCount = this.file.readInt();
+            long indexOffset = this.file.readLong();
+
+            channel = this.file.getChannel();
+            ByteBuffer index = ByteBuffer.allocate(chunkCount * BinaryExportWriter.INDEX_ENTRY_SIZE);
+            readFully(index, indexOffset);
+            chunkFirstTimes = new long[chunkCount];
+            chunkLastTimes = new long[chunkCount];
+            chunkOffsets = new long[chunkCount];
+            for (int i = 0; i < chunkCount; i++) {
+                chunkFirstTimes[i] = index.getLong();
+                chunkLastTimes[i] = index.getLong();
+                chunkOffsets[i] = index.getLong();
+                index.getInt();
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    public String getSensorName() {
+        return sensorName;
+    }
+
+    public String getActivity() {
+        return activity;
+    }
+
+    /**
+     * Get the timestamp of the first reading, or 0 if there are none
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    /**
+     * Get the timestamp of the last reading, or 0 if there are none
+     */
+    public long getStopTime() {
+        return stopTime;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public int getChunkCount() {
+        return chunkOffsets.length;
+    }
+
+    /**
+     * Create a cursor over every reading in the file
+     */
+    public Cursor cursor() {
+        return cursor(Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * Create a cursor over the readings in [startTime, stopTime)
+     */
+    public Cursor cursor(long startTime, long stopTime) {
+        // Find the first chunk that ends at or after startTime
+        int low = 0;
+        int high = chunkLastTimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (chunkLastTimes[mid] < startTime)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return new Cursor(low, startTime, stopTime);
+    }
+
+    /**
+     * Convert the readings in [startTime, stopTime) to CSV, including the header
+     * @return The number of readings written
+     */
+    public long writeCsv(CsvWriter writer, long startTime, long stopTime) throws IOException {
+        writer.writeHeader();
+        Cursor reading = cursor(startTime, stopTime);
+        long count = 0;
+        while (reading.next()) {
+            writer.writeReading(reading.getTimestamp(), reading.getX(), reading.getY(), reading.getZ());
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void readFully(ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            if (channel.read(dest, position + dest.position()) < 0)
+                throw new IOException("Unexpected end of binary session file.");
+        }
+        dest.flip();
+    }
+
+    /* Read a zig-zag encoded variable length integer
+     */
+    static long getVarLong(ByteBuffer source) {
+        long zigzag = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = source.get();
+            zigzag |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * Iterates over readings one chunk at a time. Each chunk is decoded into
+     * reusable arrays when the cursor reaches it.
+     */
+    public class Cursor {
+        private final long startTime;
+        private final long stopTime;
+        private final long[] timestamps = new long[BinaryExportWriter.CHUNK_SIZE];
+        private final int[] x = new int[BinaryExportWriter.CHUNK_SIZE];
+        private final int[] y = new int[BinaryExportWriter.CHUNK_SIZE];
+        private final int[] z = new int[BinaryExportWriter.CHUNK_SIZE];
+        private ByteBuffer payload = ByteBuffer.allocate(0);
+        private final ByteBuffer chunkHeader = ByteBuffer.allocate(8);
+        private int nextChunk;
+        private int count = 0;
+        private int offset = -1;
+        private boolean done = false;
+
+        private Cursor(int firstChunk, long startTime, long stopTime) {
+            this.nextChunk = firstChunk;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+        }
+
+        /**
+         * Advance to the next reading in range
+         * @return false if there are no more readings in range
+         */
+        public boolean next() throws IOException {
+            while (!done) {
+                if (++offset >= count) {
+                    if (nextChunk >= chunkOffsets.length || chunkFirstTimes[nextChunk] >= stopTime) {
+                        done = true;
+                        return false;
+                    }
+                    readChunk(nextChunk++);
+                    offset = 0;
+                }
+                if (timestamps[offset] >= stopTime) {
+                    done = true;
+                    return false;
+                }
+                if (timestamps[offset] >= startTime)
+                    return true;
+            }
+            return false;
+        }
+
+        public long getTimestamp() {
+            return timestamps[offset];
+        }
+
+        public int getX() {
+            return x[offset];
+        }
+
+        public int getY() {
+            return y[offset];
+        }
+
+        public int getZ() {
+            return z[offset];
+        }
+
+        private void readChunk(int chunk) throws IOException {
+            chunkHeader.clear();
+            readFully(chunkHeader, chunkOffsets[chunk]);
+            count = chunkHeader.getInt();
+            int length = chunkHeader.getInt();
+            if (payload.capacity() < length)
+                payload = ByteBuffer.allocate(length);
+            payload.clear();
+            payload.limit(length);
+            readFully(payload, chunkOffsets[chunk] + 8);
+            timestamps[0] = payload.getLong();
+            for (int i = 1; i < count; i++)
+                timestamps[i] = timestamps[i - 1] + getVarLong(payload);
+            readColumn(x);
+            readColumn(y);
+            readColumn(z);
+        }
+
+        private void readColumn(int[] values) {
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += getVarLong(payload);
+                values[i] = (int)previous;
+            }
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes readings in the compact binary session format read by
+ * BinaryExportReader. Readings must be written in time order.
+ *
+ * The file is big endian and laid out as:
+ * <pre>
+ * header:  "PDLB", version byte, sensor name (modified UTF-8), activity name (modified UTF-8),
+ *          start time (long), stop time (long), sample count (long),
+ *          chunk count (int), index offset (long)
+ * chunks:  sample count (int), payload length (int), payload
+ * index:   for each chunk, first time (long), last time (long), file offset (long), sample count (int)
+ * </pre>
+ * A chunk payload is the first timestamp as a long followed by the
+ * zig-zag varint timestamp deltas, then each of the X, Y and Z columns as
+ * zig-zag varint deltas from the previous value (starting from 0).
+ */
+public class BinaryExportWriter implements Closeable {
+    public static final byte[] MAGIC = {'P', 'D', 'L', 'B'};
+    public static final int VERSION = 1;
+    // Readings per chunk
+    public static final int CHUNK_SIZE = 4096;
+    // Size of an index entry in bytes
+    static final int INDEX_ENTRY_SIZE = 8 + 8 + 8 + 4;
+    // Worst case encoded size of a chunk: one long, then a 10 byte varint timestamp and three 5 byte varints per reading
+    private static final int MAX_PAYLOAD_SIZE = 8 + CHUNK_SIZE * (10 + 3 * 5);
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // Where the start time, stop time, sample count, chunk count and index offset are
+    private final long summaryOffset;
+    private final long[] timestamps = new long[CHUNK_SIZE];
+    private final int[] x = new int[CHUNK_SIZE];
+    private final int[] y = new int[CHUNK_SIZE];
+    private final int[] z = new int[CHUNK_SIZE];
+    private int buffered = 0;
+    private final ByteBuffer chunk = ByteBuffer.allocate(8 + MAX_PAYLOAD_SIZE);
+    // The index is kept in memory until close
+    private ByteBuffer index = ByteBuffer.allocate(INDEX_ENTRY_SIZE * 16);
+    private int chunkCount = 0;
+    private long sampleCount = 0;
+    private long startTime = 0;
+    private long stopTime = 0;
+
+    /**
+     * Create (or replace) a binary session file
+     * @param file The file to write
+     * @param sensorName The name of the sensor the readings are from
+     * @param activity The name of the activity the readings cover
+     */
+    public BinaryExportWriter(File file, String sensorName, String activity) throws IOException {
+        this.file = new RandomAccessFile(file, "rw");
+        this.file.setLength(0);
+        this.file.write(MAGIC);
+        this.file.writeByte(VERSION);
+        this.file.writeUTF(sensorName);
+        this.file.writeUTF(activity);
+        summaryOffset = this.file.getFilePointer();
+        // Placeholder summary, filled in by close()
+        this.file.write(new byte[8 + 8 + 8 + 4 + 8]);
+        channel = this.file.getChannel();
+        channel.position(this.file.getFilePointer());
+    }
+
+    /**
+     * Add a reading to the file
+     * @param timestamp POSIX time in ms that this reading was taken at
+     * @param x The X vector of acceleration
+     * @param y The Y vector of acceleration
+     * @param z The Z vector of acceleration
+     */
+    public void writeReading(long timestamp, int x, int y, int z) throws IOException {
+        if (sampleCount == 0)
+            startTime = timestamp;
+        stopTime = timestamp;
+        sampleCount++;
+        timestamps[buffered] = timestamp;
+        this.x[buffered] = x;
+        this.y[buffered] = y;
+        this.z[buffered] = z;
+        if (++buffered == CHUNK_SIZE)
+            writeChunk();
+    }
+
+    /**
+     * Add the reading under a cursor to the file
+     */
+    public void writeReading(SampleStore.Cursor reading) throws IOException {
+        writeReading(reading.getTimestamp(), reading.getX(), reading.getY(), reading.getZ());
+    }
+
+    /**
+     * Get the number of bytes written to the file so far. Readings are only
+     * counted once the chunk holding them has been written.
+     */
+    public long getBytesWritten() throws IOException {
+        return channel.position();
+    }
+
+    /**
+     * Write any buffered readings, the index, and the header summary
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (buffered > 0)
+                writeChunk();
+            long indexOffset = channel.position();
+            index.flip();
+            while (index.hasRemaining())
+                channel.write(index);
+            ByteBuffer summary = ByteBuffer.allocate(8 + 8 + 8 + 4 + 8);
+            summary.putLong(startTime).putLong(stopTime).putLong(sampleCount).putInt(chunkCount).putLong(indexOffset);
+            summary.flip();
+            while (summary.hasRemaining())
+                channel.write(summary, summaryOffset + summary.position());
+        } finally {
+            file.close();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        long offset = channel.position();
+        chunk.clear();
+        chunk.putInt(buffered);
+        // Payload length, filled in below
+        chunk.putInt(0);
+        chunk.putLong(timestamps[0]);
+        for (int i = 1; i < buffered; i++)
+            putVarLong(chunk, timestamps[i] - timestamps[i - 1]);
+        putColumn(chunk, x, buffered);
+        putColumn(chunk, y, buffered);
+        putColumn(chunk, z, buffered);
+        chunk.putInt(4, chunk.position() - 8);
+        chunk.flip();
+        while (chunk.hasRemaining())
+            channel.write(chunk);
+
+        if (index.remaining() < INDEX_ENTRY_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(index.capacity() * 2);
+            index.flip();
+            larger.put(index);
+            index = larger;
+        }
+        index.putLong(timestamps[0]).putLong(timestamps[buffered - 1]).putLong(offset).putInt(buffered);
+        chunkCount++;
+        buffered = 0;
+    }
+
+    private static void putColumn(ByteBuffer dest, int[] values, int count) {
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            putVarLong(dest, (long)values[i] - previous);
+            previous = values[i];
+        }
+    }
+
+    /* Write a zig-zag encoded variable length integer, 7 bits per byte, least significant first
+     */
+    static void putVarLong(ByteBuffer dest, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            dest.put((byte)(zigzag & 0x7F | 0x80));
+            zigzag >>>= 7;
+        }
+        dest.put((byte)zigzag);
+    }
+}
@@ -0,0 +1,119 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * Reads the items recorded by a CaptureWriter, in the order received.
+ * The item buffer is reused, so reading allocates nothing per item.
+ */
+public class CaptureReader implements Closeable {
+    // Longest item accepted, to catch corrupt lengths
+    private static final int MAX_ITEM_SIZE = 1 << 20;
+
+    private final DataInputStream in;
+    private final String[] features;
+    private long receivedAt;
+    private UUID logUuid;
+    private int tag;
+    private long timestamp;
+    private byte[] data = new byte[256];
+    private int length;
+
+    /**
+     * @throws IOException if the file is not a capture
+     */
+    public CaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            byte[] magic = new byte[CaptureWriter.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, CaptureWriter.MAGIC) || in.readUnsignedByte() != CaptureWriter.VERSION)
+                throw new IOException(file + " is not a capture.");
+            features = new String[in.readInt()];
+            for (int i = 0; i < features.length; i++)
+                features[i] = in.readUTF();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Get the sensor names indexed by data log tag
+     */
+    public String[] getFeatures() {
+        return features;
+    }
+
+    /**
+     * Move to the next item
+     * @return false at the end of the capture
+     * @throws IOException if the capture is corrupt
+     */
+    public boolean next() throws IOException {
+        try {
+            receivedAt = in.readLong();
+            long mostSignificant = in.readLong();
+            long leastSignificant = in.readLong();
+            // Items nearly always come from the same session as the last one
+            if (logUuid == null || logUuid.getMostSignificantBits() != mostSignificant
+                    || logUuid.getLeastSignificantBits() != leastSignificant)
+                logUuid = new UUID(mostSignificant, leastSignificant);
+            tag = in.readInt();
+            timestamp = in.readLong();
+            length = in.readInt();
+            if (length < 0 || length > MAX_ITEM_SIZE)
+                throw new IOException("Capture item length " + length + " is invalid.");
+            if (data.length < length)
+                data = new byte[Math.max(length, data.length * 2)];
+            in.readFully(data, 0, length);
+            return true;
+        } catch (EOFException e) {
+            // The last item was only partially written
+            return false;
+        }
+    }
+
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public UUID getLogUuid() {
+        return logUuid;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Get the buffer holding the item, which is only valid until next()
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Get the length of the item in bytes
+     */
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
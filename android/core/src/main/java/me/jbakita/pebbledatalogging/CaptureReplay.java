@@ -0,0 +1,267 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays captures (see CaptureWriter) through the same ingestion pipeline
+ * and export code as the app, without a watch or a phone. Captures are
+ * replayed in parallel, as fast as possible or at a multiple of the rate
+ * they were recorded at, and each sensor can be exported to CSV and binary.
+ *
+ * Usage: java -jar core.jar [-o dir] [-m dir] [-j threads] [-speed factor] capture.pdlc...
+ *   -o dir         Export every sensor's readings to this directory
+ *   -m dir         Dump each capture's ingestion and sensor metrics to a JSON file in this directory
+ *   -j threads     Number of captures to replay at once (default: one per processor)
+ *   -speed factor  Replay at this multiple of real time (default: as fast as possible)
+ */
+public class CaptureReplay {
+    private static final String USAGE = "Usage: java -jar core.jar [-o dir] [-m dir] [-j threads] [-speed factor] capture"
+            + CaptureWriter.EXTENSION + "...";
+
+    /**
+     * The outcome of replaying one capture
+     */
+    public static class Result {
+        private final File capture;
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private long items = 0;
+        private long readings = 0;
+        private int sensors = 0;
+        private int filesWritten = 0;
+        // Time between the first and last item being received
+        private long capturedMillis = 0;
+        private long replayNanos = 0;
+        private final List<Metrics> metrics = new ArrayList<>();
+
+        Result(File capture) {
+            this.capture = capture;
+        }
+
+        public File getCapture() {
+            return capture;
+        }
+
+        /**
+         * Get every item which could not be processed and every export error
+         */
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public long getItems() {
+            return items;
+        }
+
+        public long getReadings() {
+            return readings;
+        }
+
+        public int getSensors() {
+            return sensors;
+        }
+
+        public int getFilesWritten() {
+            return filesWritten;
+        }
+
+        /**
+         * Get the ingestion metrics followed by each sensor's metrics
+         */
+        public List<Metrics> getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Get the time taken to ingest the capture in ns, excluding export
+         */
+        public long getReplayNanos() {
+            return replayNanos;
+        }
+
+        /**
+         * Get how many times faster than real time the capture was ingested
+         */
+        public double getSpeedUp() {
+            return capturedMillis * 1e6 / Math.max(1, replayNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d items, %d readings from %d sensors in %.1f ms (%.0f readings/s, %.1fx real time), %d files written, %d errors",
+                    capture.getName(), items, readings, sensors, replayNanos / 1e6, readings * 1e9 / Math.max(1, replayNanos),
+                    getSpeedUp(), filesWritten, errors.size());
+        }
+    }
+
+    /**
+     * Replay one capture into a new, in-memory registry
+     * @param capture The capture file
+     * @param speed Multiple of real time to replay at, or 0 for as fast as possible
+     * @param outDir Where to export each sensor's readings, or null to not export
+     * @param engine Runs the export
+     */
+    public static Result replay(File capture, double speed, File outDir, ExportEngine engine) throws IOException, InterruptedException {
+        final Result result = new Result(capture);
+        CaptureReader reader = new CaptureReader(capture);
+        String[] features = reader.getFeatures();
+        SensorRegistry registry = new SensorRegistry(features.length);
+        IngestionPipeline pipeline = new IngestionPipeline(features, registry, new IngestionPipeline.Listener() {
+            @Override
+            public void onDataChanged() {
+            }
+            @Override
+            public void onError(String message) {
+                result.errors.add(message);
+            }
+        });
+        pipeline.start();
+        long begin = System.nanoTime();
+        long firstReceived = 0;
+        try {
+            while (reader.next()) {
+                if (result.items == 0)
+                    firstReceived = reader.getReceivedAt();
+                result.capturedMillis = reader.getReceivedAt() - firstReceived;
+                if (speed > 0) {
+                    // Wait until the item is due at the requested rate
+                    long wait = begin + (long)(result.capturedMillis * 1e6 / speed) - System.nanoTime();
+                    if (wait > 0)
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                }
+                pipeline.receive(reader.getLogUuid(), reader.getTag(), reader.getData(), reader.getLength());
+                result.items++;
+            }
+        } finally {
+            // Waits for every queued item to be decoded
+            pipeline.stop();
+            reader.close();
+        }
+        result.replayNanos = System.nanoTime() - begin;
+        result.metrics.add(pipeline.getMetrics());
+
+        List<ExportEngine.Job> jobs = new ArrayList<>();
+        String name = capture.getName();
+        if (name.endsWith(CaptureWriter.EXTENSION))
+            name = name.substring(0, name.length() - CaptureWriter.EXTENSION.length());
+        for (Sensor sensor : registry.getSensors()) {
+            result.sensors++;
+            result.metrics.add(sensor.getMetrics());
+            result.readings += sensor.getReadings().size();
+            // The stop time is exclusive, so add 1 to include the last reading
+            if (outDir != null && !sensor.getReadings().isEmpty())
+                jobs.add(new ExportEngine.Job("All Readings", sensor, sensor.getStartTime(), sensor.getStopTime() + 1, outDir,
+                        name + " " + sensor.getTitle() + " " + sensor.getWatchId()));
+        }
+        if (!jobs.isEmpty()) {
+            final CountDownLatch finished = new CountDownLatch(1);
+            final ExportEngine.Summary[] summary = new ExportEngine.Summary[1];
+            engine.submit(jobs, new ExportEngine.Listener() {
+                @Override
+                public void onProgress(long written, long total) {
+                }
+                @Override
+                public void onFileWritten(File file) {
+                }
+                @Override
+                public void onFinished(ExportEngine.Summary exportSummary) {
+                    summary[0] = exportSummary;
+                    finished.countDown();
+                }
+            });
+            finished.await();
+            result.errors.addAll(summary[0].getErrors());
+            result.filesWritten = summary[0].getFilesWritten();
+        }
+        return result;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        File outDir = null;
+        File metricsDir = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        double speed = 0;
+        List<File> captures = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("-o"))
+                    outDir = new File(args[++i]);
+                else if (args[i].equals("-m"))
+                    metricsDir = new File(args[++i]);
+                else if (args[i].equals("-j"))
+                    threads = Integer.parseInt(args[++i]);
+                else if (args[i].equals("-speed"))
+                    speed = Double.parseDouble(args[++i]);
+                else if (args[i].startsWith("-"))
+                    throw new IllegalArgumentException("Unknown option " + args[i] + ".");
+                else
+                    captures.add(new File(args[i]));
+            }
+            if (captures.isEmpty() || threads < 1 || speed < 0)
+                throw new IllegalArgumentException("No captures given.");
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        for (File dir : new File[] {outDir, metricsDir}) {
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                System.err.println("Unable to create " + dir + ".");
+                System.exit(1);
+            }
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ExportEngine engine = new ExportEngine(threads);
+        List<Future<Result>> results = new ArrayList<>();
+        long begin = System.nanoTime();
+        for (final File capture : captures) {
+            final File dir = outDir;
+            final double rate = speed;
+            results.add(executor.submit(new Callable<Result>() {
+                @Override
+                public Result call() throws Exception {
+                    return replay(capture, rate, dir, engine);
+                }
+            }));
+        }
+        long readings = 0;
+        boolean failed = false;
+        for (int i = 0; i < captures.size(); i++) {
+            try {
+                Result result = results.get(i).get();
+                readings += result.getReadings();
+                System.out.println(result);
+                for (String error : result.getErrors())
+                    System.out.println("  " + error);
+                failed |= !result.getErrors().isEmpty();
+                if (metricsDir != null) {
+                    List<Metrics> metrics = new ArrayList<>(result.getMetrics());
+                    metrics.add(engine.getMetrics());
+                    Metrics.writeJson(new File(metricsDir, captures.get(i).getName() + ".json"), metrics);
+                }
+            } catch (ExecutionException e) {
+                System.out.println(captures.get(i).getName() + ": " + e.getCause());
+                failed = true;
+            } catch (IOException e) {
+                System.out.println(captures.get(i).getName() + ": unable to write metrics: " + e.getMessage());
+                failed = true;
+            }
+        }
+        long elapsed = System.nanoTime() - begin;
+        System.out.println(String.format("%d captures, %d readings in %.1f s (%.0f readings/s)",
+                captures.size(), readings, elapsed / 1e9, readings * 1e9 / Math.max(1, elapsed)));
+        executor.shutdown();
+        engine.shutdown();
+        System.exit(failed ? 1 : 0);
+    }
+}
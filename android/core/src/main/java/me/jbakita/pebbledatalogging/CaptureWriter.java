@@ -0,0 +1,150 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Records data log items exactly as they were received, so a session can be
+ * replayed later without a watch (see CaptureReplay).
+ * The file is a header (magic, version and the sensor names indexed by tag)
+ * followed by one big endian record per item: the time it was received,
+ * the data log UUID, tag and timestamp, then the length and bytes of the
+ * item. A partially written last record is ignored when reading.
+ * Records are buffered in memory until flushed, so a writer should be
+ * flushed periodically rather than after every item.
+ */
+public class CaptureWriter implements Closeable {
+    public static final String EXTENSION = ".pdlc";
+    static final byte[] MAGIC = {'P', 'D', 'L', 'C'};
+    static final int VERSION = 1;
+    // Bytes of records held in memory before they are written out
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+
+    /**
+     * Create (or replace) a capture file
+     * @param file The file to write
+     * @param features Sensor names indexed by data log tag
+     */
+    public CaptureWriter(File file, String[] features) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+        try {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeInt(features.length);
+            for (String feature : features)
+                out.writeUTF(feature);
+            out.flush();
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Start a new capture in a directory, named after the current time,
+     * first deleting the oldest captures there so that at most keep remain
+     * @param dir The directory to write to, which must exist
+     * @param features Sensor names indexed by data log tag
+     * @param keep Maximum number of captures in the directory, including the new one
+     */
+    public static CaptureWriter create(File dir, String[] features, int keep) throws IOException {
+        if (keep < 1)
+            throw new IllegalArgumentException("At least one capture must be kept.");
+        List<File> captures = list(dir);
+        for (int i = 0; i <= captures.size() - keep; i++) {
+            if (!captures.get(i).delete())
+                throw new IOException("Unable to delete " + captures.get(i) + ".");
+        }
+        String name = new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+        File file = new File(dir, name + EXTENSION);
+        // Captures rotated within the same second are numbered
+        for (int n = 1; file.exists(); n++)
+            file = new File(dir, name + "-" + n + EXTENSION);
+        return new CaptureWriter(file, features);
+    }
+
+    /**
+     * Get the captures in a directory, oldest first
+     */
+    public static List<File> list(File dir) {
+        List<File> captures = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && file.getName().endsWith(EXTENSION))
+                    captures.add(file);
+            }
+        }
+        Collections.sort(captures, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                // Not Long.compare, which needs API 19
+                long aModified = a.lastModified();
+                long bModified = b.lastModified();
+                if (aModified != bModified)
+                    return aModified < bModified ? -1 : 1;
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return captures;
+    }
+
+    /**
+     * Record a received item
+     * @param receivedAt POSIX time in ms that the item was received
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     * @param timestamp The data log session timestamp
+     * @param data The item
+     */
+    public void write(long receivedAt, UUID logUuid, int tag, long timestamp, byte[] data) throws IOException {
+        write(receivedAt, logUuid, tag, timestamp, data, data.length);
+    }
+
+    /**
+     * Record the first length bytes of a buffer as a received item
+     */
+    public void write(long receivedAt, UUID logUuid, int tag, long timestamp, byte[] data, int length) throws IOException {
+        out.writeLong(receivedAt);
+        out.writeLong(logUuid.getMostSignificantBits());
+        out.writeLong(logUuid.getLeastSignificantBits());
+        out.writeInt(tag);
+        out.writeLong(timestamp);
+        out.writeInt(length);
+        out.write(data, 0, length);
+    }
+
+    /**
+     * Hand every recorded item to the operating system, so it is kept even
+     * if the app is killed
+     */
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Get the number of bytes recorded so far, saturating at Integer.MAX_VALUE
+     */
+    public int size() {
+        return out.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
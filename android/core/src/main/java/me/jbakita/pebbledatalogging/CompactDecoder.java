@@ -0,0 +1,182 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * Decoder for the compact encoding optionally logged by the watchapp
+ * (COMPACT_ENCODING in logging.c).
+ * A compact session is logged under its sensor's tag plus COMPACT_TAG as
+ * fixed size items, which together form a stream of frames. A frame may be
+ * split across items. Every frame starts with a version byte:
+ *  - Timestamp frame: version, 0x80, then a 48 bit big endian POSIX time in ms
+ *  - Batch frame: version, reading count (1 to 127), big endian 16 bit X, Y
+ *    and Z of the first reading, the bit width of each axis' deltas, then
+ *    the zig-zag encoded deltas from each reading to the next, all X deltas
+ *    then all Y then all Z, packed most significant bit first and padded to
+ *    a whole byte
+ * A version byte of 0 is padding, which fills the rest of an item.
+ *
+ * One decoder must be used per session, as it keeps partial frames between
+ * items. Nothing is allocated per item once the buffer has grown.
+ */
+public class CompactDecoder {
+    public static final int VERSION = 1;
+    // Added to the sensor's data log tag for compact sessions
+    public static final int COMPACT_TAG = 0x100;
+    // Size of each data log item in bytes
+    public static final int ITEM_SIZE = 64;
+    // Maximum number of readings in a batch frame
+    public static final int MAX_BATCH = 127;
+    // Widest possible delta: the zig-zag encoded difference of two 16 bit values
+    static final int MAX_WIDTH = 17;
+    static final int TIMESTAMP = 0x80;
+    static final int TIMESTAMP_FRAME_SIZE = 2 + 6;
+    static final int BATCH_HEADER_SIZE = 2 + 6 + 3;
+    // Longest possible frame: a full batch with every delta at the maximum width
+    public static final int MAX_FRAME_SIZE = BATCH_HEADER_SIZE + (3 * (MAX_BATCH - 1) * MAX_WIDTH + 7) / 8;
+
+    // Bytes received but not yet decoded, always starting at a frame
+    private final byte[] pending = new byte[MAX_FRAME_SIZE + ITEM_SIZE];
+    private int pendingLength = 0;
+
+    /**
+     * Check if a data log tag belongs to a compact session
+     */
+    public static boolean isCompact(int tag) {
+        return (tag & COMPACT_TAG) != 0;
+    }
+
+    /**
+     * Get the sensor's tag from a compact session's data log tag
+     */
+    public static int getSensorTag(int tag) {
+        return tag & ~COMPACT_TAG;
+    }
+
+    /**
+     * Decode every frame completed by an item. Any partial frame at the end
+     * is kept until the next item.
+     * @param data Buffer holding the item
+     * @param offset Index of the first byte of the item
+     * @param length Length of the item in bytes
+     * @param callback Receives each decoded timestamp and reading
+     * @throws IllegalArgumentException if the stream is corrupt. The rest of
+     *                                  the item is discarded, as it is if the
+     *                                  callback throws.
+     */
+    public void decode(byte[] data, int offset, int length, DataLogDecoder.Callback callback) {
+        while (length > 0) {
+            // Items are at most ITEM_SIZE long, but accept any length in pieces
+            int count = Math.min(length, pending.length - pendingLength);
+            System.arraycopy(data, offset, pending, pendingLength, count);
+            pendingLength += count;
+            offset += count;
+            length -= count;
+            int position;
+            try {
+                position = decodeFrames(callback);
+            } catch (RuntimeException e) {
+                pendingLength = 0;
+                throw e;
+            }
+            System.arraycopy(pending, position, pending, 0, pendingLength - position);
+            pendingLength -= position;
+        }
+    }
+
+    /* Decode complete frames from the pending buffer
+     * @return The index of the first byte not decoded
+     */
+    private int decodeFrames(DataLogDecoder.Callback callback) {
+        int position = 0;
+        while (position < pendingLength) {
+            int version = pending[position] & 0xFF;
+            if (version == 0)
+                // Padding fills the rest of the item
+                return pendingLength;
+            if (version != VERSION)
+                throw new IllegalArgumentException("Unsupported compact encoding version " + version + ".");
+            if (pendingLength - position < 2)
+                return position;
+            int kind = pending[position + 1] & 0xFF;
+            if (kind == TIMESTAMP) {
+                if (pendingLength - position < TIMESTAMP_FRAME_SIZE)
+                    return position;
+                long timestamp = 0;
+                for (int i = position + 2; i < position + TIMESTAMP_FRAME_SIZE; i++)
+                    timestamp = timestamp << 8 | pending[i] & 0xFF;
+                callback.onTimestamp(timestamp);
+                position += TIMESTAMP_FRAME_SIZE;
+            }
+            else {
+                if (kind == 0 || kind > MAX_BATCH)
+                    throw new IllegalArgumentException("Invalid compact batch size " + kind + ".");
+                if (pendingLength - position < BATCH_HEADER_SIZE)
+                    return position;
+                int frameSize = batchSize(position, kind);
+                if (pendingLength - position < frameSize)
+                    return position;
+                decodeBatch(position, kind, callback);
+                position += frameSize;
+            }
+        }
+        return position;
+    }
+
+    /* Get the total size of the batch frame at position
+     */
+    private int batchSize(int position, int count) {
+        int bits = 0;
+        for (int axis = 0; axis < 3; axis++) {
+            int width = pending[position + 8 + axis] & 0xFF;
+            if (width > MAX_WIDTH)
+                throw new IllegalArgumentException("Invalid compact delta width " + width + ".");
+            bits += width * (count - 1);
+        }
+        return BATCH_HEADER_SIZE + (bits + 7) / 8;
+    }
+
+    private void decodeBatch(int position, int count, DataLogDecoder.Callback callback) {
+        int x = DataLogDecoder.decodeShort(pending, position + 2);
+        int y = DataLogDecoder.decodeShort(pending, position + 4);
+        int z = DataLogDecoder.decodeShort(pending, position + 6);
+        int widthX = pending[position + 8];
+        int widthY = pending[position + 9];
+        int widthZ = pending[position + 10];
+        callback.onReading(x, y, z);
+        long bitBase = (long)(position + BATCH_HEADER_SIZE) * 8;
+        long bitX = bitBase;
+        long bitY = bitX + (long)widthX * (count - 1);
+        long bitZ = bitY + (long)widthY * (count - 1);
+        for (int i = 1; i < count; i++) {
+            x += unzigzag(readBits(bitX, widthX));
+            y += unzigzag(readBits(bitY, widthY));
+            z += unzigzag(readBits(bitZ, widthZ));
+            bitX += widthX;
+            bitY += widthY;
+            bitZ += widthZ;
+            callback.onReading(x, y, z);
+        }
+    }
+
+    /* Read width bits, most significant first, starting at a bit index
+     */
+    private int readBits(long bit, int width) {
+        int value = 0;
+        int index = (int)(bit >>> 3);
+        int skip = (int)(bit & 7);
+        int remaining = width;
+        while (remaining > 0) {
+            int available = 8 - skip;
+            int take = Math.min(available, remaining);
+            int bits = (pending[index] & 0xFF) >>> (available - take) & ((1 << take) - 1);
+            value = value << take | bits;
+            remaining -= take;
+            skip = 0;
+            index++;
+        }
+        return value;
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,135 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * Java implementation of the compact encoding logged by the watchapp, see
+ * CompactDecoder for the format. Frames are packed into fixed size items
+ * exactly as the watch does, so tests and tools can produce compact
+ * sessions without a watch.
+ */
+public class CompactEncoder {
+    private final ItemSink sink;
+    private final byte[] item = new byte[CompactDecoder.ITEM_SIZE];
+    private int itemLength = 0;
+    private final byte[] frame = new byte[CompactDecoder.MAX_FRAME_SIZE];
+    private long bytesEncoded = 0;
+
+    /**
+     * Receives each completed item, as data_logging_log() would on the watch
+     */
+    public interface ItemSink {
+        /**
+         * @param item The item, only valid for the duration of the call
+         */
+        void log(byte[] item);
+    }
+
+    public CompactEncoder(ItemSink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Encode a timestamp for the reading that follows it
+     * @param timestamp POSIX time in ms
+     */
+    public void writeTimestamp(long timestamp) {
+        frame[0] = CompactDecoder.VERSION;
+        frame[1] = (byte)CompactDecoder.TIMESTAMP;
+        for (int i = 0; i < 6; i++)
+            frame[2 + i] = (byte)(timestamp >>> (8 * (5 - i)));
+        write(frame, CompactDecoder.TIMESTAMP_FRAME_SIZE);
+    }
+
+    /**
+     * Encode a batch of readings, each axis being a 16 bit value
+     * @param count Number of readings, from 1 to CompactDecoder.MAX_BATCH
+     */
+    public void writeBatch(short[] x, short[] y, short[] z, int offset, int count) {
+        if (count < 1 || count > CompactDecoder.MAX_BATCH)
+            throw new IllegalArgumentException(count + " readings cannot be encoded as one batch.");
+        frame[0] = CompactDecoder.VERSION;
+        frame[1] = (byte)count;
+        putShort(frame, 2, x[offset]);
+        putShort(frame, 4, y[offset]);
+        putShort(frame, 6, z[offset]);
+        int widthX = width(x, offset, count);
+        int widthY = width(y, offset, count);
+        int widthZ = width(z, offset, count);
+        frame[8] = (byte)widthX;
+        frame[9] = (byte)widthY;
+        frame[10] = (byte)widthZ;
+        long bit = CompactDecoder.BATCH_HEADER_SIZE * 8;
+        bit = putDeltas(x, offset, count, widthX, bit);
+        bit = putDeltas(y, offset, count, widthY, bit);
+        bit = putDeltas(z, offset, count, widthZ, bit);
+        write(frame, (int)((bit + 7) / 8));
+    }
+
+    /**
+     * Pad and log the current item, as the watch does when its session is
+     * flushed or finished
+     */
+    public void flush() {
+        if (itemLength == 0)
+            return;
+        for (int i = itemLength; i < item.length; i++)
+            item[i] = 0;
+        bytesEncoded += item.length - itemLength;
+        sink.log(item);
+        itemLength = 0;
+    }
+
+    /**
+     * Get the number of bytes logged so far, including padding
+     */
+    public long getBytesEncoded() {
+        return bytesEncoded;
+    }
+
+    private void write(byte[] bytes, int length) {
+        for (int i = 0; i < length; i++) {
+            item[itemLength++] = bytes[i];
+            if (itemLength == item.length) {
+                sink.log(item);
+                itemLength = 0;
+            }
+        }
+        bytesEncoded += length;
+    }
+
+    /* Get the number of bits needed for the widest zig-zag delta
+     */
+    private static int width(short[] values, int offset, int count) {
+        int all = 0;
+        for (int i = offset + 1; i < offset + count; i++)
+            all |= zigzag(values[i] - values[i - 1]);
+        return 32 - Integer.numberOfLeadingZeros(all);
+    }
+
+    /* Pack each delta's bits, clearing each byte of the frame as it is started
+     * @return The bit after the last delta
+     */
+    private long putDeltas(short[] values, int offset, int count, int width, long bit) {
+        for (int i = offset + 1; i < offset + count; i++) {
+            int value = zigzag(values[i] - values[i - 1]);
+            for (int b = width - 1; b >= 0; b--) {
+                int index = (int)(bit >>> 3);
+                int mask = 0x80 >>> (int)(bit & 7);
+                if ((bit & 7) == 0)
+                    frame[index] = 0;
+                if ((value >>> b & 1) != 0)
+                    frame[index] |= mask;
+                bit++;
+            }
+        }
+        return bit;
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void putShort(byte[] dest, int offset, int value) {
+        dest[offset] = (byte)(value >> 8);
+        dest[offset + 1] = (byte)value;
+    }
+}
@@ -0,0 +1,260 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Locale;
+
+/**
+ * Writes readings in the same CSV format as AccelerometerReading.toCSV().
+ * Numbers are formatted by hand straight into a reusable byte buffer, which
+ * is written to the channel only when full, so writing a reading costs no
+ * allocation and no system call.
+ */
+public class CsvWriter implements Closeable {
+    // Size of the output buffer in bytes
+    public static final int BUFFER_SIZE = 64 * 1024;
+    // Longest possible line: a 20 character timestamp, three 11 character axes, separators and newline
+    private static final int MAX_LINE_LENGTH = 20 + 3 * 12 + 1;
+    // Longest possible field: a separator and a 20 character number
+    private static final int MAX_FIELD_LENGTH = 21;
+    // Scales for each supported number of decimal places
+    private static final long[] POWERS_OF_TEN = {1, 10, 100, 1000, 10000, 100000, 1000000};
+    // Scaled values at or above this are too large to round exactly, so are formatted with String.format
+    private static final double MAX_FIXED = 1e15;
+
+    private final WritableByteChannel channel;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+    private int position = 0;
+    private long bytesWritten = 0;
+
+    /**
+     * @param channel Where to write the CSV, closed along with this writer
+     */
+    public CsvWriter(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Create (or replace) a CSV file
+     */
+    public static CsvWriter open(File file) throws IOException {
+        return new CsvWriter(new FileOutputStream(file).getChannel());
+    }
+
+    /**
+     * Write AccelerometerReading.CSV_HEADER as a line
+     */
+    public void writeHeader() throws IOException {
+        writeLine(AccelerometerReading.CSV_HEADER);
+    }
+
+    /**
+     * Write an arbitrary ASCII line
+     */
+    public void writeLine(String line) throws IOException {
+        for (int i = 0; i < line.length(); i++) {
+            if (position == buffer.length)
+                flushBuffer();
+            buffer[position++] = (byte)line.charAt(i);
+        }
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write one reading as a line, formatted as "%14d,%+5d,%+5d,%+5d"
+     * @param timestamp POSIX time in ms that this reading was taken at
+     * @param x The X vector of acceleration
+     * @param y The Y vector of acceleration
+     * @param z The Z vector of acceleration
+     */
+    public void writeReading(long timestamp, int x, int y, int z) throws IOException {
+        if (buffer.length - position < MAX_LINE_LENGTH)
+            flushBuffer();
+        position = putNumber(buffer, position, timestamp, 14, false);
+        buffer[position++] = ',';
+        position = putNumber(buffer, position, x, 5, true);
+        buffer[position++] = ',';
+        position = putNumber(buffer, position, y, 5, true);
+        buffer[position++] = ',';
+        position = putNumber(buffer, position, z, 5, true);
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Write the reading under a cursor as a line
+     */
+    public void writeReading(SampleStore.Cursor reading) throws IOException {
+        writeReading(reading.getTimestamp(), reading.getX(), reading.getY(), reading.getZ());
+    }
+
+    /**
+     * Start a line of any number of fields with a timestamp, formatted as "%14d"
+     */
+    public void startLine(long timestamp) throws IOException {
+        if (buffer.length - position < MAX_FIELD_LENGTH)
+            flushBuffer();
+        position = putNumber(buffer, position, timestamp, 14, false);
+    }
+
+    /**
+     * Add a field to the current line, formatted as ",%+5d"
+     */
+    public void writeField(int value) throws IOException {
+        if (buffer.length - position < MAX_FIELD_LENGTH)
+            flushBuffer();
+        buffer[position++] = ',';
+        position = putNumber(buffer, position, value, 5, true);
+    }
+
+    /**
+     * Add a timestamp field to the current line, formatted as ",%14d"
+     */
+    public void writeTimestampField(long timestamp) throws IOException {
+        if (buffer.length - position < MAX_FIELD_LENGTH)
+            flushBuffer();
+        buffer[position++] = ',';
+        position = putNumber(buffer, position, timestamp, 14, false);
+    }
+
+    /**
+     * Add a field to the current line, formatted as ",%.<decimals>f" in Locale.US
+     * @param value The number to write
+     * @param decimals Number of decimal places, from 0 to 6
+     */
+    public void writeField(double value, int decimals) throws IOException {
+        if (decimals < 0 || decimals >= POWERS_OF_TEN.length)
+            throw new IllegalArgumentException(decimals + " decimal places are not supported.");
+        double scaled = Math.abs(value) * POWERS_OF_TEN[decimals];
+        if (!(scaled < MAX_FIXED)) {
+            // NaN, infinite, or too large for a long
+            writeEmptyField();
+            writeAscii(String.format(Locale.US, "%." + decimals + "f", value));
+            return;
+        }
+        if (buffer.length - position < MAX_FIELD_LENGTH)
+            flushBuffer();
+        buffer[position++] = ',';
+        // The sign bit, so -0.0 and small negative numbers keep their '-' as they do with %f
+        position = putFixed(buffer, position, Math.round(scaled), decimals, Double.doubleToRawLongBits(value) < 0);
+    }
+
+    /**
+     * Add an empty field to the current line
+     */
+    public void writeEmptyField() throws IOException {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = ',';
+    }
+
+    /**
+     * Finish the current line
+     */
+    public void endLine() throws IOException {
+        if (position == buffer.length)
+            flushBuffer();
+        buffer[position++] = '\n';
+    }
+
+    /**
+     * Get the number of bytes written so far, including buffered bytes
+     */
+    public long getBytesWritten() {
+        return bytesWritten + position;
+    }
+
+    /**
+     * Write out all buffered bytes
+     */
+    public void flush() throws IOException {
+        flushBuffer();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeAscii(String text) throws IOException {
+        for (int i = 0; i < text.length(); i++) {
+            if (position == buffer.length)
+                flushBuffer();
+            buffer[position++] = (byte)text.charAt(i);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        wrapper.limit(position);
+        wrapper.position(0);
+        while (wrapper.hasRemaining())
+            channel.write(wrapper);
+        bytesWritten += position;
+        position = 0;
+    }
+
+    /* Format a decimal number right justified in a field, like %<width>d or %+<width>d
+     * @param dest Buffer to format into, with room for at least max(width, 20) bytes
+     * @param offset Where to start writing
+     * @param value The number to format
+     * @param width Minimum number of characters, padded on the left with spaces
+     * @param sign Whether to prefix positive numbers and zero with '+'
+     * @return The offset just past the formatted number
+     */
+    static int putNumber(byte[] dest, int offset, long value, int width, boolean sign) {
+        // Work with the negated value so Long.MIN_VALUE does not overflow
+        boolean negative = value < 0;
+        long remaining = negative ? value : -value;
+        int digits = 1;
+        for (long i = remaining / 10; i != 0; i /= 10)
+            digits++;
+        int length = digits + (negative || sign ? 1 : 0);
+        int end = offset + Math.max(width, length);
+        int start = end - length;
+        while (offset < start)
+            dest[offset++] = ' ';
+        if (negative)
+            dest[start] = '-';
+        else if (sign)
+            dest[start] = '+';
+        for (int i = end - 1; i >= end - digits; i--) {
+            dest[i] = (byte)('0' - remaining % 10);
+            remaining /= 10;
+        }
+        return end;
+    }
+
+    /* Format a fixed point number, like %.<decimals>f
+     * @param dest Buffer to format into, with room for at least 20 bytes
+     * @param offset Where to start writing
+     * @param units The magnitude of the number, in units of 10^-decimals
+     * @param decimals Number of digits after the decimal point
+     * @param negative Whether to prefix the number with '-'
+     * @return The offset just past the formatted number
+     */
+    static int putFixed(byte[] dest, int offset, long units, int decimals, boolean negative) {
+        if (negative)
+            dest[offset++] = '-';
+        long scale = POWERS_OF_TEN[decimals];
+        offset = putNumber(dest, offset, units / scale, 0, false);
+        if (decimals == 0)
+            return offset;
+        dest[offset++] = '.';
+        long fraction = units % scale;
+        for (int i = offset + decimals - 1; i >= offset; i--) {
+            dest[i] = (byte)('0' + fraction % 10);
+            fraction /= 10;
+        }
+        return offset + decimals;
+    }
+}
@@ -0,0 +1,94 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * Decoder for the 6 byte records logged by the watchapp.
+ * Every record is big endian. If the first bit is 1 the record is a 47 bit
+ * timestamp (POSIX time in ms), otherwise it holds three 16 bit readings with
+ * the first bit of X replaced by the tag bit.
+ * Records are read in place; the source array is never modified and nothing
+ * is allocated per record.
+ */
+public class DataLogDecoder {
+    // Size of a single record in bytes
+    public static final int RECORD_SIZE = 6;
+
+    /**
+     * Receives the decoded contents of each record in order
+     */
+    public interface Callback {
+        /**
+         * @param timestamp POSIX time in ms of the following reading
+         */
+        void onTimestamp(long timestamp);
+
+        /**
+         * @param x The X vector of acceleration (sign extended from 15 bits)
+         * @param y The Y vector of acceleration
+         * @param z The Z vector of acceleration
+         */
+        void onReading(int x, int y, int z);
+    }
+
+    /**
+     * Decode all records in a data log item
+     * @param data The item, a whole number of records long
+     * @param callback Receives each decoded record
+     * @throws IllegalArgumentException if data is not a whole number of records
+     */
+    public void decode(byte[] data, Callback callback) {
+        decode(data, 0, data.length, callback);
+    }
+
+    /**
+     * Decode the records in a range of a buffer
+     * @param data Buffer holding the records
+     * @param offset Index of the first byte of the first record
+     * @param length Number of bytes to decode, a whole number of records
+     * @param callback Receives each decoded record
+     * @throws IllegalArgumentException if length is not a whole number of records
+     */
+    public void decode(byte[] data, int offset, int length, Callback callback) {
+        if (length % RECORD_SIZE != 0)
+            throw new IllegalArgumentException(length + " bytes is not a whole number of records.");
+        for (int i = offset; i < offset + length; i += RECORD_SIZE) {
+            if (isTimestamp(data, i))
+                callback.onTimestamp(decodeTimestamp(data, i));
+            else
+                callback.onReading(decodeTaggedShort(data, i), decodeShort(data, i + 2), decodeShort(data, i + 4));
+        }
+    }
+
+    /**
+     * Check the tag bit of a record
+     * @return true if the record at offset is a timestamp
+     */
+    public static boolean isTimestamp(byte[] data, int offset) {
+        return (data[offset] & 0x80) != 0;
+    }
+
+    /**
+     * Decode the timestamp record at offset, ignoring the tag bit.
+     * Timestamps are unsigned, so the result is always in [0, 2^47).
+     */
+    public static long decodeTimestamp(byte[] data, int offset) {
+        long ans = data[offset] & 0x7F;
+        for (int i = offset + 1; i < offset + RECORD_SIZE; i++) {
+            ans <<= 8;
+            ans |= data[i] & 0xFF;
+        }
+        return ans;
+    }
+
+    /* Decode a big endian 16 bit two's complement value
+     */
+    static int decodeShort(byte[] data, int offset) {
+        return (short)((data[offset] & 0xFF) << 8 | data[offset + 1] & 0xFF);
+    }
+
+    /* Decode a big endian 16 bit value whose first bit is the tag bit. The
+     * remaining 15 bits are sign extended.
+     */
+    static int decodeTaggedShort(byte[] data, int offset) {
+        return (data[offset] << 25 >> 17) | data[offset + 1] & 0xFF;
+    }
+}
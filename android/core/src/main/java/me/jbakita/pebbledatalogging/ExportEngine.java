@@ -0,0 +1,391 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Saves readings to files on a bounded pool of worker threads.
+ * Every (activity, sensor) pair is an independent job writing its own CSV
+ * and binary files, plus a features CSV if the sensor computes window
+ * features, so jobs run in parallel. A merged job instead writes every
+ * sensor of an activity to one CSV on a common time grid. Progress is
+ * reported as readings (or merged rows) written, warnings and errors are
+ * collected into one summary, and an export can be cancelled part way.
+ * Throughput is recorded in getMetrics().
+ */
+public class ExportEngine {
+    // Readings written between progress reports
+    private static final int PROGRESS_INTERVAL = 4096;
+    // Readings further than this from the expected range trigger a warning (ms)
+    private static final long WARNING_SLACK = 1000;
+
+    private final ExecutorService executor;
+    private final Metrics metrics = new Metrics("Export");
+    private final Metrics.Counter jobsCompleted = metrics.counter("Jobs", "jobs", false);
+    private final Metrics.Counter jobsFailed = metrics.counter("Failed", "jobs", false);
+    private final Metrics.Counter readingsWritten = metrics.counter("Readings", "readings", false);
+    private final Metrics.Counter bytesWritten = metrics.counter("Written", "bytes", false);
+    private final Metrics.Histogram jobMillis = metrics.histogram("Job time", "ms");
+    private final Metrics.Histogram jobThroughput = metrics.histogram("Job throughput", "readings/s");
+
+    /**
+     * Receives export events. Called from worker threads.
+     */
+    public interface Listener {
+        /**
+         * @param written Readings written so far, across all jobs
+         * @param total Readings to write in all
+         */
+        void onProgress(long written, long total);
+
+        /**
+         * A file has been completely written
+         */
+        void onFileWritten(File file);
+
+        /**
+         * Every job has finished, failed or been cancelled
+         */
+        void onFinished(Summary summary);
+    }
+
+    /**
+     * The readings of one sensor during one activity, or of several sensors
+     * merged onto one time grid
+     */
+    public static class Job {
+        final String activity;
+        final Sensor sensor;
+        // Only set for merged jobs
+        final List<Sensor> sensors;
+        final long period;
+        final MergedExport.Interpolation interpolation;
+        final long startTime;
+        final long stopTime;
+        final File csvFile;
+        final File binaryFile;
+        final File featuresFile;
+
+        /**
+         * @param activity The name of the activity
+         * @param sensor The sensor to save readings from
+         * @param startTime Save readings taken at or after this time
+         * @param stopTime Save readings taken before this time
+         * @param dir Where to save
+         * @param baseName File name to save as, without an extension
+         */
+        public Job(String activity, Sensor sensor, long startTime, long stopTime, File dir, String baseName) {
+            this.activity = activity;
+            this.sensor = sensor;
+            this.sensors = null;
+            this.period = 0;
+            this.interpolation = null;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.csvFile = new File(dir, baseName + ".csv");
+            this.binaryFile = new File(dir, baseName + ".pdlb");
+            this.featuresFile = new File(dir, baseName + " features.csv");
+        }
+
+        /**
+         * Create a merged job, writing one CSV with a row every period
+         * @param sensors The sensors to save readings from, in column order
+         * @param period Time between rows (ms)
+         * @see MergedExport
+         */
+        public Job(String activity, List<Sensor> sensors, long startTime, long stopTime, File dir, String baseName,
+                   long period, MergedExport.Interpolation interpolation) {
+            this.activity = activity;
+            this.sensor = null;
+            this.sensors = sensors;
+            this.period = period;
+            this.interpolation = interpolation;
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+            this.csvFile = new File(dir, baseName + ".csv");
+            this.binaryFile = null;
+            this.featuresFile = null;
+        }
+
+        /* Get what the job saves readings from, for messages
+         */
+        String getSource() {
+            return sensor != null ? sensor.getTitle() : "all sensors";
+        }
+
+        /* Get the number of readings, or rows if merged, the job will write
+         */
+        long getCount() {
+            if (sensors != null)
+                return new MergedExport(sensors, startTime, stopTime, period, interpolation).getRowCount();
+            return sensor.getReadings().cursor(startTime, stopTime).getCount();
+        }
+    }
+
+    /**
+     * The outcome of an export
+     */
+    public static class Summary {
+        private final List<String> warnings;
+        private final List<String> errors;
+        private final int filesWritten;
+        private final boolean cancelled;
+
+        Summary(List<String> warnings, List<String> errors, int filesWritten, boolean cancelled) {
+            this.warnings = warnings;
+            this.errors = errors;
+            this.filesWritten = filesWritten;
+            this.cancelled = cancelled;
+        }
+
+        public List<String> getWarnings() {
+            return warnings;
+        }
+
+        public List<String> getErrors() {
+            return errors;
+        }
+
+        public int getFilesWritten() {
+            return filesWritten;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isSuccessful() {
+            return !cancelled && errors.isEmpty();
+        }
+    }
+
+    /**
+     * @param threads Maximum number of jobs to run at once
+     */
+    public ExportEngine(int threads) {
+        executor = Executors.newFixedThreadPool(threads);
+    }
+
+    /**
+     * Create an engine with one thread per processor
+     */
+    public ExportEngine() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Start running jobs
+     * @return A handle to cancel the export with
+     */
+    public Export submit(List<Job> jobs, Listener listener) {
+        Export export = new Export(jobs, listener);
+        export.start();
+        return export;
+    }
+
+    /**
+     * Get the number, size and speed of completed jobs
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Stop accepting exports and cancel any that are running
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * A running export
+     */
+    public class Export {
+        private final List<Job> jobs;
+        private final Listener listener;
+        private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+        private final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger remaining;
+        private final AtomicInteger filesWritten = new AtomicInteger();
+        private final AtomicLong written = new AtomicLong();
+        // Counted by the first worker, before any job runs
+        private volatile long total;
+        private volatile boolean cancelled = false;
+
+        private Export(List<Job> jobs, Listener listener) {
+            this.jobs = jobs;
+            this.listener = listener;
+            this.remaining = new AtomicInteger(jobs.size());
+        }
+
+        private void start() {
+            if (jobs.isEmpty()) {
+                finish();
+                return;
+            }
+            // Counting searches every sensor's readings, so keep it off the submitting thread
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long readings = 0;
+                    for (Job job : jobs)
+                        readings += job.getCount();
+                    total = readings;
+                    runJobs();
+                }
+            });
+        }
+
+        private void runJobs() {
+            for (final Job job : jobs) {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            // Jobs still queued when cancelled finish immediately
+                            if (!cancelled) {
+                                if (job.sensors != null)
+                                    runMergedJob(job);
+                                else
+                                    runJob(job);
+                            }
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            jobsFailed.increment();
+                            errors.add("Unable to save " + job.activity + " from " + job.getSource() + ": " + e.getMessage());
+                        } finally {
+                            if (remaining.decrementAndGet() == 0)
+                                finish();
+                        }
+                    }
+                });
+            }
+        }
+
+        /**
+         * Stop writing. Files not yet completely written are deleted.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void finish() {
+            listener.onFinished(new Summary(new ArrayList<>(warnings), new ArrayList<>(errors), filesWritten.get(), cancelled));
+        }
+
+        private void runJob(Job job) throws IOException {
+            long begin = System.nanoTime();
+            SampleStore.Cursor reading = job.sensor.getReadings().cursor(job.startTime, job.stopTime);
+            long firstReading = 0;
+            long lastReading = 0;
+            int sinceProgress = 0;
+            CsvWriter writer = CsvWriter.open(job.csvFile);
+            BinaryExportWriter binaryWriter = null;
+            FeatureExtractor features = job.sensor.getFeatures();
+            boolean complete = false;
+            try {
+                binaryWriter = new BinaryExportWriter(job.binaryFile, job.sensor.getTitle(), job.activity);
+                // Write the column headers
+                writer.writeHeader();
+                // Write all the readings in range
+                while (reading.next()) {
+                    if (firstReading == 0)
+                        firstReading = reading.getTimestamp();
+                    writer.writeReading(reading);
+                    binaryWriter.writeReading(reading);
+                    lastReading = reading.getTimestamp();
+                    if (++sinceProgress == PROGRESS_INTERVAL) {
+                        if (cancelled)
+                            return;
+                        listener.onProgress(written.addAndGet(sinceProgress), total);
+                        sinceProgress = 0;
+                    }
+                }
+                listener.onProgress(written.addAndGet(sinceProgress), total);
+                if (features != null) {
+                    CsvWriter featuresWriter = CsvWriter.open(job.featuresFile);
+                    try {
+                        features.writeCsv(featuresWriter, job.sensor.getReadings(), job.startTime, job.stopTime);
+                    } finally {
+                        featuresWriter.close();
+                    }
+                }
+                complete = true;
+            } finally {
+                writer.close();
+                if (binaryWriter != null)
+                    binaryWriter.close();
+                if (!complete) {
+                    job.csvFile.delete();
+                    job.binaryFile.delete();
+                    job.featuresFile.delete();
+                }
+            }
+            filesWritten.addAndGet(2);
+            listener.onFileWritten(job.csvFile);
+            listener.onFileWritten(job.binaryFile);
+            if (features != null) {
+                filesWritten.incrementAndGet();
+                listener.onFileWritten(job.featuresFile);
+            }
+            long elapsed = System.nanoTime() - begin;
+            jobsCompleted.increment();
+            readingsWritten.add(reading.getCount());
+            bytesWritten.add(job.csvFile.length() + job.binaryFile.length() + (features != null ? job.featuresFile.length() : 0));
+            jobMillis.record(elapsed / 1000000);
+            jobThroughput.record(reading.getCount() * 1000000000L / Math.max(1, elapsed));
+            // Do some validation on the dataset
+            if (lastReading + WARNING_SLACK < job.stopTime)
+                warnings.add(job.activity + " from " + job.sensor.getTitle() + " stopped sooner than expected.");
+            if (firstReading - WARNING_SLACK > job.startTime)
+                warnings.add(job.activity + " from " + job.sensor.getTitle() + " started later than expected.");
+        }
+
+        private void runMergedJob(Job job) throws IOException {
+            long begin = System.nanoTime();
+            MergedExport merged = new MergedExport(job.sensors, job.startTime, job.stopTime, job.period, job.interpolation);
+            long rows = 0;
+            int sinceProgress = 0;
+            CsvWriter writer = CsvWriter.open(job.csvFile);
+            boolean complete = false;
+            try {
+                merged.writeHeader(writer);
+                while (merged.next()) {
+                    merged.writeRow(writer);
+                    rows++;
+                    if (++sinceProgress == PROGRESS_INTERVAL) {
+                        if (cancelled)
+                            return;
+                        listener.onProgress(written.addAndGet(sinceProgress), total);
+                        sinceProgress = 0;
+                    }
+                }
+                listener.onProgress(written.addAndGet(sinceProgress), total);
+                complete = true;
+            } finally {
+                writer.close();
+                if (!complete)
+                    job.csvFile.delete();
+            }
+            filesWritten.incrementAndGet();
+            listener.onFileWritten(job.csvFile);
+            long elapsed = System.nanoTime() - begin;
+            jobsCompleted.increment();
+            readingsWritten.add(rows);
+            bytesWritten.add(job.csvFile.length());
+            jobMillis.record(elapsed / 1000000);
+            jobThroughput.record(rows * 1000000000L / Math.max(1, elapsed));
+        }
+    }
+}
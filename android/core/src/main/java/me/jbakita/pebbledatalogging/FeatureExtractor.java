@@ -0,0 +1,405 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.IOException;
+
+/**
+ * Computes features of a sensor's readings over overlapping windows as the
+ * readings arrive, so no second pass over the session is needed.
+ * For X, Y, Z and the magnitude this gives the mean, variance, minimum,
+ * maximum, zero crossings and band energy of every window of windowSize
+ * readings, starting every hop readings. Zero crossings and band energy are
+ * taken from the signal after a band-pass filter, which removes gravity.
+ *
+ * Every reading costs O(1): sums are kept as running sums over ring
+ * buffers, and minimums and maximums as monotonic queues. Values are kept
+ * in fixed point so the running sums are exact.
+ *
+ * Windows are stored by reading index, so their times always reflect the
+ * store's current (corrected) timestamps. An extractor for a store which
+ * keeps only recent readings may keep only a fixed number of recent
+ * windows, preallocated. Only one thread may add readings, but any thread
+ * may read windows.
+ */
+public class FeatureExtractor {
+    // About 5s at 25Hz, starting every 2.5s
+    public static final int DEFAULT_WINDOW_SIZE = 128;
+    public static final int DEFAULT_HOP = 64;
+    // Human movement band
+    public static final double DEFAULT_LOW_HZ = 0.5;
+    public static final double DEFAULT_HIGH_HZ = 3;
+    // The watch always samples at 25Hz
+    public static final double SAMPLE_RATE = 25;
+    public static final String[] CHANNELS = {"X", "Y", "Z", "Magnitude"};
+    public static final String[] FEATURES = {"Mean", "Variance", "Min", "Max", "ZeroCrossings", "BandEnergy"};
+    // Fixed point scale of stored values (1/16 mG)
+    private static final int SCALE = 16;
+
+    private final int windowSize;
+    private final int hop;
+    // Number of windows kept if older ones are overwritten, else 0
+    private final int capacity;
+    private final Channel[] channels = new Channel[CHANNELS.length];
+    // Number of readings added
+    private long count = 0;
+    // Replaced rather than resized so other threads never see a partial copy
+    private volatile Table table;
+    // Written only after a window is complete so other threads can read safely
+    private volatile int size = 0;
+
+    /**
+     * Use the default windows and band
+     */
+    public FeatureExtractor() {
+        this(DEFAULT_WINDOW_SIZE, DEFAULT_HOP, DEFAULT_LOW_HZ, DEFAULT_HIGH_HZ);
+    }
+
+    /**
+     * @param windowSize Number of readings in each window
+     * @param hop Number of readings between the starts of windows
+     * @param lowHz Lower edge of the band for band energy and zero crossings
+     * @param highHz Upper edge of the band
+     */
+    public FeatureExtractor(int windowSize, int hop, double lowHz, double highHz) {
+        this(windowSize, hop, lowHz, highHz, 0);
+    }
+
+    /**
+     * @param windowSize Number of readings in each window
+     * @param hop Number of readings between the starts of windows
+     * @param lowHz Lower edge of the band for band energy and zero crossings
+     * @param highHz Upper edge of the band
+     * @param capacity Number of most recent windows to keep, or 0 to keep every window
+     */
+    public FeatureExtractor(int windowSize, int hop, double lowHz, double highHz, int capacity) {
+        if (windowSize < 2 || hop < 1)
+            throw new IllegalArgumentException("Windows must be at least 2 readings, at least 1 reading apart.");
+        if (lowHz <= 0 || highHz <= lowHz || highHz >= SAMPLE_RATE / 2)
+            throw new IllegalArgumentException("Invalid band " + lowHz + "-" + highHz + "Hz.");
+        if (capacity < 0 || capacity == 1)
+            throw new IllegalArgumentException("Must keep at least 2 windows, or every window.");
+        this.windowSize = windowSize;
+        this.hop = hop;
+        this.capacity = capacity;
+        table = new Table(capacity == 0 ? 64 : capacity);
+        for (int i = 0; i < channels.length; i++)
+            channels[i] = new Channel(windowSize, lowHz, highHz);
+    }
+
+    /**
+     * Get the approximate heap used by an extractor keeping only its most
+     * recent windows in bytes
+     * @param windowSize Number of readings in each window
+     * @param capacity Number of most recent windows kept
+     */
+    public static long getMemoryUsage(int windowSize, int capacity) {
+        // Each channel's values, filtered values, crossings and two queues of indexes
+        long channels = CHANNELS.length * (6 * 16 + (4L + 8 + 1 + 2 * 8) * windowSize);
+        // Window starts and one column per channel feature
+        long table = (1 + CHANNELS.length * FEATURES.length) * (16 + 4L * capacity);
+        return channels + table;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getHop() {
+        return hop;
+    }
+
+    /**
+     * Add the next reading of the sensor
+     */
+    public void add(int x, int y, int z) {
+        channels[0].add(x * SCALE, count);
+        channels[1].add(y * SCALE, count);
+        channels[2].add(z * SCALE, count);
+        // As AccelerometerReading.getMagnitude
+        channels[3].add((int)Math.round(Math.sqrt((long)x * x + (long)y * y + (long)z * z) * SCALE), count);
+        count++;
+        if (count >= windowSize && (count - windowSize) % hop == 0)
+            addWindow((int)(count - windowSize));
+    }
+
+    private void addWindow(int start) {
+        Table table = this.table;
+        if (capacity == 0 && size == table.starts.length) {
+            table = table.grow();
+            this.table = table;
+        }
+        int slot = slot(size);
+        table.starts[slot] = start;
+        int column = 0;
+        for (Channel channel : channels)
+            column = channel.putFeatures(table.columns, column, slot);
+        size++;
+    }
+
+    /* Get the index into the table of a window
+     */
+    private int slot(int window) {
+        return capacity == 0 ? window : window % capacity;
+    }
+
+    /**
+     * Get the number of complete windows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get the index of the oldest window still kept, which is 0 unless only
+     * a fixed number of windows are kept
+     */
+    public int getFirstWindow() {
+        // The oldest slot may be being overwritten
+        return capacity == 0 ? 0 : Math.max(0, size - capacity + 1);
+    }
+
+    /**
+     * Get the index of the first reading of a window
+     */
+    public int getStart(int window) {
+        checkWindow(window);
+        return table.starts[slot(window)];
+    }
+
+    /**
+     * Get one feature of a window
+     * @param window The index of the window
+     * @param channel Index into CHANNELS
+     * @param feature Index into FEATURES
+     */
+    public float getFeature(int window, int channel, int feature) {
+        checkWindow(window);
+        return table.columns[channel * FEATURES.length + feature][slot(window)];
+    }
+
+    /**
+     * Get the index of the first window starting at or after a reading
+     */
+    public int indexOf(int reading) {
+        int count = size;
+        int[] starts = table.starts;
+        int low = getFirstWindow();
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[slot(mid)] < reading)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Write a CSV header and every window lying entirely within a time range
+     * @param readings The readings these features were computed from
+     * @param startTime Write windows starting at or after this time
+     * @param stopTime Write windows ending before this time
+     * @return The number of windows written
+     */
+    public int writeCsv(CsvWriter writer, SampleStore readings, long startTime, long stopTime) throws IOException {
+        StringBuilder header = new StringBuilder("Start(ms)     ,End(ms)       ");
+        for (String channel : CHANNELS)
+            for (String feature : FEATURES)
+                header.append(',').append(channel).append(' ').append(feature);
+        writer.writeLine(header.toString());
+        int count = size;
+        int written = 0;
+        int first = indexOf(readings.indexOf(startTime));
+        if (first >= count)
+            return 0;
+        // Window starts and ends each only move forward, so read them with a cursor apiece
+        SampleStore.Cursor starts = readings.cursor(getStart(first), readings.size());
+        SampleStore.Cursor ends = readings.cursor(getStart(first), readings.size());
+        for (int window = first; window < count; window++) {
+            int start = getStart(window);
+            ends.seek(start + windowSize - 1);
+            long end = ends.getTimestamp();
+            if (end >= stopTime)
+                break;
+            starts.seek(start);
+            writer.startLine(starts.getTimestamp());
+            writer.writeTimestampField(end);
+            for (int channel = 0; channel < CHANNELS.length; channel++)
+                for (int feature = 0; feature < FEATURES.length; feature++)
+                    writer.writeField(getFeature(window, channel, feature), 3);
+            writer.endLine();
+            written++;
+        }
+        return written;
+    }
+
+    private void checkWindow(int window) {
+        if (window < getFirstWindow() || window >= size)
+            throw new IndexOutOfBoundsException("Window " + window + " of " + size);
+    }
+
+    /* Window start indexes and one column per channel feature
+     */
+    private static class Table {
+        final int[] starts;
+        final float[][] columns = new float[CHANNELS.length * FEATURES.length][];
+
+        Table(int capacity) {
+            starts = new int[capacity];
+            for (int i = 0; i < columns.length; i++)
+                columns[i] = new float[capacity];
+        }
+
+        Table grow() {
+            Table larger = new Table(starts.length * 2);
+            System.arraycopy(starts, 0, larger.starts, 0, starts.length);
+            for (int i = 0; i < columns.length; i++)
+                System.arraycopy(columns[i], 0, larger.columns[i], 0, starts.length);
+            return larger;
+        }
+    }
+
+    /* Running statistics of one channel over the last windowSize readings
+     */
+    private static class Channel {
+        private final int windowSize;
+        // Readings in the window, in fixed point, indexed by reading % windowSize
+        private final int[] values;
+        private long sum = 0;
+        private long sumOfSquares = 0;
+        // Reading indexes of candidate minimums and maximums, oldest first
+        private final MonotonicQueue minimums;
+        private final MonotonicQueue maximums;
+        // Band-pass biquad coefficients and state
+        private final double b0, b2, a1, a2;
+        private double in1, in2, out1, out2;
+        // Band-passed readings in the window, and the sum of their squares
+        private final double[] filtered;
+        private double energy = 0;
+        // 1 where the band-passed signal changed sign from the previous reading
+        private final byte[] crossings;
+        private int crossingCount = 0;
+
+        Channel(int windowSize, double lowHz, double highHz) {
+            this.windowSize = windowSize;
+            values = new int[windowSize];
+            filtered = new double[windowSize];
+            crossings = new byte[windowSize];
+            minimums = new MonotonicQueue(windowSize, values, true);
+            maximums = new MonotonicQueue(windowSize, values, false);
+            // Constant peak gain band-pass from the Audio EQ Cookbook
+            double center = Math.sqrt(lowHz * highHz);
+            double w0 = 2 * Math.PI * center / SAMPLE_RATE;
+            double alpha = Math.sin(w0) / (2 * center / (highHz - lowHz));
+            double a0 = 1 + alpha;
+            b0 = alpha / a0;
+            b2 = -alpha / a0;
+            a1 = -2 * Math.cos(w0) / a0;
+            a2 = (1 - alpha) / a0;
+        }
+
+        void add(int value, long index) {
+            int slot = (int)(index % windowSize);
+            double previous = out1;
+            double output = b0 * value + b2 * in2 - a1 * out1 - a2 * out2;
+            in2 = in1;
+            in1 = value;
+            out2 = out1;
+            out1 = output;
+            byte crossed = (byte)(index > 0 && (output < 0) != (previous < 0) ? 1 : 0);
+            if (index >= windowSize) {
+                // Replace the reading leaving the window
+                int old = values[slot];
+                sum -= old;
+                sumOfSquares -= (long)old * old;
+                energy -= filtered[slot] * filtered[slot];
+                crossingCount -= crossings[slot];
+            }
+            values[slot] = value;
+            sum += value;
+            sumOfSquares += (long)value * value;
+            filtered[slot] = output;
+            energy += output * output;
+            crossings[slot] = crossed;
+            crossingCount += crossed;
+            minimums.add(index);
+            maximums.add(index);
+            if (slot == windowSize - 1) {
+                // Resum once per window so floating point error cannot build up
+                energy = 0;
+                for (double f : filtered)
+                    energy += f * f;
+            }
+        }
+
+        /* Store this channel's features for the window ending at the last reading
+         * @return The next column
+         */
+        int putFeatures(float[][] columns, int column, int row) {
+            double mean = sum / (double)windowSize;
+            double variance = Math.max(0, sumOfSquares / (double)windowSize - mean * mean);
+            // The oldest reading's crossing is with a reading outside the window
+            int oldest = minimums.oldestSlot();
+            columns[column][row] = (float)(mean / SCALE);
+            columns[column + 1][row] = (float)(variance / (SCALE * SCALE));
+            columns[column + 2][row] = (float)values[minimums.first()] / SCALE;
+            columns[column + 3][row] = (float)values[maximums.first()] / SCALE;
+            columns[column + 4][row] = crossingCount - crossings[oldest];
+            columns[column + 5][row] = (float)(Math.max(0, energy) / windowSize / (SCALE * SCALE));
+            return column + FEATURES.length;
+        }
+    }
+
+    /* Reading indexes whose values are increasing (for minimums) or
+     * decreasing (for maximums), so the first is the extreme of the window.
+     * Each index is added and removed once, so updates are amortized O(1).
+     */
+    private static class MonotonicQueue {
+        private final int windowSize;
+        private final int[] values;
+        private final boolean minimum;
+        // Ring of reading indexes, one more than the window so it never fills
+        private final long[] indexes;
+        private int head = 0;
+        private int length = 0;
+        private long newest = -1;
+
+        MonotonicQueue(int windowSize, int[] values, boolean minimum) {
+            this.windowSize = windowSize;
+            this.values = values;
+            this.minimum = minimum;
+            indexes = new long[windowSize + 1];
+        }
+
+        void add(long index) {
+            int value = values[(int)(index % windowSize)];
+            // Drop readings which can no longer be the extreme
+            while (length > 0) {
+                int last = values[(int)(indexes[(head + length - 1) % indexes.length] % windowSize)];
+                if (minimum ? last < value : last > value)
+                    break;
+                length--;
+            }
+            indexes[(head + length) % indexes.length] = index;
+            length++;
+            newest = index;
+            // Drop readings which have left the window
+            while (indexes[head] <= index - windowSize) {
+                head = (head + 1) % indexes.length;
+                length--;
+            }
+        }
+
+        /* Get the slot of the extreme reading in the window
+         */
+        int first() {
+            return (int)(indexes[head] % windowSize);
+        }
+
+        /* Get the slot of the oldest reading in the window
+         */
+        int oldestSlot() {
+            return (int)((newest + 1) % windowSize);
+        }
+    }
+}
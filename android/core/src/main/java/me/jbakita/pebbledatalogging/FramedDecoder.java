@@ -0,0 +1,62 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * Decoder for the framed encoding optionally logged by the watchapp
+ * (FRAMED_ENCODING in logging.c).
+ * A framed session is logged under its sensor's tag plus FRAMED_TAG, and
+ * each item holds one accelerometer batch: a version byte, the number of
+ * readings (0 to MAX_BATCH), the 48 bit big endian POSIX time in ms of the
+ * first reading, then big endian 16 bit X, Y and Z for each reading. Unused
+ * reading slots at the end of an item are zero.
+ * A frame with no readings only carries a timestamp, and ends a session.
+ * Records are read in place and nothing is allocated per item.
+ */
+public class FramedDecoder {
+    public static final int VERSION = 1;
+    // Added to the sensor's data log tag for framed sessions
+    public static final int FRAMED_TAG = 0x200;
+    // Maximum number of readings in a frame
+    public static final int MAX_BATCH = 25;
+    static final int HEADER_SIZE = 2 + 6;
+    // Size of each data log item in bytes
+    public static final int ITEM_SIZE = HEADER_SIZE + MAX_BATCH * DataLogDecoder.RECORD_SIZE;
+
+    /**
+     * Check if a data log tag belongs to a framed session
+     */
+    public static boolean isFramed(int tag) {
+        return (tag & FRAMED_TAG) != 0;
+    }
+
+    /**
+     * Get the sensor's tag from a framed session's data log tag
+     */
+    public static int getSensorTag(int tag) {
+        return tag & ~FRAMED_TAG;
+    }
+
+    /**
+     * Decode one frame: its timestamp, then each of its readings
+     * @param data Buffer holding the item
+     * @param offset Index of the first byte of the item
+     * @param length Length of the item in bytes
+     * @param callback Receives the timestamp and each reading
+     * @throws IllegalArgumentException if the item is not a valid frame
+     */
+    public void decode(byte[] data, int offset, int length, DataLogDecoder.Callback callback) {
+        if (length < HEADER_SIZE)
+            throw new IllegalArgumentException(length + " bytes is too short for a frame.");
+        int version = data[offset] & 0xFF;
+        if (version != VERSION)
+            throw new IllegalArgumentException("Unsupported frame version " + version + ".");
+        int count = data[offset + 1] & 0xFF;
+        if (count > MAX_BATCH || HEADER_SIZE + count * DataLogDecoder.RECORD_SIZE > length)
+            throw new IllegalArgumentException("Frame of " + length + " bytes cannot hold " + count + " readings.");
+        long timestamp = 0;
+        for (int i = offset + 2; i < offset + HEADER_SIZE; i++)
+            timestamp = timestamp << 8 | data[i] & 0xFF;
+        callback.onTimestamp(timestamp);
+        for (int i = offset + HEADER_SIZE; i < offset + HEADER_SIZE + count * DataLogDecoder.RECORD_SIZE; i += DataLogDecoder.RECORD_SIZE)
+            callback.onReading(DataLogDecoder.decodeShort(data, i), DataLogDecoder.decodeShort(data, i + 2), DataLogDecoder.decodeShort(data, i + 4));
+    }
+}
@@ -0,0 +1,401 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves decoding off the thread that receives data log items.
+ * The receiving thread only copies items into a PacketRing. A dedicated
+ * worker thread decodes them in batches and tells the listener that data has
+ * changed at most once per frame. Errors are reported at most once per frame
+ * too, with repeats of the same error counted rather than reported one by
+ * one. The worker also syncs journaled sensors
+ * to storage periodically, publishes new readings to a StreamTap if one
+ * is set, and records received items while capturing. Sensors keeping only
+ * recent readings are checked after every item, so the user is warned
+ * before readings held back for an unsaved activity are overwritten. Throughput,
+ * latency, queue depth and errors are recorded in getMetrics().
+ */
+public class IngestionPipeline {
+    // Number of queued items before the receiver has to wait
+    public static final int RING_CAPACITY = 4096;
+    // Maximum number of items decoded between frame checks
+    private static final int BATCH_SIZE = 256;
+    // Minimum time between data changed notifications
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // Maximum time between journal syncs while data is arriving
+    private static final long SYNC_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Size at which a capture is continued in a new file
+    public static final int MAX_CAPTURE_BYTES = 32 * 1024 * 1024;
+    // Number of capture files kept, including the current one
+    public static final int MAX_CAPTURES = 8;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final PacketRing ring = new PacketRing(RING_CAPACITY);
+    private final String[] features;
+    private final SensorRegistry registry;
+    // Live view of the registry's sensors
+    private final List<Sensor> sensors;
+    private final PacketProcessor processor;
+    private final Listener listener;
+    private final Thread worker;
+    // Work to run on the worker thread between batches
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile StreamTap tap = null;
+    // Where received items are being recorded, only used on the worker thread
+    private File captureDir = null;
+    private CaptureWriter capture = null;
+    // The error to report at the next frame and how many times it occurred, only used on the worker thread
+    private String pendingError = null;
+    private int pendingErrorCount = 0;
+    private final Metrics metrics = new Metrics("Ingestion");
+    private final Metrics.Counter items = metrics.counter("Items", "items", true);
+    private final Metrics.Counter bytes = metrics.counter("Received", "bytes", true);
+    private final Metrics.Histogram decodeNanos = metrics.histogram("Decode time", "ns");
+    private final Metrics.Histogram queueDepth = metrics.histogram("Queue depth", "items");
+    private final Metrics.Histogram syncMicros = metrics.histogram("Journal sync time", "us");
+    private final Metrics.Counter failed = metrics.counter("Failed", "items", false);
+
+    /**
+     * Receives pipeline events. Called from the worker thread.
+     */
+    public interface Listener {
+        /**
+         * Sensors have been added or have new readings since the last call
+         */
+        void onDataChanged();
+
+        /**
+         * An item could not be processed and was discarded, or pinned
+         * readings are about to be or have been overwritten. An error
+         * repeated within a frame is reported once, with its count.
+         * @param message A human-readable description of the problem
+         */
+        void onError(String message);
+    }
+
+    /**
+     * @param features Sensor names indexed by data log tag
+     * @param registry Where to find and create sensors
+     * @param listener Receives data changed and error notifications
+     */
+    public IngestionPipeline(String[] features, final SensorRegistry registry, Listener listener) {
+        this.features = features;
+        this.registry = registry;
+        this.sensors = registry.getSensors();
+        this.processor = new PacketProcessor(features, registry, metrics);
+        this.listener = listener;
+        this.worker = new Thread(new Worker(), "IngestionPipeline");
+        metrics.gauge("Receiver stalls", "items", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return ring.getStallCount();
+            }
+        });
+        metrics.gauge("Heap per reading", "bytes", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                long readings = 0;
+                for (Sensor sensor : registry.getSensors())
+                    readings += sensor.getReadings().size();
+                Runtime runtime = Runtime.getRuntime();
+                return readings == 0 ? 0 : (runtime.totalMemory() - runtime.freeMemory()) / readings;
+            }
+        });
+    }
+
+    /**
+     * Get the throughput, latency, queue depth and error counts of ingestion
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void start() {
+        worker.start();
+    }
+
+    /**
+     * Publish readings to a tap as they are decoded, or stop if null.
+     * The tap is not closed when it is replaced.
+     */
+    public void setTap(StreamTap tap) {
+        this.tap = tap;
+    }
+
+    /**
+     * Record received items to captures in a directory, so the session can
+     * be replayed with CaptureReplay. Capturing starts between batches, so
+     * items already queued may or may not be recorded. Items are written on
+     * the worker thread and flushed whenever journals are synced. A capture
+     * is continued in a new file once it reaches MAX_CAPTURE_BYTES, and only
+     * the newest MAX_CAPTURES captures in the directory are kept.
+     */
+    public void startCapture(final File dir) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCapture();
+                captureDir = dir;
+                openCapture();
+            }
+        });
+    }
+
+    /**
+     * Stop recording received items between batches, and close the capture
+     */
+    public void stopCapture() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                closeCapture();
+            }
+        });
+    }
+
+    /* Start a new capture file in captureDir, giving up on capturing if it
+     * cannot be created
+     */
+    private void openCapture() {
+        try {
+            capture = CaptureWriter.create(captureDir, features, MAX_CAPTURES);
+        } catch (IOException e) {
+            captureDir = null;
+            reportError("Unable to record received data for replay.");
+        }
+    }
+
+    private void closeCapture() {
+        captureDir = null;
+        if (capture == null)
+            return;
+        try {
+            capture.close();
+        } catch (IOException e) {
+            reportError("Unable to record received data for replay.");
+        }
+        capture = null;
+    }
+
+    /* Report an error at the next frame. A different error reports the
+     * pending one straight away, so no error is hidden behind another.
+     */
+    private void reportError(String message) {
+        if (message == null)
+            message = "An item could not be processed.";
+        if (pendingError != null && !pendingError.equals(message))
+            flushError();
+        pendingError = message;
+        pendingErrorCount++;
+    }
+
+    private void flushError() {
+        if (pendingError == null)
+            return;
+        String message = pendingErrorCount == 1 ? pendingError : pendingError + " (" + pendingErrorCount + " times)";
+        pendingError = null;
+        pendingErrorCount = 0;
+        listener.onError(message);
+    }
+
+    /* Record an item to the capture, rotating to a new file when it is full
+     */
+    private void record(UUID logUuid, int tag, long timestamp, long receivedAt, byte[] data, int length) {
+        try {
+            capture.write(receivedAt, logUuid, tag, timestamp, data, length);
+            if (capture.size() >= MAX_CAPTURE_BYTES) {
+                capture.close();
+                capture = null;
+                openCapture();
+            }
+        } catch (IOException e) {
+            closeCapture();
+            reportError("Unable to record received data for replay.");
+        }
+    }
+
+    /**
+     * Queue a data log item for decoding. Blocks if the queue is full.
+     * Must only be called from one thread.
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     * @param data The item, which is copied and may be reused once this returns
+     */
+    public void receive(UUID logUuid, int tag, byte[] data) {
+        ring.put(logUuid, tag, data);
+    }
+
+    /**
+     * Queue a data log item of a session with the given timestamp, which is
+     * kept in captures. Blocks if the queue is full. Must only be called from
+     * one thread.
+     */
+    public void receive(UUID logUuid, int tag, long timestamp, byte[] data) {
+        ring.put(logUuid, tag, timestamp, data, data.length);
+    }
+
+    /**
+     * Queue the first length bytes of a buffer as a data log item.
+     * Blocks if the queue is full. Must only be called from one thread.
+     */
+    public void receive(UUID logUuid, int tag, byte[] data, int length) {
+        ring.put(logUuid, tag, data, length);
+    }
+
+    /**
+     * Mark the end of a data log session, once its queued items have been
+     * decoded, so its stream state can be freed. Blocks if the queue is full.
+     * Must only be called from the thread items are received on.
+     */
+    public void finishSession(UUID logUuid, int tag) {
+        // Data log items are never empty, so an empty item marks the end
+        ring.put(logUuid, tag, EMPTY, 0);
+    }
+
+    /**
+     * Forget the stream state of every session, such as after clearing the
+     * registry. Must only be called on the worker thread, from a task.
+     */
+    public void clearSessions() {
+        processor.clear();
+    }
+
+    /**
+     * Run a task on the worker thread between batches, so it never overlaps
+     * with item processing. Tasks still queued when the pipeline stops are
+     * run before the worker exits.
+     */
+    public void execute(Runnable task) {
+        tasks.add(task);
+        ring.wake();
+    }
+
+    /**
+     * Stop the worker once every queued item has been decoded. The worker
+     * syncs and then closes the registry's journals and any capture before
+     * it exits.
+     */
+    public void stop() {
+        ring.close();
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class Worker implements Runnable, PacketRing.Consumer {
+        private long lastFrame = System.nanoTime() - FRAME_NANOS;
+        private long lastSync = System.nanoTime();
+        private boolean dirty = false;
+        private boolean unsynced = false;
+
+        @Override
+        public void run() {
+            while (!ring.isClosed() || !ring.isEmpty()) {
+                runTasks();
+                int depth = ring.size();
+                if (depth > 0)
+                    queueDepth.record(depth);
+                int count = ring.drain(this, BATCH_SIZE);
+                if (count > 0) {
+                    dirty = true;
+                    unsynced = true;
+                    StreamTap tap = IngestionPipeline.this.tap;
+                    if (tap != null)
+                        tap.publish(registry.getSensors());
+                }
+                long now = System.nanoTime();
+                if ((dirty || pendingError != null) && now - lastFrame >= FRAME_NANOS) {
+                    lastFrame = now;
+                    if (dirty) {
+                        dirty = false;
+                        listener.onDataChanged();
+                    }
+                    flushError();
+                }
+                // Sync at least once a second while busy, and as soon as we go idle
+                if (unsynced && (count == 0 || now - lastSync >= SYNC_NANOS)) {
+                    unsynced = false;
+                    lastSync = now;
+                    sync();
+                }
+                if (count == 0 && tasks.isEmpty())
+                    // Sleep until more data arrives, or until the pending frame is due
+                    ring.await(dirty || pendingError != null ? FRAME_NANOS - (now - lastFrame) : TimeUnit.SECONDS.toNanos(1));
+            }
+            runTasks();
+            sync();
+            try {
+                registry.close();
+            } catch (IOException e) {
+                reportError("Unable to close saved readings.");
+            }
+            closeCapture();
+            if (dirty)
+                listener.onDataChanged();
+            flushError();
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    reportError(e.getMessage());
+                }
+            }
+        }
+
+        private void sync() {
+            long start = System.nanoTime();
+            try {
+                registry.sync();
+                syncMicros.record((System.nanoTime() - start) / 1000);
+            } catch (IOException e) {
+                reportError("Unable to save readings to storage. They will be lost if the app is closed.");
+            }
+            if (capture != null) {
+                try {
+                    capture.flush();
+                } catch (IOException e) {
+                    closeCapture();
+                    reportError("Unable to record received data for replay.");
+                }
+            }
+        }
+
+        @Override
+        public void accept(UUID logUuid, int tag, long timestamp, long receivedAt, byte[] data, int length) {
+            if (length == 0) {
+                processor.finishSession(logUuid, tag);
+                return;
+            }
+            if (capture != null)
+                record(logUuid, tag, timestamp, receivedAt, data, length);
+            long start = System.nanoTime();
+            try {
+                processor.process(logUuid, tag, data, length);
+            } catch (RuntimeException e) {
+                failed.increment();
+                reportError(e.getMessage());
+            }
+            decodeNanos.record(System.nanoTime() - start);
+            // The item may have been framed or compact, so check every sensor
+            for (int i = 0; i < sensors.size(); i++) {
+                String warning = sensors.get(i).checkPins();
+                if (warning != null)
+                    reportError(warning);
+            }
+            items.increment();
+            bytes.add(length);
+        }
+    }
+}
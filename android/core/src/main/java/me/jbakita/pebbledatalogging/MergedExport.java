@@ -0,0 +1,244 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Resamples several sensors onto one fixed-rate time grid, so their
+ * readings can be written side by side as a single wide table.
+ * Each sensor's readings are streamed through a cursor, and the sensors are
+ * merged in time order with a heap keyed by their next reading, so only the
+ * readings either side of the current grid time are held. Memory is
+ * constant however long the session is.
+ *
+ * A sensor's value at a grid time is interpolated between its readings
+ * either side. If those are more than MAX_GAP apart, or the time is outside
+ * the sensor's readings, its fields are left empty.
+ */
+public class MergedExport {
+    // The watch's 25Hz sample period (ms)
+    public static final long DEFAULT_PERIOD = 40;
+    // Readings further apart than this are not interpolated between (ms)
+    public static final long MAX_GAP = 1000;
+
+    public enum Interpolation {
+        // Straight line between the readings either side
+        LINEAR,
+        // The closer of the readings either side
+        NEAREST
+    }
+
+    private final Stream[] streams;
+    private final long startTime;
+    private final long stopTime;
+    private final long period;
+    private final Interpolation interpolation;
+    // Min-heap of streams with readings left, keyed by their next reading's time
+    private final int[] heap;
+    private int heapSize = 0;
+    // The current grid time, or before the first until next() is called
+    private long time;
+
+    /**
+     * @param sensors The sensors to merge, in column order
+     * @param startTime Time of the first row
+     * @param stopTime Rows are written up to, but not including, this time
+     * @param period Time between rows (ms)
+     */
+    public MergedExport(List<Sensor> sensors, long startTime, long stopTime, long period, Interpolation interpolation) {
+        if (period < 1)
+            throw new IllegalArgumentException("Period must be at least 1ms.");
+        this.startTime = startTime;
+        this.stopTime = stopTime;
+        this.period = period;
+        this.interpolation = interpolation;
+        this.time = startTime - period;
+        streams = new Stream[sensors.size()];
+        heap = new int[streams.length];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = new Stream(sensors.get(i), startTime, stopTime);
+            if (streams[i].hasNext)
+                push(i);
+        }
+    }
+
+    /**
+     * Get the number of rows which will be written
+     */
+    public long getRowCount() {
+        return stopTime <= startTime ? 0 : (stopTime - startTime + period - 1) / period;
+    }
+
+    /**
+     * Write the column headers. Sensors are named by title, with their watch
+     * if two share a title.
+     */
+    public void writeHeader(CsvWriter writer) throws IOException {
+        StringBuilder line = new StringBuilder("Time(ms)      ");
+        for (Stream stream : streams) {
+            String name = stream.sensor.getTitle();
+            for (Stream other : streams) {
+                if (other != stream && other.sensor.getTitle().equals(name)) {
+                    name += " " + stream.sensor.getWatchId();
+                    break;
+                }
+            }
+            line.append(',').append(name).append(" X(mG),").append(name).append(" Y(mG),").append(name).append(" Z(mG)");
+        }
+        writer.writeLine(line.toString());
+    }
+
+    /**
+     * Advance to the next grid time, merging in every reading up to it
+     * @return false if there are no more rows
+     */
+    public boolean next() {
+        if (time + period >= stopTime)
+            return false;
+        time += period;
+        // Consume readings in time order until every stream's next reading is after this time
+        while (heapSize > 0 && streams[heap[0]].nextTime <= time) {
+            int top = heap[0];
+            streams[top].advance();
+            if (streams[top].hasNext)
+                siftDown(0);
+            else
+                pop();
+        }
+        return true;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Write the current row, with three fields per sensor
+     */
+    public void writeRow(CsvWriter writer) throws IOException {
+        writer.startLine(time);
+        for (Stream stream : streams) {
+            if (stream.resample(time, interpolation)) {
+                writer.writeField(stream.x);
+                writer.writeField(stream.y);
+                writer.writeField(stream.z);
+            }
+            else {
+                writer.writeEmptyField();
+                writer.writeEmptyField();
+                writer.writeEmptyField();
+            }
+        }
+        writer.endLine();
+    }
+
+    private void push(int stream) {
+        heap[heapSize] = stream;
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (streams[heap[parent]].nextTime <= streams[heap[i]].nextTime)
+                break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void pop() {
+        heap[0] = heap[--heapSize];
+        siftDown(0);
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int smallest = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < heapSize; child++)
+                if (streams[heap[child]].nextTime < streams[heap[smallest]].nextTime)
+                    smallest = child;
+            if (smallest == i)
+                return;
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int t = heap[a];
+        heap[a] = heap[b];
+        heap[b] = t;
+    }
+
+    /* One sensor's readings, holding the last reading at or before the
+     * current time and the first after it
+     */
+    private static class Stream {
+        final Sensor sensor;
+        private final SampleStore.Cursor cursor;
+        boolean hasPrevious = false;
+        long previousTime;
+        int previousX, previousY, previousZ;
+        boolean hasNext = false;
+        long nextTime;
+        int nextX, nextY, nextZ;
+        // The resampled value
+        int x, y, z;
+
+        Stream(Sensor sensor, long startTime, long stopTime) {
+            this.sensor = sensor;
+            SampleStore readings = sensor.getReadings();
+            // Include the readings either side of the range to interpolate from
+            int start = Math.max(readings.getFirstIndex(), readings.indexOf(startTime) - 1);
+            int stop = Math.min(readings.size(), readings.indexOf(stopTime) + 1);
+            cursor = readings.cursor(start, Math.max(start, stop));
+            readNext();
+        }
+
+        void advance() {
+            hasPrevious = true;
+            previousTime = nextTime;
+            previousX = nextX;
+            previousY = nextY;
+            previousZ = nextZ;
+            readNext();
+        }
+
+        private void readNext() {
+            hasNext = cursor.next();
+            if (hasNext) {
+                nextTime = cursor.getTimestamp();
+                nextX = cursor.getX();
+                nextY = cursor.getY();
+                nextZ = cursor.getZ();
+            }
+        }
+
+        /* Compute the value at a time between the previous and next readings
+         * @return false if there is no reading close enough
+         */
+        boolean resample(long time, Interpolation interpolation) {
+            if (!hasPrevious)
+                return false;
+            if (previousTime == time) {
+                x = previousX;
+                y = previousY;
+                z = previousZ;
+                return true;
+            }
+            if (!hasNext || nextTime - previousTime > MAX_GAP)
+                return false;
+            if (interpolation == Interpolation.NEAREST) {
+                boolean previous = time - previousTime <= nextTime - time;
+                x = previous ? previousX : nextX;
+                y = previous ? previousY : nextY;
+                z = previous ? previousZ : nextZ;
+            }
+            else {
+                double fraction = (time - previousTime) / (double)(nextTime - previousTime);
+                x = previousX + (int)Math.round((nextX - previousX) * fraction);
+                y = previousY + (int)Math.round((nextY - previousY) * fraction);
+                z = previousZ + (int)Math.round((nextZ - previousZ) * fraction);
+            }
+            return true;
+        }
+    }
+}
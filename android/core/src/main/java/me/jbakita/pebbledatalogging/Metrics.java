@@ -0,0 +1,348 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A named group of counters, histograms and gauges describing one part of
+ * the app, such as the ingestion pipeline or one sensor.
+ * Recording a value is a few atomic operations and never allocates, so
+ * metrics can stay on in the hot path. Rates are reported both as an average
+ * over the life of the group and as a recent rate, an exponentially weighted
+ * moving average over about a minute. Groups can be shown as text or dumped
+ * as JSON.
+ */
+public class Metrics {
+    private final String name;
+    private final long createdNanos = System.nanoTime();
+    private final CopyOnWriteArrayList<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Computes a value when metrics are reported
+     */
+    public interface Gauge {
+        long get();
+    }
+
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Add a counter
+     * @param unit Unit of the counted values, e.g. "bytes"
+     * @param rate Whether to also report the average and recent rates per second
+     */
+    public Counter counter(String name, String unit, boolean rate) {
+        Counter counter = new Counter(name, unit, rate);
+        metrics.add(counter);
+        return counter;
+    }
+
+    /**
+     * Add a histogram of non-negative values
+     * @param unit Unit of the recorded values, e.g. "ms"
+     */
+    public Histogram histogram(String name, String unit) {
+        Histogram histogram = new Histogram(name, unit);
+        metrics.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Add a value computed when metrics are reported
+     * @param unit Unit of the value, e.g. "bytes"
+     */
+    public void gauge(String name, String unit, final Gauge gauge) {
+        metrics.add(new Metric(name, unit) {
+            @Override
+            void writeText(StringBuilder out, double seconds) {
+                out.append(String.format(Locale.US, "%s: %d %s\n", name, gauge.get(), unit));
+            }
+            @Override
+            void writeJson(StringBuilder out, double seconds) {
+                out.append(String.format(Locale.US, "{\"type\": \"gauge\", \"unit\": \"%s\", \"value\": %d}", escape(unit), gauge.get()));
+            }
+        });
+    }
+
+    /**
+     * Get the number of seconds since this group was created
+     */
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - createdNanos) / 1e9;
+    }
+
+    /**
+     * Get a human-readable report of every group
+     */
+    public static String toText(List<Metrics> groups) {
+        StringBuilder out = new StringBuilder();
+        for (Metrics group : groups) {
+            double seconds = group.getElapsedSeconds();
+            out.append(String.format(Locale.US, "%s (%.0f s)\n", group.name, seconds));
+            for (Metric metric : group.metrics) {
+                out.append("  ");
+                metric.writeText(out, seconds);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Get a JSON report of every group
+     */
+    public static String toJson(List<Metrics> groups) {
+        StringBuilder out = new StringBuilder("{\n  \"time\": ").append(System.currentTimeMillis()).append(",\n  \"groups\": [");
+        for (int i = 0; i < groups.size(); i++) {
+            Metrics group = groups.get(i);
+            double seconds = group.getElapsedSeconds();
+            out.append(i == 0 ? "\n" : ",\n").append("    {\"name\": \"").append(escape(group.name))
+                    .append(String.format(Locale.US, "\", \"seconds\": %.3f, \"metrics\": {", seconds));
+            for (int j = 0; j < group.metrics.size(); j++) {
+                Metric metric = group.metrics.get(j);
+                out.append(j == 0 ? "\n" : ",\n").append("      \"").append(escape(metric.name)).append("\": ");
+                metric.writeJson(out, seconds);
+            }
+            out.append("\n    }}");
+        }
+        return out.append("\n  ]\n}\n").toString();
+    }
+
+    /**
+     * Dump a JSON report of every group to a file
+     */
+    public static void writeJson(File file, List<Metrics> groups) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(toJson(groups));
+        } finally {
+            writer.close();
+        }
+    }
+
+    /* Escape a string for a JSON string literal
+     */
+    private static String escape(String s) {
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\b': out.append("\\b"); break;
+                case '\f': out.append("\\f"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if (c < 0x20)
+                        out.append(String.format(Locale.US, "\\u%04x", (int)c));
+                    else
+                        out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static abstract class Metric {
+        final String name;
+        final String unit;
+
+        Metric(String name, String unit) {
+            this.name = name;
+            this.unit = unit;
+        }
+
+        /* Append one line
+         */
+        abstract void writeText(StringBuilder out, double seconds);
+
+        /* Append one JSON object
+         */
+        abstract void writeJson(StringBuilder out, double seconds);
+    }
+
+    /**
+     * A count which only goes up. Safe to update from any thread.
+     */
+    public static class Counter extends Metric {
+        // How often the recent rate is updated
+        static final long TICK_NANOS = TimeUnit.SECONDS.toNanos(5);
+        // Weight of each tick, for a time constant of one minute
+        private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+        private final AtomicLong value = new AtomicLong();
+        private final boolean rate;
+        // Counted since the last tick
+        private final AtomicLong uncounted = new AtomicLong();
+        private final AtomicLong lastTick = new AtomicLong(System.nanoTime());
+        // Only written by the thread which advanced lastTick
+        private volatile double recentRate = 0;
+        private volatile boolean ticked = false;
+
+        private Counter(String name, String unit, boolean rate) {
+            super(name, unit);
+            this.rate = rate;
+        }
+
+        public void increment() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            if (rate)
+                add(delta, System.nanoTime());
+            else
+                value.addAndGet(delta);
+        }
+
+        void add(long delta, long now) {
+            tick(now);
+            value.addAndGet(delta);
+            uncounted.addAndGet(delta);
+        }
+
+        public long get() {
+            return value.get();
+        }
+
+        /**
+         * Get the recent rate per second, weighting the last minute most.
+         * Always 0 for counters made without a rate.
+         */
+        public double getRecentRate() {
+            return getRecentRate(System.nanoTime());
+        }
+
+        double getRecentRate(long now) {
+            tick(now);
+            return recentRate;
+        }
+
+        /* Fold what was counted since the last tick into the recent rate,
+         * then decay it for any ticks which passed without a call
+         */
+        private void tick(long now) {
+            long last = lastTick.get();
+            long ticks = (now - last) / TICK_NANOS;
+            if (ticks <= 0 || !lastTick.compareAndSet(last, last + ticks * TICK_NANOS))
+                return;
+            double instant = uncounted.getAndSet(0) / (TICK_NANOS / 1e9);
+            double recent = ticked ? recentRate + ALPHA * (instant - recentRate) : instant;
+            recentRate = recent * Math.pow(1 - ALPHA, ticks - 1);
+            ticked = true;
+        }
+
+        @Override
+        void writeText(StringBuilder out, double seconds) {
+            long count = value.get();
+            out.append(String.format(Locale.US, "%s: %d %s", name, count, unit));
+            if (rate)
+                out.append(String.format(Locale.US, " (%.1f/s, recently %.1f/s)", count / Math.max(seconds, 1e-3), getRecentRate()));
+            out.append('\n');
+        }
+
+        @Override
+        void writeJson(StringBuilder out, double seconds) {
+            long count = value.get();
+            out.append(String.format(Locale.US, "{\"type\": \"counter\", \"unit\": \"%s\", \"value\": %d", escape(unit), count));
+            if (rate)
+                out.append(String.format(Locale.US, ", \"perSecond\": %.3f, \"recentPerSecond\": %.3f",
+                        count / Math.max(seconds, 1e-3), getRecentRate()));
+            out.append('}');
+        }
+    }
+
+    /**
+     * Distribution of non-negative values in power of two buckets, so
+     * percentiles are exact to within a factor of two. Safe to update from
+     * any thread.
+     */
+    public static class Histogram extends Metric {
+        // Bucket 0 holds 0, bucket i holds [2^(i-1), 2^i)
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram(String name, String unit) {
+            super(name, unit);
+        }
+
+        /**
+         * Record a value. Negative values are recorded as 0.
+         */
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value));
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : sum.get() / (double)n;
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Get an upper bound of a percentile
+         * @param percentile From 0 to 100
+         */
+        public long getPercentile(double percentile) {
+            long n = count.get();
+            if (n == 0)
+                return 0;
+            long rank = (long)Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank)
+                    return Math.min(i == 0 ? 0 : i == 64 ? Long.MAX_VALUE : (1L << i) - 1, max.get());
+            }
+            return max.get();
+        }
+
+        @Override
+        void writeText(StringBuilder out, double seconds) {
+            out.append(String.format(Locale.US, "%s: n=%d mean=%.1f p50<=%d p99<=%d max=%d %s\n",
+                    name, getCount(), getMean(), getPercentile(50), getPercentile(99), getMax(), unit));
+        }
+
+        @Override
+        void writeJson(StringBuilder out, double seconds) {
+            out.append(String.format(Locale.US, "{\"type\": \"histogram\", \"unit\": \"%s\", \"count\": %d, \"mean\": %.3f, "
+                    + "\"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d, \"buckets\": [",
+                    escape(unit), getCount(), getMean(), getPercentile(50), getPercentile(90), getPercentile(99), getMax()));
+            int last = buckets.length() - 1;
+            while (last > 0 && buckets.get(last) == 0)
+                last--;
+            for (int i = 0; i <= last; i++)
+                out.append(i == 0 ? "" : ", ").append(buckets.get(i));
+            out.append("]}");
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * A min/max downsampling pyramid of a SampleStore's readings, for plotting.
+ * Level 0 holds the minimum and maximum X, Y, Z and magnitude of every
+ * BUCKET_SIZE readings, and each level above merges pairs of buckets from
+ * the level below. It is built as readings are appended, at amortized O(1)
+ * per reading and about 1/7 of the store's memory.
+ *
+ * Any range of readings is covered by O(log n) buckets, so downsampling to
+ * a screen of pixels costs time proportional to its width rather than to
+ * the number of readings. Pixels are aligned to BUCKET_SIZE readings; only
+ * ranges finer than that read the readings themselves.
+ * A pyramid for a store which keeps only recent readings is preallocated
+ * with a fixed capacity, and overwrites the buckets of older readings.
+ * Only one thread may add readings, but any thread may query.
+ */
+public class MinMaxPyramid {
+    // Number of readings in each level 0 bucket
+    public static final int BUCKET_SIZE = 16;
+    public static final String[] CHANNELS = {"X", "Y", "Z", "Magnitude"};
+    // Minimum then maximum of each channel
+    private static final int STRIDE = 2 * CHANNELS.length;
+
+    // Replaced rather than resized so other threads never see a partial copy
+    private volatile Level[] levels;
+    // Whether levels are preallocated rings rather than growing
+    private final boolean ring;
+    // The level 0 bucket being filled
+    private final short[] partial = new short[STRIDE];
+    private int partialCount = 0;
+    // Holds merged buckets on their way up the pyramid
+    private final short[] merged = new short[STRIDE];
+
+    /**
+     * Cover every reading added
+     */
+    public MinMaxPyramid() {
+        levels = new Level[] {new Level(0)};
+        ring = false;
+    }
+
+    /**
+     * Cover only the most recent readings, in levels allocated now which
+     * are overwritten rather than grown as readings are added. The store's
+     * own pages are still allocated as they are started. Each level holds
+     * enough buckets to cover capacity readings, up to the first level
+     * where one bucket covers them all.
+     * @param capacity Number of most recent readings to cover
+     */
+    public MinMaxPyramid(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Capacity must be at least 1 reading.");
+        Level[] levels = new Level[getLevelCount(capacity)];
+        for (int level = 0; level < levels.length; level++)
+            levels[level] = new Level(getBucketCount(capacity, level));
+        this.levels = levels;
+        ring = true;
+    }
+
+    /**
+     * Get the heap used by a pyramid covering only the most recent capacity
+     * readings in bytes
+     */
+    public static long getMemoryUsage(int capacity) {
+        int count = getLevelCount(capacity);
+        long bytes = 16 + 8L * count;
+        for (int level = 0; level < count; level++)
+            bytes += 16 + 16 + 2L * STRIDE * getBucketCount(capacity, level);
+        return bytes;
+    }
+
+    /* Get the number of levels needed for one bucket to cover capacity readings
+     */
+    private static int getLevelCount(int capacity) {
+        int count = 1;
+        while ((long)BUCKET_SIZE << (count - 1) < capacity)
+            count++;
+        return count;
+    }
+
+    /* Get the number of buckets a level keeps to cover capacity readings
+     */
+    private static int getBucketCount(int capacity, int level) {
+        long span = (long)BUCKET_SIZE << level;
+        // Plus the bucket being merged into, and one of grace for readers
+        return (int)((capacity + span - 1) / span) + 2;
+    }
+
+    /**
+     * The minimum and maximum of each channel in each of a fixed number of
+     * pixels. Reuse one per view so that plotting does not allocate.
+     */
+    public static class Buckets {
+        private final int width;
+        // Indexed by channel then pixel
+        private final short[][] min = new short[CHANNELS.length][];
+        private final short[][] max = new short[CHANNELS.length][];
+        private final int[] counts;
+        private int startIndex;
+        private int stopIndex;
+
+        /**
+         * @param width Number of pixels
+         */
+        public Buckets(int width) {
+            if (width < 1)
+                throw new IllegalArgumentException("Width must be at least 1 pixel.");
+            this.width = width;
+            for (int i = 0; i < CHANNELS.length; i++) {
+                min[i] = new short[width];
+                max[i] = new short[width];
+            }
+            counts = new int[width];
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Get the number of readings in a pixel, which is 0 if there are none
+         */
+        public int getCount(int pixel) {
+            return counts[pixel];
+        }
+
+        /**
+         * @param channel Index into CHANNELS
+         */
+        public int getMin(int channel, int pixel) {
+            return min[channel][pixel];
+        }
+
+        /**
+         * @param channel Index into CHANNELS
+         */
+        public int getMax(int channel, int pixel) {
+            return max[channel][pixel];
+        }
+
+        /**
+         * Get the index of the first reading covered
+         */
+        public int getStartIndex() {
+            return startIndex;
+        }
+
+        /**
+         * Get the index after the last reading covered
+         */
+        public int getStopIndex() {
+            return stopIndex;
+        }
+
+        private void merge(int pixel, short[] bucket, int offset, boolean first) {
+            for (int channel = 0; channel < CHANNELS.length; channel++) {
+                short low = bucket[offset + 2 * channel];
+                short high = bucket[offset + 2 * channel + 1];
+                if (first || low < min[channel][pixel])
+                    min[channel][pixel] = low;
+                if (first || high > max[channel][pixel])
+                    max[channel][pixel] = high;
+            }
+        }
+
+        private void merge(int pixel, int x, int y, int z, boolean first) {
+            int magnitude = magnitude(x, y, z);
+            merge(pixel, 0, x, first);
+            merge(pixel, 1, y, first);
+            merge(pixel, 2, z, first);
+            merge(pixel, 3, magnitude, first);
+        }
+
+        private void merge(int pixel, int channel, int value, boolean first) {
+            if (first || value < min[channel][pixel])
+                min[channel][pixel] = (short)value;
+            if (first || value > max[channel][pixel])
+                max[channel][pixel] = (short)value;
+        }
+    }
+
+    /**
+     * Add the next reading of the store
+     */
+    public void add(int x, int y, int z) {
+        boolean first = partialCount == 0;
+        include(0, x, first);
+        include(2, y, first);
+        include(4, z, first);
+        include(6, magnitude(x, y, z), first);
+        if (++partialCount == BUCKET_SIZE) {
+            push(0, partial);
+            partialCount = 0;
+        }
+    }
+
+    private void include(int offset, int value, boolean first) {
+        if (first || value < partial[offset])
+            partial[offset] = (short)value;
+        if (first || value > partial[offset + 1])
+            partial[offset + 1] = (short)value;
+    }
+
+    /* Append a complete bucket to a level, merging upwards as pairs complete
+     */
+    private void push(int level, short[] bucket) {
+        while (true) {
+            Level[] levels = this.levels;
+            if (level == levels.length) {
+                if (ring)
+                    return;
+                Level[] larger = new Level[levels.length + 1];
+                System.arraycopy(levels, 0, larger, 0, levels.length);
+                larger[level] = new Level(0);
+                levels = larger;
+                this.levels = larger;
+            }
+            Level current = levels[level];
+            current.append(bucket);
+            if (current.size % 2 != 0)
+                return;
+            // Merge the pair just completed into the level above
+            short[] data = current.data;
+            int first = current.offset(current.size - 2);
+            int second = current.offset(current.size - 1);
+            for (int i = 0; i < STRIDE; i += 2) {
+                merged[i] = (short)Math.min(data[first + i], data[second + i]);
+                merged[i + 1] = (short)Math.max(data[first + i + 1], data[second + i + 1]);
+            }
+            bucket = merged;
+            level++;
+        }
+    }
+
+    /**
+     * Get the number of levels, including partially built ones
+     */
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    /**
+     * Downsample readings of a store into pixels of equal numbers of readings
+     * @param store The store this pyramid was built from
+     * @param start Index of the first reading
+     * @param stop Index after the last reading
+     * @param out Where to write the pixels
+     */
+    public void downsample(SampleStore store, int start, int stop, Buckets out) {
+        int width = out.width;
+        out.startIndex = start;
+        out.stopIndex = stop;
+        long count = stop - start;
+        if (count < (long)width * BUCKET_SIZE) {
+            // Too fine for the pyramid, so read the readings
+            for (int pixel = 0; pixel < width; pixel++)
+                out.counts[pixel] = 0;
+            SampleStore.Cursor reading = store.cursor(start, stop);
+            while (reading.next()) {
+                int pixel = (int)((reading.getIndex() - start) * width / count);
+                out.merge(pixel, reading.getX(), reading.getY(), reading.getZ(), out.counts[pixel]++ == 0);
+            }
+            return;
+        }
+        Level[] levels = this.levels;
+        for (int pixel = 0; pixel < width; pixel++) {
+            int from = (int)(start + count * pixel / width);
+            int to = (int)(start + count * (pixel + 1) / width);
+            out.counts[pixel] = to - from;
+            range(levels, store, from, to, out, pixel);
+        }
+    }
+
+    /* Merge the readings in [from, to) into a pixel, widened to whole buckets
+     */
+    private static void range(Level[] levels, SampleStore store, int from, int to, Buckets out, int pixel) {
+        // Snapshot the size before the data so both are consistent
+        int complete = levels[0].size;
+        int bucket = from / BUCKET_SIZE;
+        int end = Math.min((to + BUCKET_SIZE - 1) / BUCKET_SIZE, complete);
+        boolean first = true;
+        while (bucket < end) {
+            // Take the largest complete bucket starting here and within range
+            int level = Math.min(Integer.numberOfTrailingZeros(bucket), levels.length - 1);
+            while (level > 0 && (bucket + (1 << level) > end || (bucket >> level) >= levels[level].size))
+                level--;
+            out.merge(pixel, levels[level].data, levels[level].offset(bucket >> level), first);
+            first = false;
+            bucket += 1 << level;
+        }
+        // Readings not yet in a complete bucket
+        int tail = Math.max(from, bucket * BUCKET_SIZE);
+        if (tail < to) {
+            SampleStore.Cursor reading = store.cursor(tail, to);
+            while (reading.next()) {
+                out.merge(pixel, reading.getX(), reading.getY(), reading.getZ(), first);
+                first = false;
+            }
+        }
+    }
+
+    /* The same as AccelerometerReading.getMagnitude, rounded to fit a short
+     */
+    private static int magnitude(int x, int y, int z) {
+        return (int)Math.min(Short.MAX_VALUE, Math.round(Math.sqrt((long)x * x + (long)y * y + (long)z * z)));
+    }
+
+    /* One level of buckets
+     */
+    private static class Level {
+        // Number of buckets kept if older ones are overwritten, else 0
+        final int capacity;
+        volatile short[] data;
+        // Written only after a bucket is complete so other threads can read safely
+        volatile int size = 0;
+
+        Level(int capacity) {
+            this.capacity = capacity;
+            data = new short[(capacity == 0 ? 16 : capacity) * STRIDE];
+        }
+
+        /* Get the offset of a bucket in data
+         */
+        int offset(int bucket) {
+            return (capacity == 0 ? bucket : bucket % capacity) * STRIDE;
+        }
+
+        void append(short[] bucket) {
+            short[] data = this.data;
+            if (capacity == 0 && (size + 1) * STRIDE > data.length) {
+                short[] larger = new short[data.length * 2];
+                System.arraycopy(data, 0, larger, 0, size * STRIDE);
+                data = larger;
+                this.data = larger;
+            }
+            System.arraycopy(bucket, 0, data, offset(size), STRIDE);
+            size++;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package me.jbakita.pebbledatalogging;
+
+import java.util.HashMap;
+import java.util.UUID;
+
+/**
+ * Applies received data log items to the sensors in a registry.
+ * The first item of every data log session must be a timestamp, which
+ * creates the sensor. Later items are decoded and added to that sensor.
+ * Sessions logged with the compact or framed encodings (see CompactDecoder
+ * and FramedDecoder) are recognised by their tag, and start with a
+ * timestamp frame rather than a timestamp item. Frames of such a session
+ * received before its first timestamp are skipped whole, so the stream
+ * stays aligned. Items of sessions the registry refused are dropped.
+ * Not thread safe; items must be processed one at a time, in order.
+ */
+public class PacketProcessor {
+    // Sensor names indexed by data log tag. Must be kept in sync with the watchapp menu items and ordering.
+    public static final String[] FEATURES = {
+        "DOMINANT_WRIST",
+        "NON_DOMINANT_WRIST",
+        "WAIST",
+        "RIGHT_ANKLE",
+        "LEFT_ANKLE",
+        "UPPER_DOMINANT_ARM",
+        "UPPER_NON_DOMINANT_ARM",
+        "RIGHT_THIGH",
+        "LEFT_THIGH",
+        "CHEST",
+        "NECK"
+    };
+
+    private final String[] features;
+    private final SensorRegistry registry;
+    private final DataLogDecoder decoder = new DataLogDecoder();
+    private final SensorCallback sensorCallback = new SensorCallback();
+    // Stream state of each unfinished compact session, indexed by sensor tag
+    private final HashMap<UUID, CompactDecoder[]> compactDecoders = new HashMap<>();
+    private final FramedDecoder framedDecoder = new FramedDecoder();
+    private final SessionCallback sessionCallback = new SessionCallback();
+    private final Metrics.Counter outOfSync;
+    private final Metrics.Counter refused;
+
+    /**
+     * @param features Sensor names indexed by data log tag
+     * @param registry Where to find and create sensors
+     */
+    public PacketProcessor(String[] features, SensorRegistry registry) {
+        this(features, registry, new Metrics("Processing"));
+    }
+
+    /**
+     * @param features Sensor names indexed by data log tag
+     * @param registry Where to find and create sensors
+     * @param metrics Where to count out of sync and refused items
+     */
+    public PacketProcessor(String[] features, SensorRegistry registry, Metrics metrics) {
+        this.features = features;
+        this.registry = registry;
+        this.outOfSync = metrics.counter("Out of sync", "items", false);
+        this.refused = metrics.counter("Refused", "items", false);
+    }
+
+    /**
+     * Process one data log item
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     * @param data Buffer holding the item
+     * @param length Length of the item in bytes
+     * @throws IllegalArgumentException if the tag or item is invalid
+     * @throws IllegalStateException if the data log is out of sync. Compact
+     *                               and framed sessions stay usable, as only
+     *                               the readings before their first
+     *                               timestamp are skipped.
+     */
+    public void process(UUID logUuid, int tag, byte[] data, int length) {
+        if (CompactDecoder.isCompact(tag)) {
+            if (prepareSession(logUuid, CompactDecoder.getSensorTag(tag))) {
+                processCompact(logUuid, CompactDecoder.getSensorTag(tag), data, length);
+                finishItem(length);
+            }
+            return;
+        }
+        if (FramedDecoder.isFramed(tag)) {
+            if (prepareSession(logUuid, FramedDecoder.getSensorTag(tag))) {
+                framedDecoder.decode(data, 0, length, sessionCallback);
+                finishItem(length);
+            }
+            return;
+        }
+        // Check this is a valid data log
+        if (tag < 0 || tag >= features.length)
+            throw new IllegalArgumentException(tag + " is not a valid data log ID.");
+        // To distinguish between timestamps and readings,
+        // the first bit is 0 for readings and 1 for timestamp
+        /* To conserve data, but maximize accuracy, the first 'reading'
+         * for each data log ID is the beginning timestamp.
+         */
+        Sensor sensor = registry.get(logUuid, tag);
+        if (sensor == null && registry.isRefused(logUuid, tag)) {
+            refused.increment();
+            return;
+        }
+        if (sensor == null) {
+            // First reading must be a timestamp
+            if (!DataLogDecoder.isTimestamp(data, 0)) {
+                outOfSync.increment();
+                throw new IllegalStateException("It seems like a data buffer is out of sync. Data will be corrupted. Please flush buffers and try again.");
+            }
+            // Decode and save
+            sensor = new Sensor(features[tag], logUuid, tag, DataLogDecoder.decodeTimestamp(data, 0));
+            registry.register(sensor);
+            // Any records after the starting timestamp belong to the new sensor
+            if (length > DataLogDecoder.RECORD_SIZE) {
+                sensorCallback.sensor = sensor;
+                decoder.decode(data, DataLogDecoder.RECORD_SIZE, length - DataLogDecoder.RECORD_SIZE, sensorCallback);
+            }
+        }
+        else {
+            // Decode and add timestamps and readings
+            sensorCallback.sensor = sensor;
+            decoder.decode(data, 0, length, sensorCallback);
+        }
+        sensor.recordItem(length);
+    }
+
+    /**
+     * Forget the stream state of a finished data log session. Items must not
+     * be received for the session afterwards.
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     */
+    public void finishSession(UUID logUuid, int tag) {
+        if (!CompactDecoder.isCompact(tag))
+            return;
+        CompactDecoder[] decoders = compactDecoders.get(logUuid);
+        int sensorTag = CompactDecoder.getSensorTag(tag);
+        if (decoders == null || sensorTag < 0 || sensorTag >= decoders.length)
+            return;
+        decoders[sensorTag] = null;
+        for (CompactDecoder decoder : decoders) {
+            if (decoder != null)
+                return;
+        }
+        compactDecoders.remove(logUuid);
+    }
+
+    /**
+     * Forget the stream state of every session, such as when the registry
+     * has been cleared
+     */
+    public void clear() {
+        compactDecoders.clear();
+    }
+
+    /* Count a compact or framed item against its sensor, and report any
+     * readings skipped because the session had no timestamp yet
+     */
+    private void finishItem(int length) {
+        // A session whose first item held no timestamp has no sensor yet
+        if (sessionCallback.sensor != null)
+            sessionCallback.sensor.recordItem(length);
+        if (sessionCallback.skipped > 0) {
+            sessionCallback.skipped = 0;
+            outOfSync.increment();
+            throw new IllegalStateException("Readings were received before their session's first timestamp and were discarded. Please flush buffers and try again.");
+        }
+    }
+
+    private void processCompact(UUID logUuid, int tag, byte[] data, int length) {
+        CompactDecoder[] decoders = compactDecoders.get(logUuid);
+        if (decoders == null) {
+            decoders = new CompactDecoder[features.length];
+            compactDecoders.put(logUuid, decoders);
+        }
+        if (decoders[tag] == null)
+            decoders[tag] = new CompactDecoder();
+        decoders[tag].decode(data, 0, length, sessionCallback);
+    }
+
+    /* Point the session callback at a session's sensor, if it exists yet
+     * @return false if the session was refused, so its item should be dropped
+     */
+    private boolean prepareSession(UUID logUuid, int tag) {
+        if (tag < 0 || tag >= features.length)
+            throw new IllegalArgumentException(tag + " is not a valid data log ID.");
+        sessionCallback.logUuid = logUuid;
+        sessionCallback.tag = tag;
+        sessionCallback.sensor = registry.get(logUuid, tag);
+        sessionCallback.skipped = 0;
+        if (sessionCallback.sensor == null && registry.isRefused(logUuid, tag)) {
+            refused.increment();
+            return false;
+        }
+        return true;
+    }
+
+    /* Routes decoded records to the sensor they were received from.
+     * Reused for every data log item to avoid allocation.
+     */
+    private static class SensorCallback implements DataLogDecoder.Callback {
+        private Sensor sensor;
+        @Override
+        public void onTimestamp(long timestamp) {
+            sensor.addTimestamp(timestamp);
+        }
+        @Override
+        public void onReading(int x, int y, int z) {
+            sensor.addReading(x, y, z);
+        }
+    }
+
+    /* Routes records decoded from a compact or framed session to its sensor,
+     * creating the sensor from the first timestamp. Readings before then are
+     * counted and skipped rather than thrown on, so the decoder can finish
+     * their frame.
+     */
+    private class SessionCallback implements DataLogDecoder.Callback {
+        private UUID logUuid;
+        private int tag;
+        private Sensor sensor;
+        private int skipped;
+        @Override
+        public void onTimestamp(long timestamp) {
+            if (sensor == null) {
+                sensor = new Sensor(features[tag], logUuid, tag, timestamp);
+                registry.register(sensor);
+            }
+            else {
+                sensor.addTimestamp(timestamp);
+            }
+        }
+        @Override
+        public void onReading(int x, int y, int z) {
+            // First reading must be a timestamp
+            if (sensor == null) {
+                skipped++;
+                return;
+            }
+            sensor.addReading(x, y, z);
+        }
+    }
+}
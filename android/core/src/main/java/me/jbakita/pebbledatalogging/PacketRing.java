@@ -0,0 +1,201 @@
+package me.jbakita.pebbledatalogging;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer queue of data log items.
+ * Slots are preallocated and items are copied into them, so in steady state
+ * neither side allocates. The producer blocks while the ring is full rather
+ * than drop data, so it should not be a UI thread.
+ */
+public class PacketRing {
+    // Initial per-slot buffer size; slots grow if a larger item arrives
+    private static final int INITIAL_ITEM_SIZE = 64;
+
+    private final Slot[] slots;
+    private final int mask;
+    // Next slot to write (only advanced by the producer)
+    private final AtomicLong head = new AtomicLong();
+    // Next slot to read (only advanced by the consumer)
+    private final AtomicLong tail = new AtomicLong();
+    private volatile Thread waitingProducer;
+    private volatile Thread waitingConsumer;
+    private volatile boolean closed = false;
+    // Number of times the producer has had to wait for space
+    private volatile long stalls = 0;
+
+    /**
+     * Receives items drained from the ring. The data buffer is only valid for
+     * the duration of the call.
+     */
+    public interface Consumer {
+        /**
+         * @param logUuid The data log session UUID
+         * @param tag The data log tag
+         * @param timestamp The data log session timestamp, or 0 if not given
+         * @param receivedAt POSIX time in ms that the item was put in the ring
+         * @param data The item, in the first length bytes
+         */
+        void accept(UUID logUuid, int tag, long timestamp, long receivedAt, byte[] data, int length);
+    }
+
+    /**
+     * @param capacity Number of slots, rounded up to a power of two
+     */
+    public PacketRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++)
+            slots[i] = new Slot();
+        mask = size - 1;
+    }
+
+    /**
+     * Copy an item into the ring, waiting for space if it is full.
+     * Must only be called from the producer thread.
+     * @return false if the ring was closed before the item could be added
+     */
+    public boolean put(UUID logUuid, int tag, byte[] data) {
+        return put(logUuid, tag, data, data.length);
+    }
+
+    /**
+     * Copy the first length bytes of a buffer into the ring as an item,
+     * waiting for space if it is full.
+     * Must only be called from the producer thread.
+     * @return false if the ring was closed before the item could be added
+     */
+    public boolean put(UUID logUuid, int tag, byte[] data, int length) {
+        return put(logUuid, tag, 0, data, length);
+    }
+
+    /**
+     * Copy the first length bytes of a buffer into the ring as an item of a
+     * session with the given timestamp, waiting for space if it is full.
+     * Must only be called from the producer thread.
+     * @return false if the ring was closed before the item could be added
+     */
+    public boolean put(UUID logUuid, int tag, long timestamp, byte[] data, int length) {
+        long h = head.get();
+        if (h - tail.get() >= slots.length)
+            stalls++;
+        while (h - tail.get() >= slots.length) {
+            if (closed)
+                return false;
+            waitingProducer = Thread.currentThread();
+            if (h - tail.get() >= slots.length)
+                LockSupport.parkNanos(this, 1000000);
+            waitingProducer = null;
+        }
+        Slot slot = slots[(int)h & mask];
+        if (slot.data.length < length)
+            slot.data = new byte[Math.max(length, slot.data.length * 2)];
+        System.arraycopy(data, 0, slot.data, 0, length);
+        slot.length = length;
+        slot.logUuid = logUuid;
+        slot.tag = tag;
+        slot.timestamp = timestamp;
+        slot.receivedAt = System.currentTimeMillis();
+        // Publish the slot
+        head.lazySet(h + 1);
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+        return true;
+    }
+
+    /**
+     * Hand up to maxItems queued items to a consumer, oldest first.
+     * Must only be called from the consumer thread.
+     * @return The number of items consumed
+     */
+    public int drain(Consumer consumer, int maxItems) {
+        long t = tail.get();
+        long available = Math.min(head.get() - t, maxItems);
+        for (int i = 0; i < available; i++) {
+            Slot slot = slots[(int)(t + i) & mask];
+            try {
+                consumer.accept(slot.logUuid, slot.tag, slot.timestamp, slot.receivedAt, slot.data, slot.length);
+            } finally {
+                slot.logUuid = null;
+                // Free the slot
+                tail.lazySet(t + i + 1);
+            }
+        }
+        Thread producer = waitingProducer;
+        if (available > 0 && producer != null)
+            LockSupport.unpark(producer);
+        return (int)available;
+    }
+
+    /**
+     * Wait until an item is available, the timeout elapses, or the ring is
+     * closed. Must only be called from the consumer thread.
+     */
+    public void await(long timeoutNanos) {
+        waitingConsumer = Thread.currentThread();
+        if (isEmpty() && !closed)
+            LockSupport.parkNanos(this, timeoutNanos);
+        waitingConsumer = null;
+    }
+
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    /**
+     * Get the number of queued items
+     */
+    public int size() {
+        return (int)(head.get() - tail.get());
+    }
+
+    public int capacity() {
+        return slots.length;
+    }
+
+    /**
+     * Get the number of items the producer had to wait to add because the
+     * ring was full
+     */
+    public long getStallCount() {
+        return stalls;
+    }
+
+    /**
+     * Wake the consumer if it is waiting, even though no item was added
+     */
+    public void wake() {
+        Thread consumer = waitingConsumer;
+        if (consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * Wake both sides and refuse further items
+     */
+    public void close() {
+        closed = true;
+        Thread thread = waitingProducer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        thread = waitingConsumer;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    private static class Slot {
+        UUID logUuid;
+        int tag;
+        long timestamp;
+        long receivedAt;
+        byte[] data = new byte[INITIAL_ITEM_SIZE];
+        int length;
+    }
+}
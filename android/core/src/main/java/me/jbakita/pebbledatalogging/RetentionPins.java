@@ -0,0 +1,102 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * Time ranges which stores keeping only recent readings must not overwrite
+ * until they are released, such as activities which have not been saved.
+ * One set is shared by every store of a SensorRegistry. A store checks its
+ * pins only when it is about to reuse a page, and holds that page back,
+ * using one of its spare pages instead, while the page overlaps a pin.
+ * Any thread may pin and release ranges.
+ */
+public class RetentionPins {
+    // Replaced rather than resized so stores can check pins without locking or allocating
+    private volatile Pin[] pins = new Pin[0];
+
+    /**
+     * A pinned time range. Its stop time may be set once it is known.
+     */
+    public class Pin {
+        private final long startTime;
+        private volatile long stopTime;
+
+        private Pin(long startTime, long stopTime) {
+            this.startTime = startTime;
+            this.stopTime = stopTime;
+        }
+
+        public long getStartTime() {
+            return startTime;
+        }
+
+        /**
+         * Get the end of the range, which is Long.MAX_VALUE until it is known
+         */
+        public long getStopTime() {
+            return stopTime;
+        }
+
+        /**
+         * @param stopTime POSIX time in ms after the last pinned reading
+         */
+        public void setStopTime(long stopTime) {
+            this.stopTime = stopTime;
+        }
+
+        /**
+         * Let stores overwrite this range. Does nothing if already released.
+         */
+        public void release() {
+            remove(this);
+        }
+    }
+
+    /**
+     * Pin a range whose end is not yet known
+     * @param startTime POSIX time in ms of the first pinned reading
+     */
+    public Pin pin(long startTime) {
+        return pin(startTime, Long.MAX_VALUE);
+    }
+
+    /**
+     * Pin the readings taken in [startTime, stopTime)
+     */
+    public synchronized Pin pin(long startTime, long stopTime) {
+        Pin pin = new Pin(startTime, stopTime);
+        Pin[] larger = new Pin[pins.length + 1];
+        System.arraycopy(pins, 0, larger, 0, pins.length);
+        larger[pins.length] = pin;
+        pins = larger;
+        return pin;
+    }
+
+    private synchronized void remove(Pin pin) {
+        for (int i = 0; i < pins.length; i++) {
+            if (pins[i] == pin) {
+                Pin[] smaller = new Pin[pins.length - 1];
+                System.arraycopy(pins, 0, smaller, 0, i);
+                System.arraycopy(pins, i + 1, smaller, i, pins.length - i - 1);
+                pins = smaller;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check whether any pinned range overlaps [startTime, stopTime)
+     */
+    public boolean overlaps(long startTime, long stopTime) {
+        for (Pin pin : pins) {
+            if (pin.startTime < stopTime && startTime < pin.stopTime)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of ranges currently pinned
+     */
+    public int size() {
+        return pins.length;
+    }
+}
@@ -0,0 +1,719 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Columnar storage for a sequence of accelerometer readings.
+ * Readings are kept in fixed-size pages of primitive arrays (one array per
+ * field) rather than as one object per reading, which costs 14 bytes of heap
+ * per reading instead of ~40. Readings are accessed through a reusable Cursor.
+ *
+ * A store may be backed by a SpillJournal. Readings are then appended to the
+ * journal by flushJournal(), and once only a hot window of recent pages is
+ * kept on the heap, older pages are dropped and read back from the journal
+ * when needed.
+ * Full pages whose readings can no longer be corrected are sealed by seal(),
+ * which replaces them with a SealedChunk of about a quarter of the size. The
+ * page being written stays uncompressed. Cursors decode sealed pages as they
+ * go, without copying them. A page which would not get any smaller is kept
+ * uncompressed.
+ * A store may instead keep only its most recent readings, for logging
+ * continuously. attachRetention() sets up a fixed ring of page slots.
+ * Pages are allocated as they are started, like any other store's, and
+ * each replaces the page in its slot once that falls out of the retention
+ * window. Pages are sealed as usual, so memory stays under
+ * getMaxRetentionMemory(), and well under it once pages are sealed. Indexes
+ * keep counting up; readings before getFirstIndex() are no longer retained.
+ * Pages overlapping a RetentionPins range are held back, using spare
+ * pages, until the pin is released or every spare page is in use.
+ * A MinMaxPyramid of the readings is kept alongside them so that long
+ * ranges can be plotted quickly.
+ * Only one thread may modify a store, but any thread may read it.
+ */
+public class SampleStore {
+    // Number of readings per page
+    public static final int PAGE_SIZE = 1024;
+    // Default number of pages kept on the heap when backed by a journal
+    public static final int DEFAULT_RESIDENT_PAGES = 8;
+    // Reused by getTimestamp() on each thread, continuing from the last reading it decoded
+    private static final ThreadLocal<SealedChunk.Decoder> TIMESTAMP_DECODERS = new ThreadLocal<SealedChunk.Decoder>() {
+        @Override
+        protected SealedChunk.Decoder initialValue() {
+            return new SealedChunk.Decoder();
+        }
+    };
+
+    // Replaced rather than resized so other threads never see a partial copy.
+    // A null page has been dropped and must be read from the journal.
+    private volatile Page[] pages = new Page[16];
+    // First timestamp of each page, kept even for dropped pages
+    private volatile long[] firstTimestamps = new long[16];
+    // Written only after a reading is complete so other threads can read safely
+    private volatile int size = 0;
+    private SpillJournal journal = null;
+    private int maxResidentPages = DEFAULT_RESIDENT_PAGES;
+    // Number of readings written to the journal
+    private int journaled = 0;
+    // Every page before this one has been dropped from the heap
+    private int firstResidentPage = 0;
+    // Every page before this one has been sealed or dropped
+    private int firstUnsealedPage = 0;
+    // Number of page slots when they are reused in a ring, else 0
+    private int ringSlots = 0;
+    private int retainedPages = 0;
+    private int sparePages = 0;
+    private RetentionPins pins = null;
+    // Readings before this index are no longer retained. Written before their pages are reused.
+    private volatile int firstIndex = 0;
+    // Pinned readings overwritten because every spare page was in use
+    private volatile long overwrittenPinned = 0;
+    // Number of spare pages holding back pinned readings
+    private volatile int heldBackPages = 0;
+    // Kept on the heap even when pages are dropped
+    private MinMaxPyramid pyramid = new MinMaxPyramid();
+
+    /**
+     * Back this store with a new, empty journal. Readings already in the
+     * store are written to it by the next flushJournal().
+     * @param journal Where readings are spilled
+     * @param maxResidentPages Number of most recent pages to keep on the heap
+     */
+    public void attachJournal(SpillJournal journal, int maxResidentPages) {
+        if (this.journal != null)
+            throw new UnsupportedOperationException("Store already has a journal.");
+        if (ringSlots != 0)
+            throw new UnsupportedOperationException("Store keeps only recent readings, so cannot be journaled.");
+        if (journal.getRecordCount() != 0)
+            throw new IllegalArgumentException("Journal is not empty. Use restore() instead.");
+        this.journal = journal;
+        this.maxResidentPages = Math.max(1, maxResidentPages);
+    }
+
+    /**
+     * Keep only the most recent readings, in a ring of page slots. Must be
+     * called before any readings are appended, and before the store is
+     * shared with other threads.
+     * @param retainedPages Number of full pages of the most recent readings to keep
+     * @param sparePages Number of extra pages which may hold back pinned readings
+     * @param pins Ranges to hold back, or null
+     */
+    public void attachRetention(int retainedPages, int sparePages, RetentionPins pins) {
+        if (ringSlots != 0)
+            throw new UnsupportedOperationException("Store already keeps only recent readings.");
+        if (journal != null)
+            throw new UnsupportedOperationException("Store has a journal, so must keep every reading.");
+        if (size != 0)
+            throw new IllegalStateException("Store already has readings.");
+        if (retainedPages < 1 || sparePages < 0)
+            throw new IllegalArgumentException("Must retain at least 1 page, with no fewer than 0 spare.");
+        int slots = getSlotCount(retainedPages, sparePages);
+        this.retainedPages = retainedPages;
+        this.sparePages = sparePages;
+        this.pins = pins;
+        pyramid = new MinMaxPyramid(slots * PAGE_SIZE);
+        firstTimestamps = new long[slots];
+        ringSlots = slots;
+        pages = new Page[slots];
+    }
+
+    /**
+     * Get the most heap a store keeping only recent readings can use in
+     * bytes, including its pyramid. This is reached only if none of its
+     * pages compress.
+     * @param retainedPages Number of full pages of the most recent readings to keep
+     * @param sparePages Number of extra pages which may hold back pinned readings
+     */
+    public static long getMaxRetentionMemory(int retainedPages, int sparePages) {
+        int slots = getSlotCount(retainedPages, sparePages);
+        return 2 * (16 + 8L * slots) + slots * Page.RAW_SIZE + MinMaxPyramid.getMemoryUsage(slots * PAGE_SIZE);
+    }
+
+    private static int getSlotCount(int retainedPages, int sparePages) {
+        // The page being written, and one more so that readers have a page of grace before a slot is reused
+        return retainedPages + sparePages + 2;
+    }
+
+    /**
+     * Recreate a store from an existing journal. Only the last page is read
+     * back onto the heap; earlier pages are read on demand.
+     * @param journal The journal to replay and continue appending to
+     * @param maxResidentPages Number of most recent pages to keep on the heap
+     */
+    public static SampleStore restore(SpillJournal journal, int maxResidentPages) throws IOException {
+        SampleStore store = new SampleStore();
+        store.journal = journal;
+        store.maxResidentPages = Math.max(1, maxResidentPages);
+        int count = journal.getRecordCount();
+        int pageCount = (count + PAGE_SIZE - 1) / PAGE_SIZE;
+        int capacity = 16;
+        while (capacity < pageCount)
+            capacity *= 2;
+        Page[] pages = new Page[capacity];
+        long[] firstTimestamps = new long[capacity];
+        for (int i = 0; i < pageCount - 1; i++)
+            firstTimestamps[i] = journal.readTimestamp(i * PAGE_SIZE);
+        if (pageCount > 0) {
+            Page last = new Page();
+            int lastCount = count - (pageCount - 1) * PAGE_SIZE;
+            journal.read((pageCount - 1) * PAGE_SIZE, lastCount, ByteBuffer.allocate(PAGE_SIZE * SpillJournal.RECORD_SIZE),
+                    last.timestamps, last.x, last.y, last.z);
+            pages[pageCount - 1] = last;
+            firstTimestamps[pageCount - 1] = last.timestamps[0];
+            store.firstResidentPage = pageCount - 1;
+        }
+        store.pages = pages;
+        store.firstTimestamps = firstTimestamps;
+        store.journaled = count;
+        store.firstUnsealedPage = Math.max(0, pageCount - 1);
+        store.size = count;
+        // Rebuilding the pyramid reads the journal once, in order
+        Cursor reading = store.cursor();
+        while (reading.next())
+            store.pyramid.add(reading.getX(), reading.getY(), reading.getZ());
+        return store;
+    }
+
+    /**
+     * Append a reading to the end of the store
+     * @param timestamp POSIX time in ms that this reading was taken at
+     * @param x The X vector of acceleration
+     * @param y The Y vector of acceleration
+     * @param z The Z vector of acceleration
+     */
+    public void append(long timestamp, int x, int y, int z) {
+        int offset = size % PAGE_SIZE;
+        int pageIndex = size / PAGE_SIZE;
+        if (offset == 0) {
+            if (ringSlots != 0) {
+                retire(pageIndex);
+            }
+            else if (pageIndex == pages.length) {
+                long[] largerTimestamps = new long[pages.length * 2];
+                System.arraycopy(firstTimestamps, 0, largerTimestamps, 0, pages.length);
+                firstTimestamps = largerTimestamps;
+                Page[] larger = new Page[pages.length * 2];
+                System.arraycopy(pages, 0, larger, 0, pages.length);
+                pages = larger;
+            }
+            // Readers still holding a replaced page of a ring can keep using it
+            pages[slot(pageIndex)] = new Page();
+            firstTimestamps[slot(pageIndex)] = timestamp;
+        }
+        Page page = pages[slot(pageIndex)];
+        page.timestamps[offset] = timestamp;
+        page.x[offset] = (short)x;
+        page.y[offset] = (short)y;
+        page.z[offset] = (short)z;
+        size++;
+        pyramid.add(page.x[offset], page.y[offset], page.z[offset]);
+    }
+
+    /* Stop retaining the oldest pages of a ring which are no longer needed,
+     * before a page is started
+     */
+    private void retire(int pageIndex) {
+        int firstPage = firstIndex / PAGE_SIZE;
+        while (pageIndex - firstPage > retainedPages) {
+            boolean pinned = pins != null
+                    && pins.overlaps(firstTimestamps[slot(firstPage)], firstTimestamps[slot(firstPage + 1)]);
+            if (pinned && pageIndex - firstPage <= retainedPages + sparePages)
+                break;
+            if (pinned)
+                overwrittenPinned += PAGE_SIZE;
+            firstPage++;
+        }
+        heldBackPages = Math.max(0, pageIndex - firstPage - retainedPages);
+        firstIndex = firstPage * PAGE_SIZE;
+    }
+
+    /* Get the slot of the pages array holding a page
+     */
+    private int slot(int pageIndex) {
+        return ringSlots == 0 ? pageIndex : pageIndex % ringSlots;
+    }
+
+    /* Check whether a reading's page slot has been reused, or will be when
+     * the page after the one being written is started. Readings which are
+     * still retained never are, so readers have a page of grace.
+     */
+    private boolean isOverwritten(int index) {
+        return ringSlots != 0 && (long)(index / PAGE_SIZE + ringSlots - 1) * PAGE_SIZE < size;
+    }
+
+    /**
+     * Get the number of readings appended to this store, including any
+     * which are no longer retained
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the index of the oldest reading still retained, which is 0 unless
+     * this store keeps only recent readings
+     */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Get the number of pinned readings which were overwritten because
+     * they were held back longer than the spare pages allowed
+     */
+    public long getOverwrittenPinnedCount() {
+        return overwrittenPinned;
+    }
+
+    /**
+     * Get the number of spare pages currently holding back pinned readings.
+     * Once all getSparePageCount() are in use, starting another page
+     * overwrites the oldest pinned page.
+     */
+    public int getHeldBackPageCount() {
+        return heldBackPages;
+    }
+
+    /**
+     * Get the number of extra pages which may hold back pinned readings,
+     * which is 0 unless this store keeps only recent readings
+     */
+    public int getSparePageCount() {
+        return sparePages;
+    }
+
+    /**
+     * Get the timestamp of a reading. In a sealed page, readings are decoded
+     * from the one this thread last read if it was earlier in the page, so
+     * reading several in order costs no more than a Cursor would. Use a
+     * Cursor to read many readings.
+     * @param index The index of the reading
+     * @return POSIX time in ms
+     */
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        if (index % PAGE_SIZE == 0)
+            return firstTimestamps[slot(index / PAGE_SIZE)];
+        Page page = pages[slot(index / PAGE_SIZE)];
+        if (page != null && page.sealed != null) {
+            SealedChunk.Decoder decoder = TIMESTAMP_DECODERS.get();
+            if (!decoder.isReading(page.sealed) || decoder.getIndex() > index % PAGE_SIZE)
+                decoder.reset(page.sealed);
+            decoder.seek(index % PAGE_SIZE);
+            return decoder.getTimestamp();
+        }
+        if (page != null)
+            return page.timestamps[index % PAGE_SIZE];
+        try {
+            return journal.readTimestamp(index);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read journal.", e);
+        }
+    }
+
+    /**
+     * Correct the timestamp of a reading which has not yet been journaled.
+     * The new timestamp must keep the store in time order. Other threads may
+     * briefly see the old timestamp.
+     * @param index The index of the reading
+     * @param timestamp POSIX time in ms that this reading was taken at
+     * @throws IllegalStateException if the reading has already been journaled
+     *                               or sealed
+     */
+    void setTimestamp(int index, long timestamp) {
+        checkIndex(index);
+        if (index < journaled)
+            throw new IllegalStateException("Reading " + index + " has already been journaled.");
+        if (index < firstUnsealedPage * PAGE_SIZE)
+            throw new IllegalStateException("Reading " + index + " has already been sealed.");
+        pages[slot(index / PAGE_SIZE)].timestamps[index % PAGE_SIZE] = timestamp;
+        if (index % PAGE_SIZE == 0)
+            firstTimestamps[slot(index / PAGE_SIZE)] = timestamp;
+    }
+
+    /**
+     * Append all readings not yet in the journal to it, force them to
+     * storage, and drop pages outside the hot window from the heap.
+     * Does nothing if this store is not backed by a journal.
+     */
+    public void flushJournal() throws IOException {
+        flushJournal(size);
+    }
+
+    /**
+     * Like flushJournal(), but leave readings from end onwards out of the
+     * journal so that their timestamps can still be corrected.
+     * @param end Journal readings before this index
+     */
+    public void flushJournal(int end) throws IOException {
+        if (journal == null)
+            return;
+        int count = Math.min(end, size);
+        if (journaled >= count)
+            return;
+        while (journaled < count) {
+            Page page = pages[journaled / PAGE_SIZE];
+            int offset = journaled % PAGE_SIZE;
+            int length = Math.min(PAGE_SIZE - offset, count - journaled);
+            journal.append(page.timestamps, page.x, page.y, page.z, offset, length);
+            journaled += length;
+        }
+        journal.sync();
+        // Drop the oldest pages which are fully journaled
+        int lastPage = (size - 1) / PAGE_SIZE;
+        while (lastPage - firstResidentPage >= maxResidentPages && (firstResidentPage + 1) * PAGE_SIZE <= journaled) {
+            pages[firstResidentPage] = null;
+            firstResidentPage++;
+        }
+        firstUnsealedPage = Math.max(firstUnsealedPage, firstResidentPage);
+    }
+
+    /**
+     * Compress every full page before a reading, so long as it is not the
+     * page being written. Readings in sealed pages can no longer be
+     * corrected by setTimestamp(). Pages which are no longer retained are
+     * skipped.
+     * @param end Seal pages holding only readings before this index
+     */
+    public void seal(int end) {
+        int count = Math.min(end, size);
+        // Readings are journaled from the uncompressed pages
+        if (journal != null)
+            count = Math.min(count, journaled);
+        firstUnsealedPage = Math.max(firstUnsealedPage, firstIndex / PAGE_SIZE);
+        while ((firstUnsealedPage + 1) * PAGE_SIZE <= count) {
+            int slot = slot(firstUnsealedPage);
+            Page page = pages[slot];
+            if (page != null) {
+                SealedChunk sealed = SealedChunk.pack(page.timestamps, page.x, page.y, page.z, PAGE_SIZE);
+                // Readers holding the old page can keep using it
+                if (sealed.getMemoryUsage() < Page.RAW_SIZE)
+                    pages[slot] = new Page(sealed);
+            }
+            firstUnsealedPage++;
+        }
+    }
+
+    /**
+     * Get the approximate heap used by the readings held in memory in bytes,
+     * excluding the pyramid
+     */
+    public long getMemoryUsage() {
+        Page[] pages = this.pages;
+        long bytes = 16 + 8L * pages.length + 16 + 8L * firstTimestamps.length;
+        // Every slot of a ring holds a page once it has wrapped, retained or not
+        int pageCount = ringSlots != 0 ? ringSlots : (size + PAGE_SIZE - 1) / PAGE_SIZE;
+        for (int i = 0; i < pageCount; i++) {
+            Page page = pages[i];
+            if (page != null)
+                bytes += page.sealed != null ? page.sealed.getMemoryUsage() : Page.RAW_SIZE;
+        }
+        return bytes;
+    }
+
+    /**
+     * Get the journal backing this store, or null
+     */
+    public SpillJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Get the number of pages currently held on the heap
+     */
+    public int getResidentPageCount() {
+        if (ringSlots != 0)
+            return Math.min(ringSlots, (size + PAGE_SIZE - 1) / PAGE_SIZE);
+        int pageCount = (size + PAGE_SIZE - 1) / PAGE_SIZE;
+        return pageCount - firstResidentPage;
+    }
+
+    /* Read a dropped page back from the journal
+     * @param dest Where to read the page
+     * @return dest
+     */
+    private Page readDroppedPage(int pageIndex, Page dest) {
+        try {
+            // Dropped pages are always full
+            journal.read(pageIndex * PAGE_SIZE, PAGE_SIZE, dest.buffer(), dest.timestamps, dest.x, dest.y, dest.z);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read journal.", e);
+        }
+        return dest;
+    }
+
+    /**
+     * Find the first reading taken at or after a time. Readings must have
+     * been appended in time order. The first timestamp of each page serves
+     * as a sparse index, so only one page is searched.
+     * @param time POSIX time in ms
+     * @return The index of the reading, or size() if every reading is
+     *         earlier, or getFirstIndex() if every retained reading is later
+     */
+    public int indexOf(long time) {
+        // Snapshot size before pages so both are consistent
+        int count = size;
+        int retained = Math.min(firstIndex, count);
+        long[] firstTimestamps = this.firstTimestamps;
+        if (count == 0)
+            return 0;
+        // Find the last page starting before time
+        int low = retained / PAGE_SIZE;
+        int high = (count - 1) / PAGE_SIZE;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (firstTimestamps[slot(mid)] < time)
+                low = mid;
+            else
+                high = mid - 1;
+        }
+        // Then the first reading at or after time, which is in that page or starts the next
+        Page page = pages[slot(low)];
+        int last = Math.min(count - low * PAGE_SIZE, PAGE_SIZE);
+        if (page != null && page.sealed != null) {
+            // Sealed pages can only be read in order
+            SealedChunk.Decoder decoder = new SealedChunk.Decoder();
+            decoder.reset(page.sealed);
+            while (decoder.next()) {
+                if (decoder.getTimestamp() >= time)
+                    return low * PAGE_SIZE + decoder.getIndex();
+            }
+            return low * PAGE_SIZE + last;
+        }
+        if (page == null)
+            page = readDroppedPage(low, new Page());
+        long[] timestamps = page.timestamps;
+        int first = 0;
+        while (first < last) {
+            int mid = (first + last) >>> 1;
+            if (timestamps[mid] < time)
+                first = mid + 1;
+            else
+                last = mid;
+        }
+        return low * PAGE_SIZE + first;
+    }
+
+    /**
+     * Downsample the readings taken in [startTime, stopTime) for plotting.
+     * Each pixel covers an equal number of readings, which at a steady
+     * sample rate is an equal span of time.
+     * @param out Where to write the pixels
+     */
+    public void downsampleTimes(long startTime, long stopTime, MinMaxPyramid.Buckets out) {
+        int start = indexOf(startTime);
+        pyramid.downsample(this, start, Math.max(start, indexOf(stopTime)), out);
+    }
+
+    /**
+     * Downsample the readings with indexes in [start, stop) for plotting.
+     * Readings which are no longer retained are left out.
+     * @param out Where to write the pixels
+     */
+    public void downsample(int start, int stop, MinMaxPyramid.Buckets out) {
+        if (start < 0 || start > stop || stop > size)
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + stop + ") out of range for " + size + " readings.");
+        start = Math.min(Math.max(start, firstIndex), stop);
+        pyramid.downsample(this, start, stop, out);
+    }
+
+    /**
+     * Create a cursor positioned before the first retained reading
+     */
+    public Cursor cursor() {
+        int end = size;
+        return new Cursor(Math.min(firstIndex, end), end);
+    }
+
+    /**
+     * Create a cursor over the readings with indexes in [start, end).
+     * Its next() throws IllegalStateException on reaching a reading which
+     * has been overwritten.
+     */
+    public Cursor cursor(int start, int end) {
+        if (start < 0 || start > end || end > size)
+            throw new IndexOutOfBoundsException("Range [" + start + ", " + end + ") out of range for " + size + " readings.");
+        return new Cursor(start, end);
+    }
+
+    /**
+     * Create a cursor over the readings taken in [startTime, stopTime).
+     * No readings are copied; the cursor reads the pages in place.
+     */
+    public Cursor cursor(long startTime, long stopTime) {
+        int start = indexOf(startTime);
+        return new Cursor(start, Math.max(start, indexOf(stopTime)));
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of range for " + size + " readings.");
+        if (isOverwritten(index))
+            throw new IllegalStateException("Reading " + index + " has been overwritten.");
+    }
+
+    /* Either PAGE_SIZE uncompressed readings, or a sealed chunk of them.
+     * Fields are final so a page replaced by its sealed copy is safely
+     * published to other threads.
+     */
+    private static class Page {
+        // Arrays and headers of an uncompressed page
+        static final long RAW_SIZE = 16 + 4 * 16 + PAGE_SIZE * (8 + 3 * 2);
+        // Null if sealed
+        final long[] timestamps;
+        final short[] x;
+        final short[] y;
+        final short[] z;
+        // Null unless sealed
+        final SealedChunk sealed;
+        // Only used by scratch pages, for reading from the journal
+        private ByteBuffer buffer;
+
+        Page() {
+            timestamps = new long[PAGE_SIZE];
+            x = new short[PAGE_SIZE];
+            y = new short[PAGE_SIZE];
+            z = new short[PAGE_SIZE];
+            sealed = null;
+        }
+
+        Page(SealedChunk sealed) {
+            timestamps = null;
+            x = null;
+            y = null;
+            z = null;
+            this.sealed = sealed;
+        }
+
+        ByteBuffer buffer() {
+            if (buffer == null)
+                buffer = ByteBuffer.allocate(PAGE_SIZE * SpillJournal.RECORD_SIZE);
+            return buffer;
+        }
+    }
+
+    /**
+     * A flyweight view of one reading at a time. Call next() to advance to the
+     * next reading, then use the getters just like an AccelerometerReading.
+     */
+    public class Cursor {
+        private final int start;
+        private final int end;
+        private int index;
+        private Page page;
+        private int offset;
+        // Holds dropped pages read back from the journal
+        private Page scratch;
+        // Reads the current page when it is sealed, else null
+        private SealedChunk.Decoder decoder;
+        private SealedChunk.Decoder sealedDecoder;
+
+        private Cursor(int start, int end) {
+            this.start = start;
+            this.index = start - 1;
+            this.end = end;
+        }
+
+        /**
+         * Advance to the next reading
+         * @return false if there are no more readings
+         */
+        public boolean next() {
+            if (index + 1 >= end)
+                return false;
+            index++;
+            offset = index % PAGE_SIZE;
+            if (offset == 0 || page == null) {
+                // Slots of a ring are reused once their readings are no longer retained
+                if (isOverwritten(index))
+                    throw new IllegalStateException("Reading " + index + " was overwritten before it could be read.");
+                page = pages[slot(index / PAGE_SIZE)];
+                decoder = null;
+                if (page == null) {
+                    if (scratch == null)
+                        scratch = new Page();
+                    page = readDroppedPage(index / PAGE_SIZE, scratch);
+                }
+                else if (page.sealed != null) {
+                    if (sealedDecoder == null)
+                        sealedDecoder = new SealedChunk.Decoder();
+                    decoder = sealedDecoder;
+                    decoder.reset(page.sealed);
+                }
+            }
+            if (decoder != null)
+                decoder.seek(offset);
+            return true;
+        }
+
+        /**
+         * Advance to a reading at or after the current one, without decoding
+         * the pages in between
+         * @param index The index of the reading in the store
+         * @return false if the reading is not covered by this cursor
+         */
+        public boolean seek(int index) {
+            if (index < this.index)
+                throw new IllegalArgumentException("Cannot seek back to " + index + " from " + this.index + ".");
+            if (index >= end)
+                return false;
+            // Load the page afresh unless the reading is further on in the current one
+            if (index / PAGE_SIZE != this.index / PAGE_SIZE)
+                page = null;
+            this.index = index - 1;
+            return next();
+        }
+
+        /**
+         * Get the number of readings this cursor covers
+         */
+        public int getCount() {
+            return end - start;
+        }
+
+        /**
+         * Get the index of the current reading in the store
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public int getX() {
+            return decoder != null ? decoder.getX() : page.x[offset];
+        }
+
+        public int getY() {
+            return decoder != null ? decoder.getY() : page.y[offset];
+        }
+
+        public int getZ() {
+            return decoder != null ? decoder.getZ() : page.z[offset];
+        }
+
+        public long getTimestamp() {
+            return decoder != null ? decoder.getTimestamp() : page.timestamps[offset];
+        }
+
+        /**
+         * Retrieve the vector magnitude of the current reading.
+         */
+        public double getMagnitude() {
+            int x = getX();
+            int y = getY();
+            int z = getZ();
+            return Math.sqrt((long)x * x + (long)y * y + (long)z * z);
+        }
+
+        /**
+         * Retrieve the current reading in the same CSV format as AccelerometerReading
+         */
+        public String toCSV() {
+            return String.format(Locale.US, "%14d,%+5d,%+5d,%+5d", getTimestamp(), getX(), getY(), getZ());
+        }
+    }
+}
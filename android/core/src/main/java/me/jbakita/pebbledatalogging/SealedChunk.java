@@ -0,0 +1,257 @@
+package me.jbakita.pebbledatalogging;
+
+/**
+ * An immutable, compressed run of readings which will no longer change.
+ * Timestamps are stored as the difference between successive deltas, which
+ * is almost always 0 or +-1ms because readings are interpolated at a steady
+ * rate. Each axis is stored as the zig-zag encoded difference from the
+ * previous reading, as axes change slowly. Both are packed into the fewest
+ * bits from a small set of widths, each with a short prefix:
+ *  - Timestamps: 0 for no change, 10 + 3 bits, 110 + 9 bits, 1110 + 16 bits
+ *    or 1111 + 64 bits
+ *  - Axes: 0 for no change, 10 + 4 bits, 110 + 7 bits, 1110 + 10 bits or
+ *    1111 + 17 bits
+ * The first reading is stored in full. A walking signal takes under 4 bytes
+ * per reading instead of 14.
+ *
+ * Readings can only be read in order, through a Decoder.
+ */
+public final class SealedChunk {
+    // Longest possible encoded reading in bits. Codes have at most four prefix bits.
+    private static final int MAX_READING_BITS = 4 + 64 + 3 * (4 + 17);
+    private static final int[] TIMESTAMP_WIDTHS = {0, 3, 9, 16, 64};
+    private static final int[] AXIS_WIDTHS = {0, 4, 7, 10, 17};
+
+    private final int count;
+    // Bit stream, most significant bit of each word first
+    private final long[] bits;
+
+    private SealedChunk(int count, long[] bits) {
+        this.count = count;
+        this.bits = bits;
+    }
+
+    /**
+     * Compress readings
+     * @param timestamps POSIX time in ms of each reading, in time order
+     * @param count Number of readings, at least 1
+     */
+    public static SealedChunk pack(long[] timestamps, short[] x, short[] y, short[] z, int count) {
+        if (count < 1)
+            throw new IllegalArgumentException("A chunk must hold at least one reading.");
+        Encoder encoder = new Encoder(64 + 3 * 16 + (long)(count - 1) * MAX_READING_BITS);
+        encoder.write(timestamps[0], 64);
+        encoder.write(x[0] & 0xFFFF, 16);
+        encoder.write(y[0] & 0xFFFF, 16);
+        encoder.write(z[0] & 0xFFFF, 16);
+        long delta = 0;
+        for (int i = 1; i < count; i++) {
+            long nextDelta = timestamps[i] - timestamps[i - 1];
+            encoder.writeCode(zigzag(nextDelta - delta), TIMESTAMP_WIDTHS);
+            delta = nextDelta;
+            encoder.writeCode(zigzag(x[i] - x[i - 1]), AXIS_WIDTHS);
+            encoder.writeCode(zigzag(y[i] - y[i - 1]), AXIS_WIDTHS);
+            encoder.writeCode(zigzag(z[i] - z[i - 1]), AXIS_WIDTHS);
+        }
+        return new SealedChunk(count, encoder.toArray());
+    }
+
+    /**
+     * Get the number of readings in this chunk
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the approximate heap used by this chunk in bytes
+     */
+    public long getMemoryUsage() {
+        // Object and array headers, plus the words
+        return 16 + 16 + 8L * bits.length;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Writes a bit stream into a buffer sized for the worst case
+     */
+    private static class Encoder {
+        private final long[] words;
+        private long position = 0;
+
+        Encoder(long maxBits) {
+            words = new long[(int)((maxBits + 63) / 64)];
+        }
+
+        /* Write the low width bits of value, most significant first
+         */
+        void write(long value, int width) {
+            if (width == 0)
+                return;
+            int word = (int)(position >>> 6);
+            int used = (int)(position & 63);
+            int free = 64 - used;
+            if (width < 64)
+                value &= (1L << width) - 1;
+            if (width <= free) {
+                words[word] |= value << (free - width);
+            }
+            else {
+                words[word] |= value >>> (width - free);
+                words[word + 1] |= value << (64 - (width - free));
+            }
+            position += width;
+        }
+
+        /* Write an unsigned value with the narrowest width that holds it,
+         * preceded by the width's prefix
+         */
+        void writeCode(long value, int[] widths) {
+            if (value == 0) {
+                write(0, 1);
+                return;
+            }
+            int code = 1;
+            while (code < widths.length - 1 && (value >>> widths[code]) != 0)
+                code++;
+            // code ones, then a zero unless it is the last code
+            int prefixWidth = code == widths.length - 1 ? code : code + 1;
+            write(code == widths.length - 1 ? (1L << code) - 1 : ((1L << code) - 1) << 1, prefixWidth);
+            write(value, widths[code]);
+        }
+
+        long[] toArray() {
+            // Plus a word of padding, so a prefix can be read past the end
+            long[] trimmed = new long[(int)((position + 63) >>> 6) + 1];
+            System.arraycopy(words, 0, trimmed, 0, Math.min(trimmed.length, words.length));
+            return trimmed;
+        }
+    }
+
+    /**
+     * Reads a chunk's readings in order. May be reused for another chunk.
+     * Nothing is allocated per reading.
+     */
+    public static class Decoder {
+        private SealedChunk chunk;
+        private long position;
+        private int index;
+        private long delta;
+        private long timestamp;
+        private int x;
+        private int y;
+        private int z;
+
+        /**
+         * Start reading a chunk, positioned before its first reading
+         */
+        public void reset(SealedChunk chunk) {
+            this.chunk = chunk;
+            this.position = 0;
+            this.index = -1;
+            this.delta = 0;
+        }
+
+        /**
+         * Advance to the next reading
+         * @return false if there are no more readings
+         */
+        public boolean next() {
+            if (index + 1 >= chunk.count)
+                return false;
+            index++;
+            if (index == 0) {
+                timestamp = read(64);
+                x = (short)read(16);
+                y = (short)read(16);
+                z = (short)read(16);
+            }
+            else {
+                delta += unzigzag(readCode(TIMESTAMP_WIDTHS));
+                timestamp += delta;
+                x += (int)unzigzag(readCode(AXIS_WIDTHS));
+                y += (int)unzigzag(readCode(AXIS_WIDTHS));
+                z += (int)unzigzag(readCode(AXIS_WIDTHS));
+            }
+            return true;
+        }
+
+        /**
+         * Skip to a reading
+         * @param index The reading's index in the chunk, at or after the current reading
+         */
+        public void seek(int index) {
+            if (index < this.index || index >= chunk.count)
+                throw new IndexOutOfBoundsException("Cannot seek to " + index + " from " + this.index + ".");
+            while (this.index < index)
+                next();
+        }
+
+        /**
+         * Check whether this decoder was last reset to a chunk
+         */
+        public boolean isReading(SealedChunk chunk) {
+            return this.chunk == chunk;
+        }
+
+        /**
+         * Get the index of the current reading in the chunk
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        public int getZ() {
+            return z;
+        }
+
+        /* Read width bits, most significant first
+         */
+        private long read(int width) {
+            if (width == 0)
+                return 0;
+            long[] words = chunk.bits;
+            int word = (int)(position >>> 6);
+            int used = (int)(position & 63);
+            int available = 64 - used;
+            long value;
+            if (width <= available) {
+                value = words[word] << used >>> (64 - width);
+            }
+            else {
+                value = words[word] << used >>> (64 - width);
+                value |= words[word + 1] >>> (64 - (width - available));
+            }
+            position += width;
+            return value;
+        }
+
+        /* Read a value written by Encoder.writeCode()
+         */
+        private long readCode(int[] widths) {
+            // The prefix is up to four ones, ended by a zero unless there are four
+            int prefix = (int)read(4);
+            int code = Math.min(Integer.numberOfLeadingZeros(~prefix << 28), 4);
+            position -= 4 - Math.min(code + 1, 4);
+            return read(widths[code]);
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * A single data source (one Pebble worn on one part of the body).
+ * The watch only sends a synchronization timestamp every 1000 readings, so
+ * readings are stamped as soon as they arrive using the sample period
+ * measured between the last two timestamps. When the next timestamp arrives,
+ * the readings since the previous one are re-stamped by exact integer
+ * interpolation. Only the most recent CORRECTION_WINDOW readings can be
+ * corrected; older ones keep their estimated timestamps.
+ */
+public class Sensor {
+    // Sample period assumed until two timestamps have been received (ms)
+    // The watch always samples at 25Hz regardless of the requested rate
+    private static final long DEFAULT_PERIOD = 40;
+    // Maximum number of readings which may be re-stamped by a timestamp
+    static final int CORRECTION_WINDOW = 2 * SampleStore.PAGE_SIZE;
+    // Timestamps further than this from their estimate are counted as gaps (ms)
+    static final long GAP_THRESHOLD = 1000;
+
+    private String name;
+    private final UUID logUuid;
+    private final int tag;
+    // The last synchronization timestamp
+    private long lastTimestamp = 0;
+    private final SampleStore readings;
+    // Index of the reading taken at lastTimestamp
+    private int syncIndex = 0;
+    // Readings before this index will never be re-stamped
+    private int settled = 0;
+    // The estimated sample period, as an exact fraction (ms per reading)
+    private long periodDuration = DEFAULT_PERIOD;
+    private int periodReadings = 1;
+    // Live window features, or null if not computed
+    private FeatureExtractor features = null;
+    private Metrics metrics;
+    private Metrics.Counter items;
+    private Metrics.Counter bytes;
+    private Metrics.Histogram syncIntervals;
+    private Metrics.Histogram jitter;
+    private Metrics.Counter gaps;
+    // Pinned readings already reported as overwritten, and whether the user was warned they soon would be
+    private long reportedOverwritten = 0;
+    private boolean warnedPinned = false;
+
+    /* Initialize the sensor with a name. Setting the sample rate, and start time are required before adding readings.
+     * @param name The sensor name, used only for display
+     * @param logUuid The data log session this sensor's data arrives on
+     * @param tag The data log tag this sensor's data arrives on
+     * @param timestamp ms since POSIX epoch at which this sensor started (GMT)
+     */
+    public Sensor(String name, UUID logUuid, int tag, long timestamp) {
+        this.name = name;
+        this.logUuid = logUuid;
+        this.tag = tag;
+        this.lastTimestamp = timestamp;
+        this.readings = new SampleStore();
+        initMetrics();
+    }
+    /* Recreate a sensor from readings saved before the app was closed.
+     * Readings taken since the last timestamp are lost. New readings are
+     * stamped on from the last saved reading, at the interval it was saved with.
+     * @param readings A store restored from a journal, with at least one reading
+     */
+    Sensor(String name, UUID logUuid, int tag, SampleStore readings) {
+        this.name = name;
+        this.logUuid = logUuid;
+        this.tag = tag;
+        this.readings = readings;
+        int last = readings.size() - 1;
+        this.lastTimestamp = readings.getTimestamp(last);
+        this.syncIndex = last;
+        this.settled = readings.size();
+        int anchor = Math.max(readings.getFirstIndex(), last - CORRECTION_WINDOW);
+        long anchorTime = readings.getTimestamp(anchor);
+        if (anchor < last && lastTimestamp > anchorTime) {
+            periodDuration = lastTimestamp - anchorTime;
+            periodReadings = last - anchor;
+        }
+        initMetrics();
+    }
+    private void initMetrics() {
+        metrics = new Metrics("Sensor " + name + " (" + getWatchId() + ")");
+        items = metrics.counter("Items", "items", true);
+        bytes = metrics.counter("Received", "bytes", true);
+        syncIntervals = metrics.histogram("Sync interval", "ms");
+        jitter = metrics.histogram("Timestamp error", "ms");
+        gaps = metrics.counter("Gaps", "timestamps", false);
+        metrics.gauge("Readings", "readings", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return readings.size();
+            }
+        });
+        metrics.gauge("Memory", "bytes", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return readings.getMemoryUsage();
+            }
+        });
+        metrics.gauge("Pinned readings overwritten", "readings", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return readings.getOverwrittenPinnedCount();
+            }
+        });
+    }
+    /* Add a sequential accelerometer reading. The time is automatically calculated.
+     * @param r the reading to add
+     * @throws UnsupportedOperationException if the sample rate and beginning timestamp
+     *                                       have yet to be set.
+     */
+    public void addReading(AccelerometerReading r) {
+        addReading(r.getX(), r.getY(), r.getZ());
+    }
+    /* Add a sequential accelerometer reading. The time is automatically calculated.
+     * @param x The X vector of acceleration
+     * @param y The Y vector of acceleration
+     * @param z The Z vector of acceleration
+     * @throws UnsupportedOperationException if the sample rate and beginning timestamp
+     *                                       have yet to be set.
+     */
+    public void addReading(int x, int y, int z) {
+        // Check that everything is setup
+        if (lastTimestamp == 0)
+            throw new UnsupportedOperationException("No starting timestamp set on sensor");
+        // Estimate the timestamp, it is corrected once the next timestamp arrives
+        int index = readings.size();
+        readings.append(lastTimestamp + (index - syncIndex) * periodDuration / periodReadings, x, y, z);
+        if (features != null)
+            features.add(x, y, z);
+        // Readings falling out of the correction window keep their estimate
+        settled = Math.max(settled, index + 1 - CORRECTION_WINDOW);
+    }
+    public String getTitle() {
+        return name;
+    }
+    /* Get a short identifier for the watch (data log session) this sensor is on
+     */
+    public String getWatchId() {
+        return logUuid.toString().substring(0, 8);
+    }
+    public UUID getLogUuid() {
+        return logUuid;
+    }
+    public int getTag() {
+        return tag;
+    }
+    public String getInfo() {
+        return readings.size() + " readings taken over " + getDuration() / 60000 + "m " + getDuration() % 60000 / 1000 + "s " + getDuration() % 60000 % 1000 + "ms";
+    }
+    /* Get the duration of time that this sensor has been monitoring in ms
+     */
+    public long getDuration() {
+        if (readings.isEmpty())
+            return 0;
+        return getStopTime() - getStartTime();
+    }
+    /* Synchronize with a timestamp from the watch, taken at the reading
+     * which will be added next.
+     * @param t ms since POSIX epoch (GMT)
+     * @throws UnsupportedOperationException if no readings were added since the last timestamp
+     */
+    public void addTimestamp(long t) {
+        int end = readings.size();
+        int count = end - syncIndex;
+        if (count == 0)
+            throw new UnsupportedOperationException("No readings since the last timestamp. Cannot add timestamp.");
+        // Interpolate from the last reading which can no longer be corrected
+        int anchor = syncIndex;
+        long anchorTime = lastTimestamp;
+        if (settled > syncIndex) {
+            anchor = settled - 1;
+            anchorTime = readings.getTimestamp(anchor);
+        }
+        // How far off the estimate for this timestamp's reading was
+        long error = t - (lastTimestamp + count * periodDuration / periodReadings);
+        syncIntervals.record(t - lastTimestamp);
+        jitter.record(Math.abs(error));
+        if (Math.abs(error) > GAP_THRESHOLD)
+            gaps.increment();
+        long dur = t - anchorTime;
+        for (int i = anchor + 1; i < end; i++)
+            readings.setTimestamp(i, anchorTime + (i - anchor) * dur / (end - anchor));
+        if (t > lastTimestamp) {
+            periodDuration = t - lastTimestamp;
+            periodReadings = count;
+        }
+        lastTimestamp = t;
+        syncIndex = end;
+        settled = end;
+    }
+    public SampleStore getReadings() {
+        return readings;
+    }
+    /* Compute window features of every reading, including those already added
+     * @param features An extractor which has not been given any readings
+     */
+    public void attachFeatures(FeatureExtractor features) {
+        SampleStore.Cursor reading = readings.cursor();
+        while (reading.next())
+            features.add(reading.getX(), reading.getY(), reading.getZ());
+        this.features = features;
+    }
+    /* Get the window features of this sensor's readings, or null if they are not computed
+     */
+    public FeatureExtractor getFeatures() {
+        return features;
+    }
+    /* Count a data log item received for this sensor
+     * @param length Size of the item in bytes
+     */
+    public void recordItem(int length) {
+        items.increment();
+        bytes.add(length);
+    }
+    /* Get the items received, timestamp accuracy and gaps of this sensor
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+    /* Make all readings which can no longer be re-stamped durable, if this
+     * sensor is journaled, and compress them in memory
+     */
+    public void sync() throws IOException {
+        readings.flushJournal(settled);
+        readings.seal(settled);
+    }
+    /* Check whether readings held back for an unsaved activity will soon be,
+     * or have just been, overwritten. The user is warned once the activity
+     * has used half of the spare pages, and told of each overwrite once.
+     * Must be called from the thread adding readings.
+     * @return A message for the user, or null if there is nothing new to report
+     */
+    public String checkPins() {
+        long overwritten = readings.getOverwrittenPinnedCount();
+        if (overwritten > reportedOverwritten) {
+            long lost = overwritten - reportedOverwritten;
+            reportedOverwritten = overwritten;
+            return lost + " readings of an unsaved activity on " + name + " (" + getWatchId() + ") were overwritten. "
+                    + "Save activities sooner, or log continuously for longer.";
+        }
+        int held = readings.getHeldBackPageCount();
+        int spare = readings.getSparePageCount();
+        if (held == 0) {
+            warnedPinned = false;
+        }
+        else if (!warnedPinned && held * 2 >= spare) {
+            warnedPinned = true;
+            // The page after the last spare one overwrites the oldest pinned page
+            long minutes = (long)Math.ceil((spare - held + 1) * SampleStore.PAGE_SIZE / FeatureExtractor.SAMPLE_RATE / 60);
+            return "Readings of an unsaved activity on " + name + " (" + getWatchId() + ") will start being overwritten within "
+                    + minutes + (minutes == 1 ? " minute" : " minutes") + ". Save the activity to keep them.";
+        }
+        return null;
+    }
+    public long getStartTime() {
+        if (readings.isEmpty())
+            throw new UnsupportedOperationException("No readings. Cannot determine start time.");
+        return readings.getTimestamp(readings.getFirstIndex());
+    }
+    public long getStopTime() {
+        if (readings.isEmpty())
+            throw new UnsupportedOperationException("No readings. Cannot determine stop time.");
+        return readings.getTimestamp(readings.size() - 1);
+    }
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof Sensor)
+            return logUuid.equals(((Sensor) obj).getLogUuid()) && tag == ((Sensor) obj).getTag();
+        return false;
+    }
+    @Override
+    public int hashCode() {
+        return logUuid.hashCode() * 31 + tag;
+    }
+    @Override
+    public String toString() {
+        return name + " (" + getWatchId() + "): " + getInfo();
+    }
+}
@@ -0,0 +1,371 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * All sensors we have received data from, keyed by data log session.
+ * Each watch logs under its own data log UUID, and each body location under
+ * its own tag, so two watches on the same body location never share state.
+ * Lookup is a hash of the UUID followed by an array index on the tag.
+ * If given a journal directory, every sensor's readings are spilled to a
+ * SpillJournal there and can be restored after the app restarts.
+ * For continuous logging, sensors may instead keep only their most recent
+ * readings in fixed-size rings, holding back the ranges pinned in the
+ * registry's RetentionPins. Rings are sized so that, even if none of their
+ * readings compress, together they fit in a share of the heap. A sensor
+ * whose ring does not fit at all is refused once, and its session's items
+ * are then dropped until the registry is cleared.
+ * Every sensor computes window features of its readings as they arrive.
+ */
+public class SensorRegistry {
+    // Share of the heap which rings may use between them by default
+    public static final double DEFAULT_RETENTION_SHARE = 0.5;
+    // Readings being re-stamped must still be retained
+    private static final int MIN_RETAINED_PAGES = Sensor.CORRECTION_WINDOW / SampleStore.PAGE_SIZE + 1;
+
+    private final int tagCount;
+    private final File journalDir;
+    // One tag-indexed shard per data log session
+    private final ConcurrentHashMap<UUID, AtomicReferenceArray<Sensor>> sessions = new ConcurrentHashMap<>();
+    // Every sensor in the order it was first seen, for display
+    private final CopyOnWriteArrayList<Sensor> sensors = new CopyOnWriteArrayList<>();
+    // Window of features for sensors registered from now on
+    private volatile int featureWindowSize = FeatureExtractor.DEFAULT_WINDOW_SIZE;
+    private volatile int featureHop = FeatureExtractor.DEFAULT_HOP;
+    // How long sensors registered from now on keep readings for (ms), or 0 to keep every reading
+    private volatile long retention = 0;
+    private final RetentionPins pins = new RetentionPins();
+    // Heap which rings may use between them (bytes)
+    private volatile long retentionBudget = (long)(Runtime.getRuntime().maxMemory() * DEFAULT_RETENTION_SHARE);
+    // Most heap the rings of registered sensors can use (bytes)
+    private final AtomicLong retentionReserved = new AtomicLong();
+    // Sessions and tags whose rings did not fit, as returned by getKey()
+    private final Set<String> refused = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param tagCount The number of valid data log tags
+     */
+    public SensorRegistry(int tagCount) {
+        this(tagCount, null);
+    }
+
+    /**
+     * @param tagCount The number of valid data log tags
+     * @param journalDir Where to journal sensor readings, or null to keep them only in memory
+     */
+    public SensorRegistry(int tagCount, File journalDir) {
+        this.tagCount = tagCount;
+        this.journalDir = journalDir;
+    }
+
+    /**
+     * Set the window features are computed over, for sensors registered from now on
+     * @param windowSize Number of readings in each window
+     * @param hop Number of readings between the starts of windows
+     */
+    public void setFeatureWindow(int windowSize, int hop) {
+        if (windowSize < 2 || hop < 1)
+            throw new IllegalArgumentException("Windows must be at least 2 readings, at least 1 reading apart.");
+        featureWindowSize = windowSize;
+        featureHop = hop;
+    }
+
+    private FeatureExtractor createFeatures() {
+        return new FeatureExtractor(featureWindowSize, featureHop, FeatureExtractor.DEFAULT_LOW_HZ, FeatureExtractor.DEFAULT_HIGH_HZ);
+    }
+
+    /**
+     * Keep only the most recent readings of sensors registered from now on,
+     * in rings set up when they are registered, instead of journaling them.
+     * Memory then stays bounded however long logging runs. Pinned ranges are
+     * held back for up to a quarter as long again. Sensors keep readings for
+     * less time if their rings would not fit in what is left of the
+     * retention budget.
+     * @param millis How long to keep readings for (ms), or 0 to keep every reading
+     */
+    public void setRetention(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("Cannot keep readings for " + millis + "ms.");
+        retention = millis;
+    }
+
+    /**
+     * Get how long sensors registered from now on keep readings for (ms),
+     * or 0 if they keep every reading
+     */
+    public long getRetention() {
+        return retention;
+    }
+
+    /**
+     * Get the ranges which sensors keeping only recent readings must hold back
+     */
+    public RetentionPins getPins() {
+        return pins;
+    }
+
+    /**
+     * Limit the heap which the rings of sensors registered from now on may
+     * use between them. Defaults to DEFAULT_RETENTION_SHARE of
+     * Runtime.maxMemory().
+     * @param bytes The most heap rings may use, assuming none of their readings compress
+     */
+    public void setRetentionBudget(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("Cannot use " + bytes + " bytes for rings.");
+        retentionBudget = bytes;
+    }
+
+    public long getRetentionBudget() {
+        return retentionBudget;
+    }
+
+    /**
+     * Get the most heap a sensor keeping readings for a time can use in
+     * bytes, with its features, which is reached only if none of its
+     * readings compress
+     * @param millis How long the sensor keeps readings for (ms)
+     */
+    public long getRetentionMemory(long millis) {
+        return getRingMemory(getRetainedPages(millis));
+    }
+
+    private static int getRetainedPages(long millis) {
+        long readings = (long)Math.ceil(millis * FeatureExtractor.SAMPLE_RATE / 1000);
+        return (int)Math.max((readings + SampleStore.PAGE_SIZE - 1) / SampleStore.PAGE_SIZE, MIN_RETAINED_PAGES);
+    }
+
+    private static int getSparePages(int pages) {
+        return Math.max(1, pages / 4);
+    }
+
+    /* Get the number of feature windows covering every page of a ring
+     */
+    private int getWindowCount(int pages) {
+        return (pages + getSparePages(pages) + 2) * SampleStore.PAGE_SIZE / featureHop + 2;
+    }
+
+    private long getRingMemory(int pages) {
+        return SampleStore.getMaxRetentionMemory(pages, getSparePages(pages))
+                + FeatureExtractor.getMemoryUsage(featureWindowSize, getWindowCount(pages));
+    }
+
+    /* Reserve heap for a ring keeping readings for a time, shortened until
+     * it fits in what is left of the budget
+     * @return The number of pages the ring retains
+     * @throws IllegalStateException if not even the shortest ring fits
+     */
+    private int reserveRing(String title, long millis) {
+        int pages = getRetainedPages(millis);
+        long available = retentionBudget - retentionReserved.get();
+        while (pages > MIN_RETAINED_PAGES && getRingMemory(pages) > available)
+            pages--;
+        if (getRingMemory(pages) > available)
+            throw new IllegalStateException("Not enough memory to keep " + title + " readings, so they will be ignored. "
+                    + "Log continuously for less time, or with fewer sensors.");
+        retentionReserved.addAndGet(getRingMemory(pages));
+        return pages;
+    }
+
+    /* Set up a sensor's ring, and its features to cover it
+     */
+    private void attachRetention(Sensor sensor, int pages) {
+        sensor.getReadings().attachRetention(pages, getSparePages(pages), pins);
+        sensor.attachFeatures(new FeatureExtractor(featureWindowSize, featureHop, FeatureExtractor.DEFAULT_LOW_HZ,
+                FeatureExtractor.DEFAULT_HIGH_HZ, getWindowCount(pages)));
+    }
+
+    /**
+     * Find the sensor for a data log session
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     * @return The sensor, or null if it has not been registered
+     */
+    public Sensor get(UUID logUuid, int tag) {
+        AtomicReferenceArray<Sensor> shard = sessions.get(logUuid);
+        if (shard == null)
+            return null;
+        return shard.get(tag);
+    }
+
+    /**
+     * Check whether a session and tag was refused because its ring would
+     * not fit in the heap, so its items should be dropped
+     */
+    public boolean isRefused(UUID logUuid, int tag) {
+        return !refused.isEmpty() && refused.contains(getKey(logUuid, tag));
+    }
+
+    private static String getKey(UUID logUuid, int tag) {
+        return logUuid + "/" + tag;
+    }
+
+    /**
+     * Add a sensor under its data log UUID and tag
+     * @throws IllegalArgumentException if the tag is invalid
+     * @throws UnsupportedOperationException if that session and tag already has a sensor
+     * @throws IllegalStateException if the sensor was registered but its journal could not be created,
+     *                               or was refused because its ring would not fit in the heap
+     */
+    public void register(Sensor sensor) {
+        if (sensor.getTag() < 0 || sensor.getTag() >= tagCount)
+            throw new IllegalArgumentException(sensor.getTag() + " is not a valid data log ID.");
+        if (get(sensor.getLogUuid(), sensor.getTag()) != null)
+            throw new UnsupportedOperationException("Sensor " + sensor.getTitle() + " is already registered.");
+        long retention = this.retention;
+        int pages = 0;
+        if (retention != 0) {
+            try {
+                pages = reserveRing(sensor.getTitle(), retention);
+            } catch (IllegalStateException e) {
+                refused.add(getKey(sensor.getLogUuid(), sensor.getTag()));
+                throw e;
+            }
+        }
+        long ringMemory = pages == 0 ? 0 : getRingMemory(pages);
+        AtomicReferenceArray<Sensor> shard = sessions.get(sensor.getLogUuid());
+        if (shard == null) {
+            AtomicReferenceArray<Sensor> created = new AtomicReferenceArray<>(tagCount);
+            shard = sessions.putIfAbsent(sensor.getLogUuid(), created);
+            if (shard == null)
+                shard = created;
+        }
+        if (!shard.compareAndSet(sensor.getTag(), null, sensor)) {
+            retentionReserved.addAndGet(-ringMemory);
+            throw new UnsupportedOperationException("Sensor " + sensor.getTitle() + " is already registered.");
+        }
+        if (pages != 0)
+            attachRetention(sensor, pages);
+        if (sensor.getFeatures() == null)
+            sensor.attachFeatures(createFeatures());
+        sensors.add(sensor);
+        if (journalDir != null && retention == 0) {
+            try {
+                sensor.getReadings().attachJournal(SpillJournal.create(journalDir, sensor.getTitle(), sensor.getLogUuid(), sensor.getTag()),
+                        SampleStore.DEFAULT_RESIDENT_PAGES);
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to save " + sensor.getTitle() + " readings to storage. They will be lost if the app is closed.", e);
+            }
+        }
+    }
+
+    /**
+     * Register a sensor for every journal in the journal directory
+     * @return The number of sensors restored
+     */
+    public int restore() throws IOException {
+        if (journalDir == null)
+            return 0;
+        int restored = 0;
+        for (SpillJournal journal : SpillJournal.openAll(journalDir)) {
+            // A sensor which never got a timestamped reading has nothing to restore
+            if (journal.getRecordCount() == 0 || journal.getTag() < 0 || journal.getTag() >= tagCount
+                    || get(journal.getLogUuid(), journal.getTag()) != null) {
+                journal.delete();
+                continue;
+            }
+            SampleStore readings = SampleStore.restore(journal, SampleStore.DEFAULT_RESIDENT_PAGES);
+            Sensor sensor = new Sensor(journal.getName(), journal.getLogUuid(), journal.getTag(), readings);
+            sensor.attachFeatures(createFeatures());
+            AtomicReferenceArray<Sensor> shard = sessions.get(sensor.getLogUuid());
+            if (shard == null) {
+                shard = new AtomicReferenceArray<>(tagCount);
+                sessions.put(sensor.getLogUuid(), shard);
+            }
+            shard.set(sensor.getTag(), sensor);
+            sensors.add(sensor);
+            restored++;
+        }
+        return restored;
+    }
+
+    /**
+     * Make every sensor's timestamped readings durable
+     */
+    public void sync() throws IOException {
+        IOException failure = null;
+        for (Sensor sensor : sensors) {
+            try {
+                sensor.sync();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Forget every sensor and delete their journals. Must not be called while
+     * items are being processed.
+     */
+    public void clear() throws IOException {
+        IOException failure = null;
+        for (Sensor sensor : sensors) {
+            SpillJournal journal = sensor.getReadings().getJournal();
+            if (journal == null)
+                continue;
+            try {
+                journal.delete();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        sessions.clear();
+        sensors.clear();
+        retentionReserved.set(0);
+        refused.clear();
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Close every sensor's journal, keeping the files so the session can be
+     * restored. Must not be called while items are being processed.
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Sensor sensor : sensors) {
+            SpillJournal journal = sensor.getReadings().getJournal();
+            if (journal == null)
+                continue;
+            try {
+                journal.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null)
+            throw failure;
+    }
+
+    /**
+     * Get every registered sensor in registration order. The list is a live,
+     * read-only view that is safe to iterate while sensors are being added.
+     */
+    public List<Sensor> getSensors() {
+        return Collections.unmodifiableList(sensors);
+    }
+
+    public int size() {
+        return sensors.size();
+    }
+
+    public boolean isEmpty() {
+        return sensors.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return sensors.toString();
+    }
+}
@@ -0,0 +1,232 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * An append-only file holding every timestamped reading of one sensor, so a
+ * session survives the app being killed and old readings need not stay on
+ * the heap.
+ * The file is a fixed size header (magic, version, sensor name, data log
+ * UUID and tag) followed by 14 byte big endian records of timestamp, X, Y
+ * and Z. A partially written last record is ignored when reopening.
+ */
+public class SpillJournal implements Closeable {
+    public static final String EXTENSION = ".journal";
+    private static final byte[] MAGIC = {'P', 'D', 'L', 'J'};
+    private static final int VERSION = 1;
+    // Size of the header in bytes, so record offsets never depend on the name
+    static final int HEADER_SIZE = 256;
+    // Size of a record in bytes
+    public static final int RECORD_SIZE = 8 + 2 + 2 + 2;
+    // Reused by readTimestamp on each thread
+    private static final ThreadLocal<ByteBuffer> TIMESTAMP_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(8);
+        }
+    };
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final String name;
+    private final UUID logUuid;
+    private final int tag;
+    // Number of complete records in the file
+    private volatile int recordCount;
+    // Reused by append, which is only called from one thread
+    private final ByteBuffer writeBuffer = ByteBuffer.allocate(SampleStore.PAGE_SIZE * RECORD_SIZE);
+
+    private SpillJournal(File file, RandomAccessFile raf, String name, UUID logUuid, int tag, int recordCount) {
+        this.file = file;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.name = name;
+        this.logUuid = logUuid;
+        this.tag = tag;
+        this.recordCount = recordCount;
+    }
+
+    /**
+     * Create (or replace) the journal for a sensor
+     * @param dir The directory holding all journals
+     * @param name The sensor name
+     * @param logUuid The data log session UUID
+     * @param tag The data log tag
+     */
+    public static SpillJournal create(File dir, String name, UUID logUuid, int tag) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Unable to create journal directory " + dir + ".");
+        File file = new File(dir, logUuid + "-" + tag + EXTENSION);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(MAGIC);
+            raf.writeByte(VERSION);
+            raf.writeLong(logUuid.getMostSignificantBits());
+            raf.writeLong(logUuid.getLeastSignificantBits());
+            raf.writeInt(tag);
+            raf.writeUTF(name);
+            if (raf.getFilePointer() > HEADER_SIZE)
+                throw new IOException("Sensor name " + name + " is too long to journal.");
+            raf.setLength(HEADER_SIZE);
+            raf.getFD().sync();
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        return new SpillJournal(file, raf, name, logUuid, tag, 0);
+    }
+
+    /**
+     * Reopen an existing journal to replay it and continue appending
+     * @throws IOException if the file is not a journal
+     */
+    public static SpillJournal open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            raf.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || raf.readUnsignedByte() != VERSION)
+                throw new IOException(file + " is not a journal.");
+            UUID logUuid = new UUID(raf.readLong(), raf.readLong());
+            int tag = raf.readInt();
+            String name = raf.readUTF();
+            long records = Math.max(0, (raf.length() - HEADER_SIZE) / RECORD_SIZE);
+            // Drop any partially written record so appends stay aligned
+            raf.setLength(HEADER_SIZE + records * RECORD_SIZE);
+            return new SpillJournal(file, raf, name, logUuid, tag, (int)records);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open every journal in a directory, skipping any that are unreadable
+     */
+    public static List<SpillJournal> openAll(File dir) {
+        ArrayList<SpillJournal> journals = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null)
+            return journals;
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!file.getName().endsWith(EXTENSION))
+                continue;
+            try {
+                journals.add(open(file));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return journals;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public UUID getLogUuid() {
+        return logUuid;
+    }
+
+    public int getTag() {
+        return tag;
+    }
+
+    /**
+     * Get the number of complete records in the journal
+     */
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Append readings to the end of the journal. Only call from one thread.
+     * @param timestamps Source of timestamps
+     * @param x Source of X values
+     * @param y Source of Y values
+     * @param z Source of Z values
+     * @param offset Index of the first reading in the source arrays
+     * @param count Number of readings, at most SampleStore.PAGE_SIZE
+     */
+    void append(long[] timestamps, short[] x, short[] y, short[] z, int offset, int count) throws IOException {
+        writeBuffer.clear();
+        for (int i = offset; i < offset + count; i++)
+            writeBuffer.putLong(timestamps[i]).putShort(x[i]).putShort(y[i]).putShort(z[i]);
+        writeBuffer.flip();
+        long position = HEADER_SIZE + (long)recordCount * RECORD_SIZE;
+        while (writeBuffer.hasRemaining())
+            position += channel.write(writeBuffer, position);
+        recordCount += count;
+    }
+
+    /**
+     * Read records into arrays. Safe to call from any thread.
+     * @param index Index of the first record
+     * @param count Number of records
+     * @param buffer Scratch buffer of at least count * RECORD_SIZE bytes
+     */
+    void read(int index, int count, ByteBuffer buffer, long[] timestamps, short[] x, short[] y, short[] z) throws IOException {
+        buffer.clear();
+        buffer.limit(count * RECORD_SIZE);
+        long position = HEADER_SIZE + (long)index * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of journal " + file + ".");
+        }
+        buffer.flip();
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = buffer.getLong();
+            x[i] = buffer.getShort();
+            y[i] = buffer.getShort();
+            z[i] = buffer.getShort();
+        }
+    }
+
+    /**
+     * Read the timestamp of one record. Safe to call from any thread.
+     */
+    long readTimestamp(int index) throws IOException {
+        ByteBuffer buffer = TIMESTAMP_BUFFERS.get();
+        buffer.clear();
+        long position = HEADER_SIZE + (long)index * RECORD_SIZE;
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("Unexpected end of journal " + file + ".");
+        }
+        buffer.flip();
+        return buffer.getLong();
+    }
+
+    /**
+     * Force every appended record to storage
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+
+    /**
+     * Close and remove the journal
+     */
+    public void delete() throws IOException {
+        close();
+        if (!file.delete())
+            throw new IOException("Unable to delete journal " + file + ".");
+    }
+}
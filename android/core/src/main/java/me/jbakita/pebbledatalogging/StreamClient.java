@@ -0,0 +1,235 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Reads the frames published by a StreamTap, checking that batches arrive
+ * in order and counting readings and dropped batches. Run it to watch a
+ * tap's throughput, e.g. after "adb forward tcp:29317 tcp:29317"
+ * (StreamTap.DEFAULT_PORT, which is used if no port is given):
+ *
+ * Usage: java -cp core.jar me.jbakita.pebbledatalogging.StreamClient [port [seconds]]
+ */
+public class StreamClient implements Closeable {
+    private static final String USAGE = "Usage: java -cp core.jar me.jbakita.pebbledatalogging.StreamClient [port [seconds]]";
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private ByteBuffer body = ByteBuffer.allocate(64);
+    // Index of the next reading expected from each sensor, or -1 before its first batch
+    private int[] nextIndex = new int[16];
+    private long lastSequence = -1;
+    private long readings = 0;
+    private long batches = 0;
+    private long dropped = 0;
+    private long outOfOrder = 0;
+    private long bytes = 0;
+
+    /**
+     * Receives decoded frames
+     */
+    public interface Listener {
+        void onSensor(int id, UUID logUuid, int tag, String name);
+
+        /**
+         * @param id The sensor, as given to onSensor()
+         * @param index The index of the reading in the sensor
+         * @param timestamp POSIX time in ms
+         */
+        void onReading(int id, int index, long timestamp, int x, int y, int z);
+    }
+
+    /**
+     * Connect to a tap on the loopback address
+     */
+    public StreamClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getByName(null), port);
+        socket.setTcpNoDelay(true);
+        in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        Arrays.fill(nextIndex, -1);
+    }
+
+    /**
+     * Read and decode one frame
+     * @param listener Receives the frame's contents, or null
+     * @return false if the tap has closed the connection. A frame cut off
+     *         by the connection closing is discarded.
+     * @throws IllegalStateException if the stream is corrupt or of an
+     *                               unsupported version
+     */
+    public boolean read(Listener listener) throws IOException {
+        try {
+            readFrame(listener);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private void readFrame(Listener listener) throws IOException {
+        int type = in.readUnsignedByte();
+        int length = in.readInt();
+        if (length < 0)
+            throw new IllegalStateException("Invalid frame length " + length + ".");
+        bytes += StreamTap.FRAME_HEADER_SIZE + length;
+        switch (type) {
+            case StreamTap.HELLO: {
+                int version = in.readUnsignedByte();
+                in.skipBytes(length - 1);
+                if (version != StreamTap.VERSION)
+                    throw new IllegalStateException("Unsupported stream version " + version + ".");
+                break;
+            }
+            case StreamTap.SENSOR: {
+                int id = in.readUnsignedShort();
+                UUID logUuid = new UUID(in.readLong(), in.readLong());
+                int tag = in.readShort();
+                byte[] name = new byte[in.readUnsignedShort()];
+                in.readFully(name);
+                if (listener != null)
+                    listener.onSensor(id, logUuid, tag, new String(name, "UTF-8"));
+                break;
+            }
+            case StreamTap.BATCH:
+                readBatch(length, listener);
+                break;
+            default:
+                // Skip frames added by later versions
+                in.skipBytes(length);
+        }
+    }
+
+    private void readBatch(int length, Listener listener) throws IOException {
+        int id = in.readUnsignedShort();
+        long sequence = in.readLong();
+        int index = in.readInt();
+        long first = in.readLong();
+        int count = in.readUnsignedShort();
+        if (length != StreamTap.BATCH_HEADER_SIZE + count * StreamTap.READING_SIZE)
+            throw new IllegalStateException("Batch of " + count + " readings has length " + length + ".");
+        if (body.capacity() < count * StreamTap.READING_SIZE)
+            body = ByteBuffer.allocate(count * StreamTap.READING_SIZE);
+        in.readFully(body.array(), 0, count * StreamTap.READING_SIZE);
+        // Batches skipped by the tap show up as gaps in the sequence
+        boolean gap = false;
+        if (lastSequence >= 0) {
+            if (sequence <= lastSequence)
+                outOfOrder++;
+            else if (sequence > lastSequence + 1) {
+                dropped += sequence - lastSequence - 1;
+                gap = true;
+            }
+        }
+        lastSequence = Math.max(lastSequence, sequence);
+        if (id >= nextIndex.length) {
+            int oldLength = nextIndex.length;
+            nextIndex = Arrays.copyOf(nextIndex, Math.max(id + 1, oldLength * 2));
+            Arrays.fill(nextIndex, oldLength, nextIndex.length, -1);
+        }
+        if (nextIndex[id] >= 0 && (index < nextIndex[id] || (index > nextIndex[id] && !gap)))
+            outOfOrder++;
+        nextIndex[id] = index + count;
+        batches++;
+        readings += count;
+        if (listener != null) {
+            for (int i = 0; i < count; i++) {
+                int offset = i * StreamTap.READING_SIZE;
+                listener.onReading(id, index + i, first + body.getInt(offset), body.getShort(offset + 4),
+                        body.getShort(offset + 6), body.getShort(offset + 8));
+            }
+        }
+    }
+
+    public long getReadingCount() {
+        return readings;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Get the number of batches the tap dropped for this client
+     */
+    public long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * Get the number of batches which arrived out of order. Should be 0.
+     */
+    public long getOutOfOrderCount() {
+        return outOfOrder;
+    }
+
+    /**
+     * Get the number of bytes received
+     */
+    public long getByteCount() {
+        return bytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 2) {
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        int port;
+        long seconds;
+        try {
+            port = args.length > 0 ? Integer.parseInt(args[0]) : StreamTap.DEFAULT_PORT;
+            seconds = args.length > 1 ? Long.parseLong(args[1]) : Long.MAX_VALUE / 1000000000L;
+        } catch (NumberFormatException e) {
+            System.err.println(USAGE);
+            System.exit(1);
+            return;
+        }
+        StreamClient client = new StreamClient(port);
+        try {
+            Listener listener = new Listener() {
+                @Override
+                public void onSensor(int id, UUID logUuid, int tag, String name) {
+                    System.out.println("Sensor " + id + ": " + name + " (" + logUuid.toString().substring(0, 8) + ", tag " + tag + ")");
+                }
+
+                @Override
+                public void onReading(int id, int index, long timestamp, int x, int y, int z) {
+                }
+            };
+            long start = System.nanoTime();
+            long lastReport = start;
+            long lastReadings = 0;
+            while (System.nanoTime() - start < seconds * 1000000000L && client.read(listener)) {
+                long now = System.nanoTime();
+                if (now - lastReport >= 1000000000L) {
+                    System.out.println(String.format(Locale.US, "%.0f readings/s, %d batches, %d dropped, %d out of order",
+                            (client.getReadingCount() - lastReadings) * 1e9 / (now - lastReport),
+                            client.getBatchCount(), client.getDroppedCount(), client.getOutOfOrderCount()));
+                    lastReport = now;
+                    lastReadings = client.getReadingCount();
+                }
+            }
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.US, "%d readings in %d batches over %.1f s (%.0f readings/s, %.1f KB/s), %d dropped, %d out of order",
+                    client.getReadingCount(), client.getBatchCount(), elapsed, client.getReadingCount() / elapsed,
+                    client.getByteCount() / elapsed / 1024, client.getDroppedCount(), client.getOutOfOrderCount()));
+        } finally {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package me.jbakita.pebbledatalogging;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Publishes readings to local subscribers as they are decoded, so they can
+ * be watched or classified live. Subscribers connect over TCP to the
+ * loopback address and receive a stream of binary frames, big endian, each
+ * a type byte and a 4 byte body length followed by the body:
+ *  - HELLO: version byte. Sent first.
+ *  - SENSOR: 2 byte sensor id, 16 byte data log UUID, 2 byte tag, then the
+ *    sensor's name as a 2 byte length and UTF-8 bytes. Sent before the
+ *    first batch of each sensor.
+ *  - BATCH: 2 byte sensor id, 8 byte sequence number, 4 byte index of the
+ *    first reading in the sensor, 8 byte POSIX time in ms of the first
+ *    reading, 2 byte reading count, then for each reading a 4 byte time
+ *    since the first reading and 2 byte X, Y and Z.
+ * Timestamps are the estimates at the time of publishing; later
+ * corrections are not sent. Sequence numbers count every batch published,
+ * so a gap shows batches were dropped.
+ *
+ * publish() only encodes frames and queues them. Sockets are written by the
+ * tap's own thread with non-blocking NIO. Each subscriber's queue holds at
+ * most a fixed number of batches; when it is full, new batches are dropped
+ * for that subscriber, or with the BLOCK policy publish() waits for space,
+ * disconnecting the subscriber if it waits longer than a timeout. A slow
+ * subscriber therefore never holds up ingestion for more than the timeout.
+ */
+public class StreamTap {
+    public static final int VERSION = 1;
+    public static final int HELLO = 1;
+    public static final int SENSOR = 2;
+    public static final int BATCH = 3;
+    // Type byte and body length
+    public static final int FRAME_HEADER_SIZE = 1 + 4;
+    public static final int BATCH_HEADER_SIZE = 2 + 8 + 4 + 8 + 2;
+    public static final int READING_SIZE = 4 + 3 * 2;
+    // Most readings in one batch frame
+    public static final int MAX_BATCH = 1024;
+    // Port the app streams on, clear of adb (5555) and below the ephemeral port range
+    public static final int DEFAULT_PORT = 29317;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long DEFAULT_BLOCK_TIMEOUT = 100;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /**
+     * What to do when a subscriber's queue is full
+     */
+    public enum Backpressure {
+        // Drop the new batch for that subscriber
+        DROP,
+        // Wait for space, disconnecting the subscriber after the block timeout
+        BLOCK
+    }
+
+    private final int queueCapacity;
+    private final Backpressure backpressure;
+    private final long blockTimeoutNanos;
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // Subscribers with newly queued frames, for the tap's thread to write
+    private final ConcurrentLinkedQueue<Subscriber> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean();
+    private volatile boolean closed = false;
+    // Only accessed by the publishing thread
+    private final IdentityHashMap<Sensor, Source> sources = new IdentityHashMap<>();
+    private int nextId = 0;
+    private long sequence = 0;
+    private boolean started = false;
+    private final Metrics metrics = new Metrics("Stream");
+    private final Metrics.Counter batches = metrics.counter("Batches", "frames", true);
+    private final Metrics.Counter sent = metrics.counter("Sent", "bytes", true);
+    private final Metrics.Counter dropped = metrics.counter("Dropped", "frames", false);
+    private final Metrics.Counter disconnected = metrics.counter("Slow subscribers disconnected", "subscribers", false);
+    private final Metrics.Histogram publishNanos = metrics.histogram("Publish time", "ns");
+
+    /**
+     * Listen on the loopback address
+     * @param port Port to listen on, or 0 for any free port
+     * @param queueCapacity Most batches queued for each subscriber
+     * @param backpressure What to do when a subscriber's queue is full
+     * @param blockTimeout With BLOCK, longest time to wait for a subscriber (ms)
+     */
+    public StreamTap(int port, int queueCapacity, Backpressure backpressure, long blockTimeout) throws IOException {
+        if (queueCapacity < 1)
+            throw new IllegalArgumentException("Queue capacity must be at least 1.");
+        this.queueCapacity = queueCapacity;
+        this.backpressure = backpressure;
+        this.blockTimeoutNanos = blockTimeout * 1000000;
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        try {
+            server.socket().bind(new InetSocketAddress(InetAddress.getByName(null), port));
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            server.close();
+            selector.close();
+            throw e;
+        }
+        thread = new Thread(new Writer(), "StreamTap");
+        thread.setDaemon(true);
+        thread.start();
+        metrics.gauge("Subscribers", "subscribers", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return subscribers.size();
+            }
+        });
+    }
+
+    /**
+     * Listen on the loopback address, dropping batches for slow subscribers
+     * @param port Port to listen on, or 0 for any free port
+     */
+    public StreamTap(int port) throws IOException {
+        this(port, DEFAULT_QUEUE_CAPACITY, Backpressure.DROP, DEFAULT_BLOCK_TIMEOUT);
+    }
+
+    /**
+     * Get the port being listened on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Get the frames and bytes sent, and frames dropped
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Publish every reading added to the sensors since the last call, as
+     * one batch per sensor. Readings taken before the first call are
+     * skipped. Must only be called from one thread.
+     */
+    public void publish(List<Sensor> sensors) {
+        long start = System.nanoTime();
+        // Forget sensors which have been cleared
+        if (sources.size() > sensors.size()) {
+            IdentityHashMap<Sensor, Source> current = new IdentityHashMap<>();
+            for (Sensor sensor : sensors)
+                if (sources.containsKey(sensor))
+                    current.put(sensor, sources.get(sensor));
+            sources.clear();
+            sources.putAll(current);
+        }
+        for (Sensor sensor : sensors) {
+            Source source = sources.get(sensor);
+            int size = sensor.getReadings().size();
+            if (source == null) {
+                // Sensors which appear later are published from their first retained reading
+                source = new Source(nextId++, sensor, started ? sensor.getReadings().getFirstIndex() : size);
+                sources.put(sensor, source);
+            }
+            while (source.published < size) {
+                int count = Math.min(size - source.published, MAX_BATCH);
+                if (!subscribers.isEmpty())
+                    offer(source, encodeBatch(source, count));
+                sequence++;
+                batches.increment();
+                source.published += count;
+            }
+        }
+        started = true;
+        publishNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Stop listening and disconnect every subscriber
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Subscriber subscriber : subscribers)
+            subscriber.close();
+    }
+
+    /* Encode the next count readings of a sensor
+     */
+    private ByteBuffer encodeBatch(Source source, int count) {
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + BATCH_HEADER_SIZE + count * READING_SIZE);
+        frame.put((byte)BATCH);
+        frame.putInt(BATCH_HEADER_SIZE + count * READING_SIZE);
+        frame.putShort((short)source.id);
+        frame.putLong(sequence);
+        frame.putInt(source.published);
+        SampleStore.Cursor reading = source.sensor.getReadings().cursor(source.published, source.published + count);
+        long first = 0;
+        while (reading.next()) {
+            if (reading.getIndex() == source.published) {
+                first = reading.getTimestamp();
+                frame.putLong(first);
+                frame.putShort((short)count);
+            }
+            frame.putInt((int)(reading.getTimestamp() - first));
+            frame.putShort((short)reading.getX());
+            frame.putShort((short)reading.getY());
+            frame.putShort((short)reading.getZ());
+        }
+        frame.flip();
+        return frame;
+    }
+
+    private static ByteBuffer encodeSensor(int id, Sensor sensor) {
+        byte[] name = sensor.getTitle().getBytes(UTF_8);
+        int length = 2 + 16 + 2 + 2 + name.length;
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + length);
+        frame.put((byte)SENSOR);
+        frame.putInt(length);
+        frame.putShort((short)id);
+        frame.putLong(sensor.getLogUuid().getMostSignificantBits());
+        frame.putLong(sensor.getLogUuid().getLeastSignificantBits());
+        frame.putShort((short)sensor.getTag());
+        frame.putShort((short)name.length);
+        frame.put(name);
+        frame.flip();
+        return frame;
+    }
+
+    /* Queue a batch for every subscriber, applying the backpressure policy
+     */
+    private void offer(Source source, ByteBuffer frame) {
+        for (Subscriber subscriber : subscribers) {
+            synchronized (subscriber) {
+                if (subscriber.closed)
+                    continue;
+                if (subscriber.queuedBatches >= queueCapacity && backpressure == Backpressure.BLOCK) {
+                    long deadline = System.nanoTime() + blockTimeoutNanos;
+                    long remaining = blockTimeoutNanos;
+                    while (subscriber.queuedBatches >= queueCapacity && !subscriber.closed && remaining > 0) {
+                        try {
+                            subscriber.wait(remaining / 1000000, (int)(remaining % 1000000));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        remaining = deadline - System.nanoTime();
+                    }
+                    if (subscriber.queuedBatches >= queueCapacity && !subscriber.closed) {
+                        disconnected.increment();
+                        subscriber.close();
+                    }
+                    if (subscriber.closed)
+                        continue;
+                }
+                if (subscriber.queuedBatches >= queueCapacity) {
+                    dropped.increment();
+                    continue;
+                }
+                if (source.id >= subscriber.announced.length || !subscriber.announced[source.id]) {
+                    subscriber.announce(source.id);
+                    subscriber.queue.add(source.sensorFrame.duplicate());
+                }
+                subscriber.queue.add(frame.duplicate());
+                subscriber.queuedBatches++;
+            }
+            ready.add(subscriber);
+        }
+        if (!closed && wakeupPending.compareAndSet(false, true))
+            selector.wakeup();
+    }
+
+    /* A sensor being published
+     */
+    private static class Source {
+        final int id;
+        final Sensor sensor;
+        final ByteBuffer sensorFrame;
+        // Number of readings published so far
+        int published;
+
+        Source(int id, Sensor sensor, int published) {
+            this.id = id;
+            this.sensor = sensor;
+            this.sensorFrame = encodeSensor(id, sensor);
+            this.published = published;
+        }
+    }
+
+    /* One connected client. The queue is guarded by the subscriber's lock.
+     */
+    private class Subscriber {
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        int queuedBatches = 0;
+        // Sensors whose SENSOR frame has been queued, by id
+        boolean[] announced = new boolean[16];
+        boolean closed = false;
+        // The frame being written; only accessed by the tap's thread
+        ByteBuffer current;
+        SelectionKey key;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        void announce(int id) {
+            if (id >= announced.length) {
+                boolean[] larger = new boolean[Math.max(id + 1, announced.length * 2)];
+                System.arraycopy(announced, 0, larger, 0, announced.length);
+                announced = larger;
+            }
+            announced[id] = true;
+        }
+
+        synchronized void close() {
+            if (closed)
+                return;
+            closed = true;
+            queue.clear();
+            queuedBatches = 0;
+            notifyAll();
+            subscribers.remove(this);
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more can be done with the channel
+            }
+        }
+
+        /* Write queued frames until the socket is full
+         * @return true if everything queued was written
+         */
+        boolean write() throws IOException {
+            while (true) {
+                if (current == null || !current.hasRemaining()) {
+                    synchronized (this) {
+                        if (current != null && current.get(0) == BATCH) {
+                            queuedBatches--;
+                            notifyAll();
+                        }
+                        current = queue.poll();
+                    }
+                    if (current == null)
+                        return true;
+                }
+                int written = channel.write(current);
+                sent.add(written);
+                if (current.hasRemaining())
+                    return false;
+            }
+        }
+    }
+
+    /* Accepts subscribers and writes their frames
+     */
+    private class Writer implements Runnable {
+        private final ByteBuffer discard = ByteBuffer.allocate(256);
+
+        @Override
+        public void run() {
+            try {
+                while (!closed) {
+                    selector.select();
+                    wakeupPending.set(false);
+                    Subscriber subscriber;
+                    while ((subscriber = ready.poll()) != null)
+                        write(subscriber);
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else
+                            service(key);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            } finally {
+                try {
+                    server.close();
+                    selector.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        private void accept() throws IOException {
+            SocketChannel channel = server.accept();
+            if (channel == null)
+                return;
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Subscriber subscriber = new Subscriber(channel);
+            ByteBuffer hello = ByteBuffer.allocate(FRAME_HEADER_SIZE + 1);
+            hello.put((byte)HELLO).putInt(1).put((byte)VERSION).flip();
+            subscriber.queue.add(hello);
+            subscriber.key = channel.register(selector, SelectionKey.OP_READ | SelectionKey.OP_WRITE, subscriber);
+            subscribers.add(subscriber);
+        }
+
+        private void service(SelectionKey key) {
+            Subscriber subscriber = (Subscriber)key.attachment();
+            if (key.isReadable()) {
+                // Subscribers never send anything, so this is only to notice them leaving
+                try {
+                    discard.clear();
+                    if (subscriber.channel.read(discard) < 0) {
+                        subscriber.close();
+                        return;
+                    }
+                } catch (IOException e) {
+                    subscriber.close();
+                    return;
+                }
+            }
+            if (key.isValid() && key.isWritable())
+                write(subscriber);
+        }
+
+        /* Write what can be written without blocking, and only wait for the
+         * socket to be writable while frames are left
+         */
+        private void write(Subscriber subscriber) {
+            if (subscriber.key == null || !subscriber.key.isValid())
+                return;
+            try {
+                boolean done = subscriber.write();
+                subscriber.key.interestOps(done ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } catch (IOException e) {
+                subscriber.close();
+            }
+        }
+    }
+}
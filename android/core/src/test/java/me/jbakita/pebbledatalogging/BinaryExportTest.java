@@ -0,0 +1,119 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class BinaryExportTest {
+    // Spans several chunks, with a partial last chunk
+    private static final int COUNT = BinaryExportWriter.CHUNK_SIZE * 3 + 123;
+
+    private File file;
+    private final long[] timestamps = new long[COUNT];
+    private final int[] x = new int[COUNT];
+    private final int[] y = new int[COUNT];
+    private final int[] z = new int[COUNT];
+
+    @Before
+    public void writeFile() throws IOException {
+        file = File.createTempFile("session", ".pdlb");
+        Random random = new Random(7);
+        long time = START;
+        for (int i = 0; i < COUNT; i++) {
+            // 25Hz with jitter
+            time += 38 + random.nextInt(5);
+            timestamps[i] = time;
+            x[i] = (int)(1000 * Math.sin(i / 10.0)) + random.nextInt(20);
+            y[i] = random.nextInt(1 << 15) - (1 << 14);
+            z[i] = i % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+        }
+        BinaryExportWriter writer = new BinaryExportWriter(file, "WAIST", "Jogging");
+        for (int i = 0; i < COUNT; i++)
+            writer.writeReading(timestamps[i], x[i], y[i], z[i]);
+        writer.close();
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    @Test
+    public void headerRoundTrips() throws IOException {
+        BinaryExportReader reader = new BinaryExportReader(file);
+        assertEquals("WAIST", reader.getSensorName());
+        assertEquals("Jogging", reader.getActivity());
+        assertEquals(timestamps[0], reader.getStartTime());
+        assertEquals(timestamps[COUNT - 1], reader.getStopTime());
+        assertEquals(COUNT, reader.getSampleCount());
+        assertEquals(4, reader.getChunkCount());
+        reader.close();
+    }
+
+    @Test
+    public void streamRoundTrips() throws IOException {
+        BinaryExportReader reader = new BinaryExportReader(file);
+        BinaryExportReader.Cursor reading = reader.cursor();
+        for (int i = 0; i < COUNT; i++) {
+            assertTrue(reading.next());
+            assertEquals(timestamps[i], reading.getTimestamp());
+            assertEquals(x[i], reading.getX());
+            assertEquals(y[i], reading.getY());
+            assertEquals(z[i], reading.getZ());
+        }
+        assertFalse(reading.next());
+        reader.close();
+    }
+
+    @Test
+    public void seekByTimeRange() throws IOException {
+        BinaryExportReader reader = new BinaryExportReader(file);
+        int first = BinaryExportWriter.CHUNK_SIZE * 2 - 10;
+        int last = BinaryExportWriter.CHUNK_SIZE * 2 + 10;
+        BinaryExportReader.Cursor reading = reader.cursor(timestamps[first], timestamps[last]);
+        for (int i = first; i < last; i++) {
+            assertTrue(reading.next());
+            assertEquals(timestamps[i], reading.getTimestamp());
+            assertEquals(y[i], reading.getY());
+        }
+        assertFalse(reading.next());
+        assertFalse(reader.cursor(timestamps[COUNT - 1] + 1, Long.MAX_VALUE).next());
+        reader.close();
+    }
+
+    @Test
+    public void convertsBackToCsv() throws IOException {
+        BinaryExportReader reader = new BinaryExportReader(file);
+        ByteArrayOutputStream converted = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(converted));
+        assertEquals(COUNT, reader.writeCsv(writer, Long.MIN_VALUE, Long.MAX_VALUE));
+        writer.close();
+        reader.close();
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        writer = new CsvWriter(Channels.newChannel(expected));
+        writer.writeHeader();
+        for (int i = 0; i < COUNT; i++)
+            writer.writeReading(timestamps[i], x[i], y[i], z[i]);
+        writer.close();
+        assertArrayEquals(expected.toByteArray(), converted.toByteArray());
+    }
+
+    @Test
+    public void smallerThanCsv() throws IOException {
+        // CSV rows are 33 bytes per reading
+        assertTrue(file.length() < COUNT * 33 / 3);
+    }
+}
@@ -0,0 +1,172 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+import static me.jbakita.pebbledatalogging.TestFixtures.item;
+
+public class CaptureReplayTest {
+    private static final String[] FEATURES = {"DOMINANT_WRIST", "NON_DOMINANT_WRIST", "WAIST"};
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("capture", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    /* Write a capture of two sensors, each sending 4 items of 25 readings
+     */
+    private File writeCapture(String name) throws IOException {
+        File file = new File(dir, name + CaptureWriter.EXTENSION);
+        CaptureWriter writer = new CaptureWriter(file, FEATURES);
+        for (int i = 0; i < 4; i++) {
+            writer.write(START + i * 1000, LOG_UUID, 0, 7, item(START + i * 1000, 25));
+            writer.write(START + i * 1000 + 10, LOG_UUID, 2, 7, item(START + i * 1000, 25));
+        }
+        writer.close();
+        return file;
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        File file = writeCapture("roundTrip");
+        CaptureReader reader = new CaptureReader(file);
+        assertArrayEquals(FEATURES, reader.getFeatures());
+        assertTrue(reader.next());
+        assertEquals(START, reader.getReceivedAt());
+        assertEquals(LOG_UUID, reader.getLogUuid());
+        assertEquals(0, reader.getTag());
+        assertEquals(7, reader.getTimestamp());
+        byte[] expected = item(START, 25);
+        assertEquals(expected.length, reader.getLength());
+        assertArrayEquals(expected, Arrays.copyOf(reader.getData(), reader.getLength()));
+        int items = 1;
+        while (reader.next())
+            items++;
+        assertEquals(8, items);
+        reader.close();
+    }
+
+    @Test
+    public void ignoresTornItem() throws IOException {
+        File file = writeCapture("torn");
+        // Simulate being killed half way through writing an item
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() - 20);
+        raf.close();
+        CaptureReader reader = new CaptureReader(file);
+        int items = 0;
+        while (reader.next())
+            items++;
+        assertEquals(7, items);
+        assertFalse(reader.next());
+        reader.close();
+    }
+
+    @Test
+    public void replaysAndExports() throws Exception {
+        File file = writeCapture("walk");
+        ExportEngine engine = new ExportEngine(2);
+        try {
+            CaptureReplay.Result result = CaptureReplay.replay(file, 0, dir, engine);
+            assertTrue(result.getErrors().isEmpty());
+            assertEquals(8, result.getItems());
+            assertEquals(2, result.getSensors());
+            assertEquals(200, result.getReadings());
+            // CSV, binary and features for each sensor
+            assertEquals(6, result.getFilesWritten());
+            BinaryExportReader exported = new BinaryExportReader(new File(dir, "walk WAIST 0f0e0d0c.pdlb"));
+            assertEquals("WAIST", exported.getSensorName());
+            // Every reading, including the last, at the sensor's stop time
+            assertEquals(100, exported.getSampleCount());
+            List<String> rows = Files.readAllLines(new File(dir, "walk WAIST 0f0e0d0c.csv").toPath(), StandardCharsets.US_ASCII);
+            assertEquals(AccelerometerReading.CSV_HEADER, rows.get(0));
+            assertEquals(100, rows.size() - 1);
+        } finally {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    public void replaysAtRealTimeMultiple() throws Exception {
+        File file = writeCapture("paced");
+        long begin = System.nanoTime();
+        // The capture spans 3 s, so 30x real time takes at least 100 ms
+        CaptureReplay.Result result = CaptureReplay.replay(file, 30, null, null);
+        assertTrue(System.nanoTime() - begin >= 95000000L);
+        assertEquals(200, result.getReadings());
+        assertEquals(0, result.getFilesWritten());
+    }
+
+    @Test
+    public void createKeepsNewestCaptures() throws IOException {
+        for (int i = 0; i < 3; i++) {
+            File old = writeCapture("old" + i);
+            assertTrue(old.setLastModified(START + i * 1000));
+        }
+        File other = new File(dir, "notes.txt");
+        assertTrue(other.createNewFile());
+        CaptureWriter writer = CaptureWriter.create(dir, FEATURES, 2);
+        writer.close();
+        List<File> captures = CaptureWriter.list(dir);
+        assertEquals(2, captures.size());
+        assertEquals("old2" + CaptureWriter.EXTENSION, captures.get(0).getName());
+        assertTrue(other.exists());
+    }
+
+    @Test(timeout = 10000)
+    public void pipelineCapturesReceivedItems() throws IOException {
+        SensorRegistry registry = new SensorRegistry(FEATURES.length);
+        IngestionPipeline pipeline = new IngestionPipeline(FEATURES, registry, new IngestionPipeline.Listener() {
+            @Override
+            public void onDataChanged() {
+            }
+
+            @Override
+            public void onError(String message) {
+                throw new AssertionError(message);
+            }
+        });
+        pipeline.startCapture(dir);
+        pipeline.start();
+        pipeline.receive(LOG_UUID, 2, 7, item(START, 25));
+        pipeline.receive(LOG_UUID, 2, 7, item(START + 1000, 25));
+        pipeline.stop();
+        List<File> captures = CaptureWriter.list(dir);
+        assertEquals(1, captures.size());
+        CaptureReader reader = new CaptureReader(captures.get(0));
+        assertTrue(reader.next());
+        assertEquals(2, reader.getTag());
+        assertEquals(7, reader.getTimestamp());
+        assertTrue(reader.next());
+        assertFalse(reader.next());
+        reader.close();
+    }
+}
@@ -0,0 +1,279 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+import me.jbakita.pebbledatalogging.TestFixtures.RecordingCallback;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class CompactCodecTest {
+    /* Collects every item logged by an encoder into one stream
+     */
+    private static class Items implements CompactEncoder.ItemSink {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        @Override
+        public void log(byte[] item) {
+            assertEquals(CompactDecoder.ITEM_SIZE, item.length);
+            stream.write(item, 0, item.length);
+        }
+    }
+
+    /* Encode a trace as the watch would, in 25 reading batches with a
+     * timestamp every 1000 readings, recording what should be decoded
+     * @return The compression ratio compared to 6 byte records
+     */
+    private static double encode(short[] x, short[] y, short[] z, Items items, ArrayList<String> expected) {
+        CompactEncoder encoder = new CompactEncoder(items);
+        long records = 0;
+        for (int i = 0; i < x.length; i += 25) {
+            if (i % 1000 == 0) {
+                encoder.writeTimestamp(START + i * 40L);
+                expected.add("T" + (START + i * 40L));
+                records++;
+            }
+            int count = Math.min(25, x.length - i);
+            encoder.writeBatch(x, y, z, i, count);
+            for (int j = i; j < i + count; j++)
+                expected.add(x[j] + "," + y[j] + "," + z[j]);
+            records += count;
+        }
+        encoder.flush();
+        return records * DataLogDecoder.RECORD_SIZE / (double)encoder.getBytesEncoded();
+    }
+
+    private static ArrayList<String> decode(byte[] stream) {
+        CompactDecoder decoder = new CompactDecoder();
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < stream.length; i += CompactDecoder.ITEM_SIZE)
+            decoder.decode(stream, i, CompactDecoder.ITEM_SIZE, callback);
+        return callback.records;
+    }
+
+    /* A wrist worn while walking: gravity, a 2Hz stride and sensor noise (mG)
+     */
+    private static short[][] walkingTrace(int count) {
+        Random random = new Random(7);
+        short[][] trace = new short[3][count];
+        for (int i = 0; i < count; i++) {
+            double phase = 2 * Math.PI * i / 12.5;
+            trace[0][i] = (short)(250 * Math.sin(phase) + random.nextGaussian() * 15);
+            trace[1][i] = (short)(-120 + 90 * Math.cos(phase) + random.nextGaussian() * 15);
+            trace[2][i] = (short)(-980 + 300 * Math.sin(2 * phase) + random.nextGaussian() * 15);
+        }
+        return trace;
+    }
+
+    @Test
+    public void roundTripsWalking() {
+        short[][] trace = walkingTrace(10000);
+        Items items = new Items();
+        ArrayList<String> expected = new ArrayList<>();
+        double ratio = encode(trace[0], trace[1], trace[2], items, expected);
+        assertEquals(expected, decode(items.stream.toByteArray()));
+        System.out.println(String.format("Compact encoding of walking: %.2fx smaller", ratio));
+        assertTrue(ratio > 1.5);
+    }
+
+    @Test
+    public void roundTripsStill() {
+        // Lying on a table: only noise, in a narrow band
+        Random random = new Random(3);
+        short[][] trace = new short[3][5000];
+        for (int i = 0; i < 5000; i++) {
+            trace[0][i] = (short)(random.nextInt(9) - 4);
+            trace[1][i] = (short)(random.nextInt(9) - 4);
+            trace[2][i] = (short)(-1000 + random.nextInt(9) - 4);
+        }
+        Items items = new Items();
+        ArrayList<String> expected = new ArrayList<>();
+        double ratio = encode(trace[0], trace[1], trace[2], items, expected);
+        assertEquals(expected, decode(items.stream.toByteArray()));
+        System.out.println(String.format("Compact encoding at rest: %.2fx smaller", ratio));
+        assertTrue(ratio > 2.5);
+    }
+
+    @Test
+    public void roundTripsExtremes() {
+        // Full scale swings need the widest deltas, 17 bits
+        Random random = new Random(11);
+        short[][] trace = new short[3][2000];
+        for (int i = 0; i < 2000; i++) {
+            trace[0][i] = i % 2 == 0 ? Short.MIN_VALUE : Short.MAX_VALUE;
+            trace[1][i] = (short)random.nextInt();
+            trace[2][i] = 0;
+        }
+        Items items = new Items();
+        ArrayList<String> expected = new ArrayList<>();
+        encode(trace[0], trace[1], trace[2], items, expected);
+        assertEquals(expected, decode(items.stream.toByteArray()));
+    }
+
+    @Test
+    public void roundTripsCapturedLegacyItems() {
+        // Re-encode items in the 6 byte record format, as received from the watch
+        short[][] trace = walkingTrace(3000);
+        final ArrayList<String> legacy = new ArrayList<>();
+        byte[] item = new byte[DataLogDecoder.RECORD_SIZE];
+        DataLogDecoder decoder = new DataLogDecoder();
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < 3000; i++) {
+            item[0] = (byte)(trace[0][i] >> 8 & 0x7F);
+            item[1] = (byte)trace[0][i];
+            item[2] = (byte)(trace[1][i] >> 8);
+            item[3] = (byte)trace[1][i];
+            item[4] = (byte)(trace[2][i] >> 8);
+            item[5] = (byte)trace[2][i];
+            decoder.decode(item, callback);
+        }
+        short[][] received = new short[3][callback.records.size()];
+        for (int i = 0; i < received[0].length; i++) {
+            String[] axes = callback.records.get(i).split(",");
+            for (int axis = 0; axis < 3; axis++)
+                received[axis][i] = Short.parseShort(axes[axis]);
+        }
+        Items items = new Items();
+        ArrayList<String> expected = new ArrayList<>();
+        encode(received[0], received[1], received[2], items, expected);
+        assertEquals(expected, decode(items.stream.toByteArray()));
+    }
+
+    @Test
+    public void decodesFramesSplitAcrossItems() {
+        short[][] trace = walkingTrace(250);
+        Items items = new Items();
+        ArrayList<String> expected = new ArrayList<>();
+        encode(trace[0], trace[1], trace[2], items, expected);
+        byte[] stream = items.stream.toByteArray();
+        // Deliver the stream a few bytes at a time
+        CompactDecoder decoder = new CompactDecoder();
+        RecordingCallback callback = new RecordingCallback();
+        for (int i = 0; i < stream.length; i += 5)
+            decoder.decode(stream, i, Math.min(5, stream.length - i), callback);
+        assertEquals(expected, callback.records);
+    }
+
+    @Test
+    public void rejectsUnknownVersion() {
+        CompactDecoder decoder = new CompactDecoder();
+        byte[] item = new byte[CompactDecoder.ITEM_SIZE];
+        item[0] = 2;
+        try {
+            decoder.decode(item, 0, item.length, new RecordingCallback());
+            fail();
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void processesCompactSessions() {
+        String[] features = {"DOMINANT_WRIST", "WAIST"};
+        SensorRegistry registry = new SensorRegistry(features.length);
+        final PacketProcessor processor = new PacketProcessor(features, registry);
+        final int tag = 1 | CompactDecoder.COMPACT_TAG;
+        CompactEncoder encoder = new CompactEncoder(new CompactEncoder.ItemSink() {
+            @Override
+            public void log(byte[] item) {
+                processor.process(LOG_UUID, tag, item, item.length);
+            }
+        });
+        short[][] trace = walkingTrace(1000);
+        encoder.writeTimestamp(START);
+        for (int i = 0; i < 1000; i += 25)
+            encoder.writeBatch(trace[0], trace[1], trace[2], i, 25);
+        encoder.writeTimestamp(START + 40000);
+        encoder.flush();
+
+        Sensor sensor = registry.get(LOG_UUID, 1);
+        assertEquals("WAIST", sensor.getTitle());
+        assertEquals(1000, sensor.getReadings().size());
+        assertEquals(START + 999 * 40, sensor.getStopTime());
+        SampleStore.Cursor reading = sensor.getReadings().cursor();
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(reading.next());
+            assertEquals(trace[0][i], reading.getX());
+            assertEquals(trace[2][i], reading.getZ());
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void compactSessionMustStartWithTimestamp() {
+        PacketProcessor processor = new PacketProcessor(new String[] {"WAIST"}, new SensorRegistry(1));
+        short[] values = new short[25];
+        final ArrayList<byte[]> logged = new ArrayList<>();
+        CompactEncoder encoder = new CompactEncoder(new CompactEncoder.ItemSink() {
+            @Override
+            public void log(byte[] item) {
+                logged.add(item.clone());
+            }
+        });
+        encoder.writeBatch(values, values, values, 0, 25);
+        encoder.flush();
+        processor.process(LOG_UUID, CompactDecoder.COMPACT_TAG, logged.get(0), CompactDecoder.ITEM_SIZE);
+    }
+
+    @Test
+    public void skipsFramesBeforeFirstTimestamp() {
+        SensorRegistry registry = new SensorRegistry(1);
+        final PacketProcessor processor = new PacketProcessor(new String[] {"WAIST"}, registry);
+        final int[] outOfSync = new int[1];
+        CompactEncoder encoder = new CompactEncoder(new CompactEncoder.ItemSink() {
+            @Override
+            public void log(byte[] item) {
+                try {
+                    processor.process(LOG_UUID, CompactDecoder.COMPACT_TAG, item, item.length);
+                } catch (IllegalStateException e) {
+                    outOfSync[0]++;
+                }
+            }
+        });
+        // Batches split across items, logged before the session's timestamp
+        short[][] trace = walkingTrace(1100);
+        for (int i = 0; i < 100; i += 25)
+            encoder.writeBatch(trace[0], trace[1], trace[2], i, 25);
+        encoder.writeTimestamp(START);
+        for (int i = 100; i < 1100; i += 25)
+            encoder.writeBatch(trace[0], trace[1], trace[2], i, 25);
+        encoder.flush();
+
+        assertTrue(outOfSync[0] > 0);
+        // Every reading after the timestamp is still decoded from the right place
+        Sensor sensor = registry.get(LOG_UUID, 0);
+        assertEquals(1000, sensor.getReadings().size());
+        SampleStore.Cursor reading = sensor.getReadings().cursor();
+        for (int i = 100; i < 1100; i++) {
+            assertTrue(reading.next());
+            assertEquals(trace[0][i], reading.getX());
+            assertEquals(trace[1][i], reading.getY());
+            assertEquals(trace[2][i], reading.getZ());
+        }
+    }
+
+    @Test
+    public void finishingSessionDropsPartialFrame() {
+        SensorRegistry registry = new SensorRegistry(1);
+        PacketProcessor processor = new PacketProcessor(new String[] {"WAIST"}, registry);
+        short[][] trace = walkingTrace(25);
+        Items items = new Items();
+        CompactEncoder encoder = new CompactEncoder(items);
+        encoder.writeTimestamp(START);
+        encoder.writeBatch(trace[0], trace[1], trace[2], 0, 25);
+        encoder.flush();
+        byte[] stream = items.stream.toByteArray();
+        // The session ends half way through a frame
+        processor.process(LOG_UUID, CompactDecoder.COMPACT_TAG, stream, 20);
+        processor.finishSession(LOG_UUID, CompactDecoder.COMPACT_TAG);
+        // The batch resent whole decodes cleanly, where a kept partial frame would misalign it
+        byte[] batch = Arrays.copyOfRange(stream, CompactDecoder.TIMESTAMP_FRAME_SIZE, stream.length);
+        processor.process(LOG_UUID, CompactDecoder.COMPACT_TAG, batch, batch.length);
+        assertEquals(25, registry.get(LOG_UUID, 0).getReadings().size());
+    }
+}
@@ -0,0 +1,135 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CsvWriterTest {
+    private static final long[] TIMESTAMPS = {0, 1, -1, 1435000000000L, 99999999999999L, 999999999999999L, Long.MAX_VALUE, Long.MIN_VALUE};
+    private static final int[] AXES = {0, 1, -1, 9, -9, 10, 999, -999, 1000, -1000, 4000, -4000, 9999, -9999, 10000, -10000,
+            Short.MAX_VALUE, Short.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+    /* Format readings the way the original export did
+     */
+    private static byte[] formatReference(long[] timestamps, int[] values, int count) {
+        StringBuilder builder = new StringBuilder(AccelerometerReading.CSV_HEADER + "\n");
+        for (int i = 0; i < count; i++) {
+            AccelerometerReading reading = new AccelerometerReading(values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+            reading.setTimestamp(timestamps[i]);
+            builder.append(reading.toCSV()).append("\n");
+        }
+        return builder.toString().getBytes();
+    }
+
+    private static byte[] formatWriter(long[] timestamps, int[] values, int count) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(output));
+        writer.writeHeader();
+        for (int i = 0; i < count; i++)
+            writer.writeReading(timestamps[i], values[i * 3], values[i * 3 + 1], values[i * 3 + 2]);
+        writer.close();
+        return output.toByteArray();
+    }
+
+    @Test
+    public void edgeValuesMatchToCSV() throws IOException {
+        int count = TIMESTAMPS.length * AXES.length;
+        long[] timestamps = new long[count];
+        int[] values = new int[count * 3];
+        for (int i = 0; i < count; i++) {
+            timestamps[i] = TIMESTAMPS[i % TIMESTAMPS.length];
+            values[i * 3] = AXES[i % AXES.length];
+            values[i * 3 + 1] = AXES[(i + 1) % AXES.length];
+            values[i * 3 + 2] = AXES[(i + 7) % AXES.length];
+        }
+        assertArrayEquals(formatReference(timestamps, values, count), formatWriter(timestamps, values, count));
+    }
+
+    @Test
+    public void randomReadingsMatchToCSVAcrossBufferBoundaries() throws IOException {
+        // Enough readings to fill the output buffer several times
+        int count = CsvWriter.BUFFER_SIZE / 10;
+        long[] timestamps = new long[count];
+        int[] values = new int[count * 3];
+        Random random = new Random(42);
+        long time = 1435000000000L;
+        for (int i = 0; i < count; i++) {
+            time += 40;
+            timestamps[i] = time;
+            for (int j = 0; j < 3; j++)
+                values[i * 3 + j] = random.nextInt(1 << 15) - (1 << 14);
+        }
+        assertArrayEquals(formatReference(timestamps, values, count), formatWriter(timestamps, values, count));
+    }
+
+    @Test
+    public void fixedPointFieldsMatchStringFormat() throws IOException {
+        double[] edges = {0, -0.0, 0.0005, -0.0005, 0.0004999, 1.5, 2.5, -2.5, 0.125, 999.9995, 1e14, 1e20, -1e20,
+                Float.MAX_VALUE, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+        Random random = new Random(7);
+        double[] values = new double[edges.length + 20000];
+        System.arraycopy(edges, 0, values, 0, edges.length);
+        for (int i = edges.length; i < values.length; i++)
+            // Features are floats, widened to doubles
+            values[i] = i % 2 == 0 ? (float)(random.nextGaussian() * 1000) : Float.intBitsToFloat(random.nextInt());
+        for (int decimals = 0; decimals <= 6; decimals++) {
+            StringBuilder expected = new StringBuilder();
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            CsvWriter writer = new CsvWriter(Channels.newChannel(output));
+            for (int i = 0; i < values.length; i++) {
+                expected.append(String.format(Locale.US, "%14d,%." + decimals + "f\n", i, values[i]));
+                writer.startLine(i);
+                writer.writeField(values[i], decimals);
+                writer.endLine();
+            }
+            writer.close();
+            assertEquals(expected.toString(), output.toString("UTF-8"));
+        }
+    }
+
+    @Test
+    public void throughputBeatsStringFormat() throws IOException {
+        int count = 200000;
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        AccelerometerReading reading = new AccelerometerReading(-1234, 567, 1000);
+        // Warm up both paths before timing them
+        for (int round = 0; round < 2; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                reading.setTimestamp(1435000000000L + i * 40L);
+                sink.write((reading.toCSV() + "\n").getBytes());
+            }
+            long formatNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            CsvWriter writer = new CsvWriter(Channels.newChannel(sink));
+            for (int i = 0; i < count; i++)
+                writer.writeReading(1435000000000L + i * 40L, -1234, 567, 1000);
+            writer.close();
+            long writerNanos = System.nanoTime() - start;
+
+            if (round == 1) {
+                double bytes = writer.getBytesWritten();
+                System.out.printf("CsvWriter: %.1f MB/s, String.format: %.1f MB/s, %.1fx speed-up%n",
+                        bytes * 1000 / writerNanos, bytes * 1000 / formatNanos, formatNanos / (double)writerNanos);
+                assertTrue("CsvWriter should be faster than String.format", writerNanos < formatNanos);
+            }
+        }
+    }
+}
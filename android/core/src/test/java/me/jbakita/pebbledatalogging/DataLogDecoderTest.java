@@ -0,0 +1,93 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+import me.jbakita.pebbledatalogging.TestFixtures.RecordingCallback;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DataLogDecoderTest {
+    private final DataLogDecoder decoder = new DataLogDecoder();
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++)
+            data[i] = (byte)values[i];
+        return data;
+    }
+
+    @Test
+    public void tagBitOnNegativeByte() {
+        // 0x80 is negative as a byte; only the tag bit should matter
+        assertTrue(DataLogDecoder.isTimestamp(bytes(0x80, 0, 0, 0, 0, 0), 0));
+        assertTrue(DataLogDecoder.isTimestamp(bytes(0xFF, 0, 0, 0, 0, 0), 0));
+        assertFalse(DataLogDecoder.isTimestamp(bytes(0x7F, 0, 0, 0, 0, 0), 0));
+        assertFalse(DataLogDecoder.isTimestamp(bytes(0x00, 0, 0, 0, 0, 0), 0));
+    }
+
+    @Test
+    public void timestampIgnoresTagBit() {
+        // 1435000000000 ms = 0x014E_1CAA_4E00
+        assertEquals(1435000000000L, DataLogDecoder.decodeTimestamp(bytes(0x81, 0x4E, 0x1C, 0xAA, 0x4E, 0x00), 0));
+    }
+
+    @Test
+    public void timestampUsesAll47Bits() {
+        // Bit 46 set must not be treated as a sign bit
+        assertEquals((1L << 47) - 1, DataLogDecoder.decodeTimestamp(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF), 0));
+        assertEquals(1L << 46, DataLogDecoder.decodeTimestamp(bytes(0xC0, 0, 0, 0, 0, 0), 0));
+    }
+
+    @Test
+    public void xIsSignExtendedFrom15Bits() {
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(bytes(
+                0x7F, 0xFF, 0, 0, 0, 0,     // -1
+                0x40, 0x00, 0, 0, 0, 0,     // -16384
+                0x3F, 0xFF, 0, 0, 0, 0,     // 16383
+                0x00, 0x80, 0, 0, 0, 0),    // 128, low byte must not sign extend
+                callback);
+        assertEquals(Arrays.asList("-1,0,0", "-16384,0,0", "16383,0,0", "128,0,0"), callback.records);
+    }
+
+    @Test
+    public void yAndZAreFull16Bits() {
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(bytes(0, 0, 0xFF, 0xFF, 0x80, 0x00, 0, 0, 0x7F, 0xFF, 0x00, 0xFF), callback);
+        assertEquals(Arrays.asList("0,-1,-32768", "0,32767,255"), callback.records);
+    }
+
+    @Test
+    public void mixedRecordsInOrder() {
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(bytes(
+                0x80, 0, 0, 0, 0x03, 0xE8,
+                0x00, 0x0A, 0xFF, 0xF6, 0x03, 0xE8),
+                callback);
+        assertEquals(Arrays.asList("T1000", "10,-10,1000"), callback.records);
+    }
+
+    @Test
+    public void decodeDoesNotModifyInput() {
+        byte[] data = bytes(0xFF, 0x12, 0x34, 0x56, 0x78, 0x9A, 0x7F, 0xFF, 0x80, 0x00, 0x01, 0x02);
+        byte[] copy = data.clone();
+        decoder.decode(data, new RecordingCallback());
+        assertArrayEquals(copy, data);
+    }
+
+    @Test
+    public void decodeRange() {
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(bytes(0xAA, 0, 0, 0, 0, 0, 1, 0, 0, 0, 0, 0x80, 0, 0, 0, 2, 0xAA), 5, 6, callback);
+        assertEquals(Arrays.asList("1,0,0"), callback.records);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void partialRecordRejected() {
+        decoder.decode(new byte[7], new RecordingCallback());
+    }
+}
@@ -0,0 +1,136 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class ExportEngineTest {
+    private File dir;
+    private ExportEngine engine;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("export", "");
+        dir.delete();
+        dir.mkdir();
+        engine = new ExportEngine(2);
+    }
+
+    @After
+    public void tearDown() {
+        engine.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private static Sensor sensor(String name, int tag, int readings) {
+        Sensor sensor = new Sensor(name, UUID.randomUUID(), tag, START);
+        for (int i = 0; i < readings; i++)
+            sensor.addReading(i, -i, 1000);
+        sensor.addTimestamp(START + readings * 40L);
+        return sensor;
+    }
+
+    private static class Recorder implements ExportEngine.Listener {
+        final CountDownLatch finished = new CountDownLatch(1);
+        final List<File> files = new ArrayList<>();
+        volatile long written;
+        volatile ExportEngine.Summary summary;
+
+        @Override
+        public void onProgress(long written, long total) {
+            this.written = written;
+        }
+
+        @Override
+        public synchronized void onFileWritten(File file) {
+            files.add(file);
+        }
+
+        @Override
+        public void onFinished(ExportEngine.Summary summary) {
+            this.summary = summary;
+            finished.countDown();
+        }
+    }
+
+    @Test
+    public void exportsJobsInParallel() throws Exception {
+        List<ExportEngine.Job> jobs = new ArrayList<>();
+        long total = 0;
+        for (int i = 0; i < 4; i++) {
+            Sensor sensor = sensor("S" + i, i, 10000 + i);
+            total += sensor.getReadings().cursor(sensor.getStartTime(), sensor.getStopTime()).getCount();
+            jobs.add(new ExportEngine.Job("Walk", sensor, sensor.getStartTime(), sensor.getStopTime(), dir, "Walk S" + i));
+        }
+        Recorder recorder = new Recorder();
+        engine.submit(jobs, recorder);
+        assertTrue(recorder.finished.await(30, TimeUnit.SECONDS));
+
+        assertTrue(recorder.summary.isSuccessful());
+        assertTrue(recorder.summary.getWarnings().isEmpty());
+        assertEquals(8, recorder.summary.getFilesWritten());
+        assertEquals(8, recorder.files.size());
+        assertEquals(total, recorder.written);
+        for (int i = 0; i < 4; i++) {
+            BinaryExportReader reader = new BinaryExportReader(new File(dir, "Walk S" + i + ".pdlb"));
+            // The stop time is exclusive, so the final reading is left out
+            assertEquals(10000 + i - 1, reader.getSampleCount());
+            assertEquals("S" + i, reader.getSensorName());
+        }
+    }
+
+    @Test
+    public void summarisesWarnings() throws Exception {
+        Sensor sensor = sensor("WAIST", 2, 100);
+        List<ExportEngine.Job> jobs = new ArrayList<>();
+        // The activity ran for longer than the sensor was recording
+        jobs.add(new ExportEngine.Job("Run", sensor, START - 5000, START + 10000, dir, "Run"));
+        Recorder recorder = new Recorder();
+        engine.submit(jobs, recorder);
+        assertTrue(recorder.finished.await(30, TimeUnit.SECONDS));
+
+        assertTrue(recorder.summary.isSuccessful());
+        assertEquals(2, recorder.summary.getWarnings().size());
+    }
+
+    @Test
+    public void cancelDeletesUnfinishedFiles() throws Exception {
+        List<ExportEngine.Job> jobs = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            Sensor sensor = sensor("S" + i, i, 50000);
+            jobs.add(new ExportEngine.Job("Sit", sensor, sensor.getStartTime(), sensor.getStopTime(), dir, "Sit S" + i));
+        }
+        Recorder recorder = new Recorder();
+        engine.submit(jobs, recorder).cancel();
+        assertTrue(recorder.finished.await(30, TimeUnit.SECONDS));
+
+        assertTrue(recorder.summary.isCancelled());
+        assertFalse(recorder.summary.isSuccessful());
+        assertEquals(recorder.summary.getFilesWritten(), dir.listFiles().length);
+    }
+
+    @Test
+    public void finishesWithNoJobs() throws Exception {
+        Recorder recorder = new Recorder();
+        engine.submit(new ArrayList<ExportEngine.Job>(), recorder);
+        assertTrue(recorder.finished.await(1, TimeUnit.SECONDS));
+        assertTrue(recorder.summary.isSuccessful());
+    }
+}
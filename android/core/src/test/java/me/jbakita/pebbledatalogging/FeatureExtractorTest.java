@@ -0,0 +1,214 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class FeatureExtractorTest {
+    private static final int MEAN = 0, VARIANCE = 1, MIN = 2, MAX = 3, CROSSINGS = 4, ENERGY = 5;
+
+    @Test
+    public void matchesWindowStatistics() {
+        Random random = new Random(15);
+        int count = 1000;
+        int[][] axes = new int[3][count];
+        FeatureExtractor features = new FeatureExtractor(100, 30, 0.5, 3);
+        for (int i = 0; i < count; i++) {
+            for (int[] axis : axes)
+                axis[i] = random.nextInt(4001) - 2000;
+            features.add(axes[0][i], axes[1][i], axes[2][i]);
+        }
+        assertEquals((count - 100) / 30 + 1, features.size());
+        for (int window = 0; window < features.size(); window++) {
+            int start = features.getStart(window);
+            assertEquals(window * 30, start);
+            for (int channel = 0; channel < 4; channel++) {
+                double sum = 0;
+                double min = Double.MAX_VALUE;
+                double max = -Double.MAX_VALUE;
+                double[] values = new double[100];
+                for (int i = 0; i < 100; i++) {
+                    int r = start + i;
+                    values[i] = channel < 3 ? axes[channel][r]
+                            : new AccelerometerReading(axes[0][r], axes[1][r], axes[2][r]).getMagnitude();
+                    sum += values[i];
+                    min = Math.min(min, values[i]);
+                    max = Math.max(max, values[i]);
+                }
+                double mean = sum / 100;
+                double variance = 0;
+                for (double value : values)
+                    variance += (value - mean) * (value - mean);
+                variance /= 100;
+                // Magnitudes are rounded to 1/16 mG
+                double tolerance = channel < 3 ? 0.01 : 0.05;
+                assertEquals(mean, features.getFeature(window, channel, MEAN), tolerance);
+                assertEquals(variance, features.getFeature(window, channel, VARIANCE), variance * 1e-4 + tolerance);
+                assertEquals(min, features.getFeature(window, channel, MIN), tolerance);
+                assertEquals(max, features.getFeature(window, channel, MAX), tolerance);
+            }
+        }
+    }
+
+    @Test
+    public void magnitudeDoesNotOverflowAtFullScale() {
+        FeatureExtractor features = new FeatureExtractor(100, 30, 0.5, 3);
+        for (int i = 0; i < 100; i++)
+            features.add(Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE);
+        // The squares sum to more than Integer.MAX_VALUE
+        double magnitude = Math.sqrt(3) * -Short.MIN_VALUE;
+        assertEquals(magnitude, features.getFeature(0, 3, MEAN), 0.05);
+        assertEquals(magnitude, new AccelerometerReading(Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE).getMagnitude(), 1e-9);
+    }
+
+    @Test
+    public void measuresMovementInBand() {
+        FeatureExtractor features = new FeatureExtractor();
+        // Gravity on Z, a 1.5Hz swing on X and 10Hz vibration on Y
+        for (int i = 0; i < 2000; i++)
+            features.add((int)Math.round(500 * Math.sin(2 * Math.PI * 1.5 * i / 25)),
+                    (int)Math.round(500 * Math.sin(2 * Math.PI * 10 * i / 25)), 1000);
+        int last = features.size() - 1;
+        // Two crossings per cycle
+        float expected = 2 * 1.5f * FeatureExtractor.DEFAULT_WINDOW_SIZE / 25;
+        assertEquals(expected, features.getFeature(last, 0, CROSSINGS), 1);
+        // A sine in the pass band keeps half its squared amplitude
+        assertEquals(500 * 500 / 2, features.getFeature(last, 0, ENERGY), 500 * 500 / 20);
+        assertTrue(features.getFeature(last, 1, ENERGY) < 500 * 500 / 20);
+        // Gravity alone is filtered out
+        assertTrue(features.getFeature(last, 2, ENERGY) < 1);
+        assertEquals(1000, features.getFeature(last, 2, MEAN), 0.01);
+        assertEquals(0, features.getFeature(last, 2, VARIANCE), 0.01);
+    }
+
+    @Test
+    public void attachesToExistingReadings() {
+        Sensor live = new Sensor("WAIST", LOG_UUID, 2, START);
+        live.attachFeatures(new FeatureExtractor());
+        Sensor late = new Sensor("WAIST", LOG_UUID, 2, START);
+        Random random = new Random(3);
+        for (int i = 0; i < 1000; i++) {
+            int x = random.nextInt(2000), y = random.nextInt(2000), z = random.nextInt(2000);
+            live.addReading(x, y, z);
+            late.addReading(x, y, z);
+            if (i == 500)
+                late.attachFeatures(new FeatureExtractor());
+        }
+        FeatureExtractor expected = live.getFeatures();
+        FeatureExtractor actual = late.getFeatures();
+        assertEquals(expected.size(), actual.size());
+        for (int window = 0; window < expected.size(); window++)
+            for (int channel = 0; channel < FeatureExtractor.CHANNELS.length; channel++)
+                for (int feature = 0; feature < FeatureExtractor.FEATURES.length; feature++)
+                    assertEquals(expected.getFeature(window, channel, feature), actual.getFeature(window, channel, feature), 0);
+    }
+
+    @Test
+    public void keepsRecentWindows() {
+        FeatureExtractor all = new FeatureExtractor();
+        FeatureExtractor recent = new FeatureExtractor(FeatureExtractor.DEFAULT_WINDOW_SIZE, FeatureExtractor.DEFAULT_HOP,
+                FeatureExtractor.DEFAULT_LOW_HZ, FeatureExtractor.DEFAULT_HIGH_HZ, 10);
+        Random random = new Random(8);
+        for (int i = 0; i < 2000; i++) {
+            int x = random.nextInt(2000), y = random.nextInt(2000), z = random.nextInt(2000);
+            all.add(x, y, z);
+            recent.add(x, y, z);
+        }
+        assertEquals(all.size(), recent.size());
+        assertEquals(recent.size() - 9, recent.getFirstWindow());
+        for (int window = recent.getFirstWindow(); window < recent.size(); window++) {
+            assertEquals(all.getStart(window), recent.getStart(window));
+            assertEquals(all.indexOf(all.getStart(window) - 1), recent.indexOf(recent.getStart(window) - 1));
+            for (int channel = 0; channel < FeatureExtractor.CHANNELS.length; channel++)
+                for (int feature = 0; feature < FeatureExtractor.FEATURES.length; feature++)
+                    assertEquals(all.getFeature(window, channel, feature), recent.getFeature(window, channel, feature), 0);
+        }
+        // Readings before the oldest window kept map to it
+        assertEquals(recent.getFirstWindow(), recent.indexOf(0));
+        try {
+            recent.getStart(recent.getFirstWindow() - 1);
+            fail("Windows no longer kept cannot be read");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    /* Write a sensor's windows in a range to a string
+     */
+    private static String writeCsv(Sensor sensor, long startTime, long stopTime) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(out));
+        sensor.getFeatures().writeCsv(writer, sensor.getReadings(), startTime, stopTime);
+        writer.close();
+        return out.toString("UTF-8");
+    }
+
+    @Test
+    public void writesSealedWindows() throws Exception {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        sensor.attachFeatures(new FeatureExtractor());
+        Random random = new Random(4);
+        for (int i = 1; i <= SampleStore.PAGE_SIZE * 8; i++) {
+            sensor.addReading(random.nextInt(2000), random.nextInt(2000), random.nextInt(2000));
+            if (i % 1000 == 0)
+                sensor.addTimestamp(START + i * 40L + random.nextInt(5));
+        }
+        long stopTime = START + SampleStore.PAGE_SIZE * 6 * 40L;
+        String raw = writeCsv(sensor, START + 5000, stopTime);
+        sensor.sync();
+        assertEquals(raw, writeCsv(sensor, START + 5000, stopTime));
+        assertTrue(raw.split("\n").length > 80);
+    }
+
+    @Test
+    public void writesFeaturesAsStringFormatDoes() throws Exception {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        sensor.attachFeatures(new FeatureExtractor());
+        Random random = new Random(16);
+        for (int i = 0; i < 5000; i++)
+            sensor.addReading(random.nextInt(4001) - 2000, random.nextInt(4001) - 2000, random.nextInt(4001) - 2000);
+        sensor.addTimestamp(START + 5000 * 40L);
+        FeatureExtractor features = sensor.getFeatures();
+        String[] lines = writeCsv(sensor, START, Long.MAX_VALUE).split("\n");
+        assertEquals(features.size() + 1, lines.length);
+        for (int window = 0; window < features.size(); window++) {
+            StringBuilder expected = new StringBuilder(String.format(Locale.US, "%14d,%14d",
+                    START + features.getStart(window) * 40L, START + (features.getStart(window) + features.getWindowSize() - 1) * 40L));
+            for (int channel = 0; channel < FeatureExtractor.CHANNELS.length; channel++)
+                for (int feature = 0; feature < FeatureExtractor.FEATURES.length; feature++)
+                    expected.append(String.format(Locale.US, ",%.3f", features.getFeature(window, channel, feature)));
+            assertEquals(expected.toString(), lines[window + 1]);
+        }
+    }
+
+    @Test
+    public void writesWindowsInRange() throws Exception {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        sensor.attachFeatures(new FeatureExtractor(100, 50, 0.5, 3));
+        for (int i = 0; i < 1000; i++)
+            sensor.addReading(i, 0, 0);
+        sensor.addTimestamp(START + 40000);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(out));
+        // Readings 100 to 499, so windows starting at 100 to 400
+        int written = sensor.getFeatures().writeCsv(writer, sensor.getReadings(), START + 4000, START + 20000);
+        writer.close();
+        assertEquals(7, written);
+        String[] lines = out.toString("UTF-8").split("\n");
+        assertEquals(8, lines.length);
+        assertEquals(2 + 4 * 6, lines[0].split(",").length);
+        String[] first = lines[1].split(",");
+        assertEquals(START + 4000, Long.parseLong(first[0].trim()));
+        assertEquals(START + 199 * 40, Long.parseLong(first[1].trim()));
+        assertEquals(149.5, Double.parseDouble(first[2]), 0.001);
+    }
+}
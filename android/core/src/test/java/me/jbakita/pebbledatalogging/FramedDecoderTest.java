@@ -0,0 +1,96 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+import me.jbakita.pebbledatalogging.TestFixtures.RecordingCallback;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class FramedDecoderTest {
+    private final FramedDecoder decoder = new FramedDecoder();
+
+    /* Build a frame as the watch does, with readings i * step, -i, i
+     */
+    private static byte[] frame(long timestamp, int count, int step) {
+        byte[] item = new byte[FramedDecoder.ITEM_SIZE];
+        item[0] = FramedDecoder.VERSION;
+        item[1] = (byte)count;
+        for (int i = 0; i < 6; i++)
+            item[2 + i] = (byte)(timestamp >>> (8 * (5 - i)));
+        for (int i = 0; i < count; i++) {
+            int offset = FramedDecoder.HEADER_SIZE + i * DataLogDecoder.RECORD_SIZE;
+            item[offset] = (byte)(i * step >> 8);
+            item[offset + 1] = (byte)(i * step);
+            item[offset + 2] = (byte)(-i >> 8);
+            item[offset + 3] = (byte)-i;
+            item[offset + 5] = (byte)i;
+        }
+        return item;
+    }
+
+    @Test
+    public void decodesWatchFrame() {
+        // The start of a frame logged by the watch, with full 16 bit X
+        byte[] item = Arrays.copyOf(new byte[] {
+                0x01, 0x19, 0x01, 0x4E, 0x1C, (byte)0xAA, 0x4E, 0x00,
+                (byte)0xB1, (byte)0xE0, 0x7F, (byte)0xFF, (byte)0x80, 0x00,
+                (byte)0xB1, (byte)0xE1, 0x7F, (byte)0xFE, (byte)0x80, 0x01}, FramedDecoder.ITEM_SIZE);
+        item[1] = 2;
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(item, 0, item.length, callback);
+        assertEquals(Arrays.asList("T" + START, "-20000,32767,-32768", "-19999,32766,-32767"), callback.records);
+    }
+
+    @Test
+    public void decodesTimestampOnlyFrame() {
+        RecordingCallback callback = new RecordingCallback();
+        decoder.decode(frame(START, 0, 1), 0, FramedDecoder.ITEM_SIZE, callback);
+        assertEquals(Arrays.asList("T" + START), callback.records);
+    }
+
+    @Test
+    public void rejectsInvalidFrames() {
+        byte[] tooMany = frame(START, 25, 1);
+        tooMany[1] = 26;
+        byte[][] invalid = {tooMany, Arrays.copyOf(frame(START, 25, 1), 20), new byte[FramedDecoder.ITEM_SIZE]};
+        for (byte[] item : invalid) {
+            try {
+                decoder.decode(item, 0, item.length, new RecordingCallback());
+                fail();
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void timesEveryBatch() {
+        String[] features = {"DOMINANT_WRIST", "WAIST"};
+        SensorRegistry registry = new SensorRegistry(features.length);
+        PacketProcessor processor = new PacketProcessor(features, registry);
+        int tag = 1 | FramedDecoder.FRAMED_TAG;
+        // The watch's batches arrive 1003ms apart, not the nominal 1000ms
+        for (int batch = 0; batch < 4; batch++)
+            processor.process(LOG_UUID, tag, frame(START + batch * 1003L, 25, 10), FramedDecoder.ITEM_SIZE);
+        processor.process(LOG_UUID, tag, frame(START + 4 * 1003L, 0, 10), FramedDecoder.ITEM_SIZE);
+
+        Sensor sensor = registry.get(LOG_UUID, 1);
+        assertEquals("WAIST", sensor.getTitle());
+        SampleStore readings = sensor.getReadings();
+        assertEquals(100, readings.size());
+        for (int i = 0; i < 100; i++) {
+            int batch = i / 25;
+            assertEquals(START + batch * 1003L + (i % 25) * 1003L / 25, readings.getTimestamp(i));
+        }
+        SampleStore.Cursor reading = readings.cursor();
+        reading.next();
+        reading.next();
+        assertEquals(10, reading.getX());
+        assertEquals(-1, reading.getY());
+        assertEquals(1, reading.getZ());
+    }
+}
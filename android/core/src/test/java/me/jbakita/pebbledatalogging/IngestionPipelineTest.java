@@ -0,0 +1,111 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+import static me.jbakita.pebbledatalogging.TestFixtures.item;
+
+public class IngestionPipelineTest {
+    private static final String[] FEATURES = {"WAIST"};
+
+    /* Collects the errors a pipeline reports
+     */
+    private static class RecordingListener implements IngestionPipeline.Listener {
+        final List<String> errors = Collections.synchronizedList(new ArrayList<String>());
+
+        @Override
+        public void onDataChanged() {
+        }
+
+        @Override
+        public void onError(String message) {
+            errors.add(message);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void warnsBeforePinnedReadingsAreOverwritten() {
+        SensorRegistry registry = new SensorRegistry(FEATURES.length);
+        // The shortest ring, of 3 retained pages and 1 spare
+        registry.setRetention(1);
+        // An activity in the first page which is never saved
+        registry.getPins().pin(START + 100 * 40L, START + 200 * 40L);
+        RecordingListener listener = new RecordingListener();
+        IngestionPipeline pipeline = new IngestionPipeline(FEATURES, registry, listener);
+        pipeline.start();
+        // Items of 25 readings, one second apart, for about 7 pages
+        for (int i = 0; i < 300; i++)
+            pipeline.receive(LOG_UUID, 0, item(START + i * 1000L, 25));
+        pipeline.stop();
+        SampleStore readings = registry.get(LOG_UUID, 0).getReadings();
+        assertEquals(SampleStore.PAGE_SIZE, readings.getOverwrittenPinnedCount());
+        // Warned once the spare page was in use, then told of the overwrite
+        assertEquals(2, listener.errors.size());
+        assertTrue(listener.errors.get(0), listener.errors.get(0).startsWith("Readings of an unsaved activity on WAIST"));
+        assertTrue(listener.errors.get(0), listener.errors.get(0).contains("within 1 minute."));
+        assertTrue(listener.errors.get(1), listener.errors.get(1).startsWith(SampleStore.PAGE_SIZE + " readings of an unsaved activity on WAIST"));
+    }
+
+    @Test(timeout = 10000)
+    public void refusesSessionsWhichDoNotFitOnce() {
+        SensorRegistry registry = new SensorRegistry(FEATURES.length);
+        registry.setRetention(1);
+        registry.setRetentionBudget(0);
+        RecordingListener listener = new RecordingListener();
+        IngestionPipeline pipeline = new IngestionPipeline(FEATURES, registry, listener);
+        pipeline.start();
+        for (int i = 0; i < 20; i++)
+            pipeline.receive(LOG_UUID, 0, item(START + i * 1000L, 25));
+        pipeline.stop();
+        assertTrue(registry.isEmpty());
+        assertEquals(1, listener.errors.size());
+        assertTrue(listener.errors.get(0), listener.errors.get(0).startsWith("Not enough memory to keep WAIST readings"));
+    }
+
+    @Test(timeout = 10000)
+    public void coalescesRepeatedErrors() {
+        SensorRegistry registry = new SensorRegistry(FEATURES.length);
+        RecordingListener listener = new RecordingListener();
+        IngestionPipeline pipeline = new IngestionPipeline(FEATURES, registry, listener);
+        pipeline.start();
+        // Every item is for a tag with no sensor
+        for (int i = 0; i < 200; i++)
+            pipeline.receive(LOG_UUID, 5, item(START + i * 1000L, 25));
+        pipeline.stop();
+        // Reported at most once per frame, with every failure counted
+        assertTrue(listener.errors.toString(), listener.errors.size() < 200);
+        int total = 0;
+        for (String error : listener.errors) {
+            assertTrue(error, error.startsWith("5 is not a valid data log ID."));
+            int times = error.indexOf(" (");
+            total += times < 0 ? 1 : Integer.parseInt(error.substring(times + 2, error.indexOf(" times)")));
+        }
+        assertEquals(200, total);
+    }
+
+    @Test(timeout = 10000)
+    public void savedActivitiesAreNotReported() {
+        SensorRegistry registry = new SensorRegistry(FEATURES.length);
+        registry.setRetention(1);
+        RetentionPins.Pin pin = registry.getPins().pin(START + 100 * 40L, START + 200 * 40L);
+        RecordingListener listener = new RecordingListener();
+        IngestionPipeline pipeline = new IngestionPipeline(FEATURES, registry, listener);
+        pipeline.start();
+        for (int i = 0; i < 100; i++)
+            pipeline.receive(LOG_UUID, 0, item(START + i * 1000L, 25));
+        // Saved before the spare page is needed
+        pin.release();
+        for (int i = 100; i < 300; i++)
+            pipeline.receive(LOG_UUID, 0, item(START + i * 1000L, 25));
+        pipeline.stop();
+        assertEquals(0, registry.get(LOG_UUID, 0).getReadings().getOverwrittenPinnedCount());
+        assertEquals(Collections.<String>emptyList(), listener.errors);
+    }
+}
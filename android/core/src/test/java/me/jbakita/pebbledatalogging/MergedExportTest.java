@@ -0,0 +1,120 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class MergedExportTest {
+    private static final UUID WATCH_A = UUID.fromString("0f0e0d0c-0b0a-0908-0706-050403020100");
+    private static final UUID WATCH_B = UUID.fromString("1f1e1d1c-1b1a-1918-1716-151413121110");
+
+    /* Two sensors with the same title. The first reads every 40ms from
+     * START, the second every 100ms from START + 20, with a 2s gap. Each
+     * reading's X is its time since START, so linear values are exact.
+     */
+    private static Sensor[] createSensors() {
+        Sensor a = new Sensor("WRIST", WATCH_A, 1, START);
+        for (int i = 0; i < 100; i++)
+            a.getReadings().append(START + i * 40, i * 40, -i, 1000);
+        Sensor b = new Sensor("WRIST", WATCH_B, 1, START);
+        for (int i = 0; i < 10; i++)
+            b.getReadings().append(START + 20 + i * 100, 20 + i * 100, i, -1000);
+        for (int i = 0; i < 10; i++)
+            b.getReadings().append(START + 3000 + i * 100, 3000 + i * 100, i, -1000);
+        return new Sensor[] {a, b};
+    }
+
+    private static String[] export(MergedExport.Interpolation interpolation) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(output));
+        MergedExport merged = new MergedExport(Arrays.asList(createSensors()), START, START + 4000, 40, interpolation);
+        assertEquals(100, merged.getRowCount());
+        merged.writeHeader(writer);
+        while (merged.next())
+            merged.writeRow(writer);
+        assertFalse(merged.next());
+        writer.close();
+        return output.toString().split("\n");
+    }
+
+    /* Split a row into axis fields, with empty fields as null. The time
+     * field is left null.
+     */
+    private static Integer[] parse(String line) {
+        String[] fields = line.split(",", -1);
+        Integer[] values = new Integer[fields.length];
+        for (int i = 1; i < fields.length; i++)
+            values[i] = fields[i].trim().isEmpty() ? null : Integer.valueOf(fields[i].trim().replace("+", ""));
+        return values;
+    }
+
+    @Test
+    public void namesDuplicateSensors() throws IOException {
+        String[] lines = export(MergedExport.Interpolation.LINEAR);
+        assertEquals("Time(ms)      ,WRIST 0f0e0d0c X(mG),WRIST 0f0e0d0c Y(mG),WRIST 0f0e0d0c Z(mG),"
+                + "WRIST 1f1e1d1c X(mG),WRIST 1f1e1d1c Y(mG),WRIST 1f1e1d1c Z(mG)", lines[0]);
+        assertEquals(101, lines.length);
+    }
+
+    @Test
+    public void interpolatesLinearly() throws IOException {
+        String[] lines = export(MergedExport.Interpolation.LINEAR);
+        for (int row = 0; row < 100; row++) {
+            Integer[] fields = parse(lines[row + 1]);
+            int t = row * 40;
+            // The first sensor reads on the grid
+            assertEquals(Integer.valueOf(t), fields[1]);
+            assertEquals(Integer.valueOf(-row), fields[2]);
+            assertEquals(Integer.valueOf(1000), fields[3]);
+            boolean covered = (t >= 20 && t <= 920) || (t >= 3000 && t <= 3900);
+            if (covered) {
+                assertEquals(Integer.valueOf(t), fields[4]);
+                assertEquals(Integer.valueOf(-1000), fields[6]);
+            }
+            else {
+                // Before the first reading, across the gap, and after the last
+                assertEquals(null, fields[4]);
+                assertEquals(null, fields[5]);
+                assertEquals(null, fields[6]);
+            }
+        }
+        assertEquals(START + 3960, Long.parseLong(lines[100].split(",")[0].trim()));
+    }
+
+    @Test
+    public void interpolatesNearest() throws IOException {
+        String[] lines = export(MergedExport.Interpolation.NEAREST);
+        // 360ms is closer to the reading at 320 than 420
+        assertEquals(Integer.valueOf(320), parse(lines[10])[4]);
+        assertEquals(Integer.valueOf(3), parse(lines[10])[5]);
+        // 400ms is closer to 420
+        assertEquals(Integer.valueOf(420), parse(lines[11])[4]);
+        assertEquals(Integer.valueOf(4), parse(lines[11])[5]);
+        assertEquals(null, parse(lines[50])[4]);
+    }
+
+    @Test
+    public void writesEmptyRange() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        CsvWriter writer = new CsvWriter(Channels.newChannel(output));
+        MergedExport merged = new MergedExport(Arrays.asList(createSensors()), START + 10000, START + 10000, 40,
+                MergedExport.Interpolation.LINEAR);
+        assertEquals(0, merged.getRowCount());
+        assertFalse(merged.next());
+        // Rows past every reading are empty
+        merged = new MergedExport(Arrays.asList(createSensors()), START + 10000, START + 10040, 40,
+                MergedExport.Interpolation.LINEAR);
+        merged.next();
+        merged.writeRow(writer);
+        writer.close();
+        assertEquals(" 1435000010000,,,,,,\n", output.toString());
+    }
+}
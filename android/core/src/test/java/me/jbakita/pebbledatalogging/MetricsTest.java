@@ -0,0 +1,107 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class MetricsTest {
+    @Test
+    public void histogramPercentiles() {
+        Metrics metrics = new Metrics("Test");
+        Metrics.Histogram histogram = metrics.histogram("Latency", "ns");
+        for (int i = 1; i <= 1000; i++)
+            histogram.record(i);
+        histogram.record(-5);
+        assertEquals(1001, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500500 / 1001.0, histogram.getMean(), 1e-9);
+        // Bounds are exact to within a factor of two
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 500 && p50 < 1000);
+        assertEquals(1000, histogram.getPercentile(99));
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, metrics.histogram("Empty", "ns").getPercentile(50));
+    }
+
+    @Test
+    public void reportsEveryMetric() {
+        Metrics metrics = new Metrics("Test \"group\"");
+        metrics.counter("Items", "items", true).add(42);
+        metrics.histogram("Depth", "items").record(3);
+        metrics.gauge("Answer", "things", new Metrics.Gauge() {
+            @Override
+            public long get() {
+                return 7;
+            }
+        });
+        String text = Metrics.toText(Arrays.asList(metrics));
+        assertTrue(text.contains("Items: 42 items ("));
+        assertTrue(text.contains(", recently 0.0/s)"));
+        assertTrue(text.contains("Depth: n=1 mean=3.0"));
+        assertTrue(text.contains("Answer: 7 things"));
+        String json = Metrics.toJson(Arrays.asList(metrics));
+        assertTrue(json.contains("\"name\": \"Test \\\"group\\\"\""));
+        assertTrue(json.contains("\"Items\": {\"type\": \"counter\", \"unit\": \"items\", \"value\": 42, \"perSecond\": "));
+        assertTrue(json.contains(", \"recentPerSecond\": 0.000}"));
+        assertTrue(json.contains("\"Depth\": {\"type\": \"histogram\", \"unit\": \"items\", \"count\": 1, \"mean\": 3.000, "
+                + "\"p50\": 3, \"p90\": 3, \"p99\": 3, \"max\": 3, \"buckets\": [0, 0, 1]}"));
+        assertTrue(json.contains("\"Answer\": {\"type\": \"gauge\", \"unit\": \"things\", \"value\": 7}"));
+    }
+
+    @Test
+    public void recentRateFollowsTheLastMinute() {
+        Metrics.Counter counter = new Metrics("Test").counter("Items", "items", true);
+        long now = System.nanoTime();
+        // 100 items in the first tick is 20 per second
+        counter.add(100, now);
+        assertEquals(0, counter.getRecentRate(now), 0);
+        now += Metrics.Counter.TICK_NANOS;
+        assertEquals(20, counter.getRecentRate(now), 1e-9);
+        // A steady 10 per second pulls it most of the way there within a minute
+        for (int i = 0; i < 12; i++) {
+            counter.add(50, now);
+            now += Metrics.Counter.TICK_NANOS;
+        }
+        assertEquals(10 + 10 / Math.E, counter.getRecentRate(now), 1e-6);
+        // Idle for a minute decays it by the same factor
+        now += 12 * Metrics.Counter.TICK_NANOS;
+        assertEquals((10 + 10 / Math.E) / Math.E, counter.getRecentRate(now), 1e-6);
+        assertEquals(700, counter.get());
+    }
+
+    @Test
+    public void jsonEscapesControlCharacters() {
+        Metrics metrics = new Metrics("Line\nbreak \\ \"tab\"\t\u0001");
+        metrics.counter("Bell\u0007", "\r", false).increment();
+        String json = Metrics.toJson(Arrays.asList(metrics));
+        assertTrue(json, json.contains("\"name\": \"Line\\nbreak \\\\ \\\"tab\\\"\\t\\u0001\""));
+        assertTrue(json, json.contains("\"Bell\\u0007\": {\"type\": \"counter\", \"unit\": \"\\r\", \"value\": 1}"));
+        for (int i = 0; i < json.length(); i++)
+            assertTrue(json, json.charAt(i) >= 0x20 || json.charAt(i) == '\n');
+    }
+
+    @Test
+    public void sensorRecordsTimestampError() {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        for (int i = 0; i < 1000; i++)
+            sensor.addReading(0, 0, 0);
+        // 25 ms later than 1000 readings at the nominal 40 ms
+        sensor.addTimestamp(START + 40025);
+        for (int i = 0; i < 1000; i++)
+            sensor.addReading(0, 0, 0);
+        // Readings were lost
+        sensor.addTimestamp(START + 40025 + 60000);
+        sensor.recordItem(150);
+        String text = Metrics.toText(Arrays.asList(sensor.getMetrics()));
+        assertTrue(text, text.contains("Sync interval: n=2 mean=50012.5"));
+        assertTrue(text, text.contains("Timestamp error: n=2 mean=10000.0 p50<=31 p99<=19975 max=19975 ms"));
+        assertTrue(text, text.contains("Gaps: 1 timestamps"));
+        assertTrue(text, text.contains("Received: 150 bytes"));
+        assertTrue(text, text.contains("Readings: 2000 readings"));
+    }
+}
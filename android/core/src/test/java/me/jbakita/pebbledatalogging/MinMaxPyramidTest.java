@@ -0,0 +1,176 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class MinMaxPyramidTest {
+    private static final int B = MinMaxPyramid.BUCKET_SIZE;
+
+    /* A store of random readings every 40ms
+     */
+    private static SampleStore createStore(int count, long seed) {
+        SampleStore store = new SampleStore();
+        Random random = new Random(seed);
+        for (int i = 0; i < count; i++)
+            store.append(START + i * 40L, random.nextInt(8001) - 4000, random.nextInt(8001) - 4000, random.nextInt(8001) - 4000);
+        return store;
+    }
+
+    private static int value(SampleStore.Cursor reading, int channel) {
+        switch (channel) {
+            case 0: return reading.getX();
+            case 1: return reading.getY();
+            case 2: return reading.getZ();
+            default: return (int)Math.min(Short.MAX_VALUE, Math.round(reading.getMagnitude()));
+        }
+    }
+
+    /* Check each pixel against the readings it covers, widened to whole
+     * buckets where the pyramid is used
+     */
+    private static void assertPixels(SampleStore store, int start, int stop, MinMaxPyramid.Buckets buckets) {
+        int width = buckets.getWidth();
+        long count = stop - start;
+        boolean fine = count < (long)width * B;
+        int complete = store.size() / B * B;
+        for (int pixel = 0; pixel < width; pixel++) {
+            int from = (int)(start + count * pixel / width);
+            int to = (int)(start + count * (pixel + 1) / width);
+            if (fine) {
+                // Readings are spread evenly over the pixels
+                from = (int)(start + (count * pixel + width - 1) / width);
+                to = (int)(start + (count * (pixel + 1) + width - 1) / width);
+            }
+            assertEquals(to - from, buckets.getCount(pixel));
+            if (from == to)
+                continue;
+            if (!fine) {
+                if (from < complete)
+                    from = from / B * B;
+                to = Math.max(to, Math.min((to + B - 1) / B * B, complete));
+            }
+            for (int channel = 0; channel < MinMaxPyramid.CHANNELS.length; channel++) {
+                int min = Integer.MAX_VALUE;
+                int max = Integer.MIN_VALUE;
+                SampleStore.Cursor reading = store.cursor(from, to);
+                while (reading.next()) {
+                    min = Math.min(min, value(reading, channel));
+                    max = Math.max(max, value(reading, channel));
+                }
+                assertEquals(min, buckets.getMin(channel, pixel));
+                assertEquals(max, buckets.getMax(channel, pixel));
+            }
+        }
+    }
+
+    @Test
+    public void matchesReadings() {
+        // Leave a partly filled bucket at the end
+        SampleStore store = createStore(20000 + 7, 16);
+        for (int width : new int[] {1, 100, 333}) {
+            MinMaxPyramid.Buckets buckets = new MinMaxPyramid.Buckets(width);
+            store.downsample(0, store.size(), buckets);
+            assertPixels(store, 0, store.size(), buckets);
+            store.downsample(123, 19999, buckets);
+            assertPixels(store, 123, 19999, buckets);
+            store.downsample(5000, store.size(), buckets);
+            assertPixels(store, 5000, store.size(), buckets);
+        }
+    }
+
+    @Test
+    public void saturatesFullScaleMagnitudes() {
+        SampleStore store = new SampleStore();
+        for (int i = 0; i < 3 * B; i++)
+            store.append(START + i * 40L, Short.MIN_VALUE, Short.MIN_VALUE, Short.MIN_VALUE);
+        MinMaxPyramid.Buckets buckets = new MinMaxPyramid.Buckets(1);
+        store.downsample(0, store.size(), buckets);
+        // The squares sum to more than Integer.MAX_VALUE
+        assertEquals(Short.MAX_VALUE, buckets.getMin(3, 0));
+        assertEquals(Short.MAX_VALUE, buckets.getMax(3, 0));
+    }
+
+    @Test
+    public void readsFineRanges() {
+        SampleStore store = createStore(5000, 3);
+        MinMaxPyramid.Buckets buckets = new MinMaxPyramid.Buckets(300);
+        store.downsample(1000, 1450, buckets);
+        assertPixels(store, 1000, 1450, buckets);
+        // Fewer readings than pixels leaves some pixels empty
+        store.downsample(1000, 1100, buckets);
+        assertPixels(store, 1000, 1100, buckets);
+        assertEquals(0, buckets.getCount(1));
+        assertEquals(0, buckets.getCount(2));
+        assertEquals(1, buckets.getCount(3));
+    }
+
+    @Test
+    public void downsamplesTimeRange() {
+        SampleStore store = createStore(10000, 5);
+        MinMaxPyramid.Buckets buckets = new MinMaxPyramid.Buckets(200);
+        store.downsampleTimes(START + 1000 * 40L, START + 9000 * 40L, buckets);
+        assertEquals(1000, buckets.getStartIndex());
+        assertEquals(9000, buckets.getStopIndex());
+        assertPixels(store, 1000, 9000, buckets);
+    }
+
+    @Test
+    public void ringMatchesRetainedReadings() {
+        SampleStore store = new SampleStore();
+        store.attachRetention(8, 0, null);
+        Random random = new Random(21);
+        for (int i = 0; i < SampleStore.PAGE_SIZE * 40 + 7; i++)
+            store.append(START + i * 40L, random.nextInt(8001) - 4000, random.nextInt(8001) - 4000, random.nextInt(8001) - 4000);
+        int first = store.getFirstIndex();
+        assertEquals(SampleStore.PAGE_SIZE * 32, first);
+        for (int width : new int[] {1, 100, 333}) {
+            MinMaxPyramid.Buckets buckets = new MinMaxPyramid.Buckets(width);
+            // Readings no longer retained are left out
+            store.downsample(0, store.size(), buckets);
+            assertEquals(first, buckets.getStartIndex());
+            assertPixels(store, first, store.size(), buckets);
+            store.downsample(first + 123, store.size() - 50, buckets);
+            assertPixels(store, first + 123, store.size() - 50, buckets);
+        }
+    }
+
+    @Test
+    public void rebuildsWhenRestored() throws IOException {
+        File dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+        try {
+            SampleStore store = new SampleStore();
+            store.attachJournal(SpillJournal.create(dir, "WAIST", LOG_UUID, 2), 2);
+            Random random = new Random(7);
+            for (int i = 0; i < SampleStore.PAGE_SIZE * 6 + 3; i++)
+                store.append(START + i * 40L, random.nextInt(2000), random.nextInt(2000), random.nextInt(2000));
+            store.flushJournal();
+            store.getJournal().close();
+            SampleStore restored = SampleStore.restore(SpillJournal.openAll(dir).get(0), 2);
+            MinMaxPyramid.Buckets expected = new MinMaxPyramid.Buckets(50);
+            MinMaxPyramid.Buckets actual = new MinMaxPyramid.Buckets(50);
+            store.downsample(0, store.size(), expected);
+            restored.downsample(0, restored.size(), actual);
+            for (int pixel = 0; pixel < 50; pixel++) {
+                for (int channel = 0; channel < MinMaxPyramid.CHANNELS.length; channel++) {
+                    assertEquals(expected.getMin(channel, pixel), actual.getMin(channel, pixel));
+                    assertEquals(expected.getMax(channel, pixel), actual.getMax(channel, pixel));
+                }
+            }
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null)
+                for (File file : files)
+                    file.delete();
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+public class PacketRingTest {
+    private static final UUID LOG_UUID = UUID.randomUUID();
+
+    @Test
+    public void capacityRoundsUpToPowerOfTwo() {
+        assertEquals(8, new PacketRing(5).capacity());
+        assertEquals(8, new PacketRing(8).capacity());
+    }
+
+    @Test
+    public void itemsAreCopied() {
+        PacketRing ring = new PacketRing(4);
+        byte[] data = {1, 2, 3};
+        ring.put(LOG_UUID, 7, data);
+        data[0] = 9;
+        final int[] seen = new int[3];
+        ring.drain(new PacketRing.Consumer() {
+            @Override
+            public void accept(UUID logUuid, int tag, long timestamp, long receivedAt, byte[] data, int length) {
+                seen[0] = tag;
+                seen[1] = data[0];
+                seen[2] = length;
+            }
+        }, 10);
+        assertEquals(7, seen[0]);
+        assertEquals(1, seen[1]);
+        assertEquals(3, seen[2]);
+    }
+
+    @Test(timeout = 10000)
+    public void itemsArriveInOrderAcrossThreads() throws InterruptedException {
+        final PacketRing ring = new PacketRing(16);
+        final int count = 100000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] data = new byte[4];
+                for (int i = 0; i < count; i++) {
+                    data[0] = (byte)(i >> 24);
+                    data[1] = (byte)(i >> 16);
+                    data[2] = (byte)(i >> 8);
+                    data[3] = (byte)i;
+                    ring.put(LOG_UUID, 0, data);
+                }
+                ring.close();
+            }
+        });
+        producer.start();
+        final int[] next = new int[1];
+        PacketRing.Consumer consumer = new PacketRing.Consumer() {
+            @Override
+            public void accept(UUID logUuid, int tag, long timestamp, long receivedAt, byte[] data, int length) {
+                int value = (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | data[3] & 0xFF;
+                assertEquals(next[0]++, value);
+            }
+        };
+        while (!ring.isClosed() || !ring.isEmpty()) {
+            if (ring.drain(consumer, 5) == 0)
+                ring.await(1000000);
+        }
+        producer.join();
+        assertEquals(count, next[0]);
+    }
+}
@@ -0,0 +1,300 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class SampleStoreTest {
+    /* A store with readings every 40ms, x holding the reading index
+     */
+    private static SampleStore createStore(int count) {
+        SampleStore store = new SampleStore();
+        for (int i = 0; i < count; i++)
+            store.append(START + i * 40L, i % 30000, -i % 30000, 1000);
+        return store;
+    }
+
+    @Test
+    public void cursorVisitsEveryReading() {
+        SampleStore store = createStore(SampleStore.PAGE_SIZE * 2 + 5);
+        SampleStore.Cursor reading = store.cursor();
+        for (int i = 0; i < store.size(); i++) {
+            assertTrue(reading.next());
+            assertEquals(i, reading.getIndex());
+            assertEquals(START + i * 40L, reading.getTimestamp());
+            assertEquals(i % 30000, reading.getX());
+            assertEquals(-i % 30000, reading.getY());
+        }
+        assertFalse(reading.next());
+    }
+
+    @Test
+    public void indexOfFindsFirstReadingAtOrAfter() {
+        SampleStore store = createStore(SampleStore.PAGE_SIZE * 3 + 17);
+        assertEquals(0, store.indexOf(Long.MIN_VALUE));
+        assertEquals(0, store.indexOf(START));
+        assertEquals(1, store.indexOf(START + 1));
+        assertEquals(SampleStore.PAGE_SIZE, store.indexOf(START + SampleStore.PAGE_SIZE * 40L));
+        assertEquals(SampleStore.PAGE_SIZE, store.indexOf(START + SampleStore.PAGE_SIZE * 40L - 39));
+        assertEquals(store.size() - 1, store.indexOf(START + (store.size() - 1) * 40L));
+        assertEquals(store.size(), store.indexOf(START + store.size() * 40L));
+        assertEquals(0, new SampleStore().indexOf(START));
+    }
+
+    @Test
+    public void indexOfWithRepeatedTimestamps() {
+        SampleStore store = new SampleStore();
+        for (int i = 0; i < SampleStore.PAGE_SIZE * 2; i++)
+            store.append(START + i / 100 * 40L, 0, 0, 0);
+        assertEquals(500, store.indexOf(START + 5 * 40L));
+        // This run of timestamps straddles the page boundary
+        assertEquals(1000, store.indexOf(START + 10 * 40L));
+        assertEquals(SampleStore.PAGE_SIZE + 76, store.indexOf(START + 11 * 40L));
+    }
+
+    @Test
+    public void timeRangeCursor() {
+        SampleStore store = createStore(SampleStore.PAGE_SIZE * 4);
+        SampleStore.Cursor reading = store.cursor(START + 1000 * 40L, START + 2100 * 40L);
+        assertEquals(1100, reading.getCount());
+        for (int i = 1000; i < 2100; i++) {
+            assertTrue(reading.next());
+            assertEquals(i, reading.getX());
+        }
+        assertFalse(reading.next());
+        assertFalse(store.cursor(START + 5, START + 5).next());
+        assertFalse(store.cursor(START + 100, START).next());
+    }
+
+    /* A store of walking-like readings, with timestamps interpolated
+     * between slightly irregular syncs the way Sensor does
+     */
+    private static SampleStore createWalkingStore(int count) {
+        SampleStore store = new SampleStore();
+        Random random = new Random(19);
+        long syncTime = START;
+        for (int i = 0; i < count; i++) {
+            if (i % 1000 == 0 && i > 0)
+                syncTime += 40000 + random.nextInt(50) - 25;
+            long t = syncTime + (i % 1000) * 40025L / 1000;
+            store.append(t, (int)(300 * Math.sin(i / 12.5)) + random.nextInt(40) - 20,
+                    (int)(150 * Math.cos(i / 12.5)) + random.nextInt(40) - 20,
+                    (int)(-1000 + 200 * Math.sin(i / 6.25)) + random.nextInt(40) - 20);
+        }
+        return store;
+    }
+
+    private static void assertSameReadings(SampleStore.Cursor expected, SampleStore.Cursor actual) {
+        assertEquals(expected.getCount(), actual.getCount());
+        while (expected.next()) {
+            assertTrue(actual.next());
+            assertEquals(expected.getIndex(), actual.getIndex());
+            assertEquals(expected.getTimestamp(), actual.getTimestamp());
+            assertEquals(expected.getX(), actual.getX());
+            assertEquals(expected.getY(), actual.getY());
+            assertEquals(expected.getZ(), actual.getZ());
+        }
+        assertFalse(actual.next());
+    }
+
+    @Test
+    public void sealedPagesReadTheSame() {
+        int count = SampleStore.PAGE_SIZE * 5 + 300;
+        SampleStore expected = createWalkingStore(count);
+        SampleStore sealed = createWalkingStore(count);
+        // Seals the first four pages, as the fifth holds unsealed readings
+        sealed.seal(SampleStore.PAGE_SIZE * 5 - 1);
+        assertSameReadings(expected.cursor(), sealed.cursor());
+        assertSameReadings(expected.cursor(700, 3000), sealed.cursor(700, 3000));
+        assertSameReadings(expected.cursor(START + 99999, START + 150000), sealed.cursor(START + 99999, START + 150000));
+        for (int i = 0; i < count; i += 97) {
+            assertEquals(expected.getTimestamp(i), sealed.getTimestamp(i));
+            long time = expected.getTimestamp(i);
+            assertEquals(expected.indexOf(time), sealed.indexOf(time));
+            assertEquals(expected.indexOf(time + 1), sealed.indexOf(time + 1));
+        }
+        assertEquals(expected.indexOf(Long.MAX_VALUE), sealed.indexOf(Long.MAX_VALUE));
+        // Unsealed readings can still be corrected
+        sealed.setTimestamp(SampleStore.PAGE_SIZE * 4, sealed.getTimestamp(SampleStore.PAGE_SIZE * 4));
+        try {
+            sealed.setTimestamp(SampleStore.PAGE_SIZE * 4 - 1, 0);
+            fail("Sealed readings cannot be corrected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void cursorSeeksForward() {
+        SampleStore store = createStore(SampleStore.PAGE_SIZE * 6);
+        store.seal(SampleStore.PAGE_SIZE * 3);
+        SampleStore.Cursor reading = store.cursor(10, store.size());
+        // Within a sealed page, across sealed pages, into uncompressed ones, and staying put
+        for (int index : new int[] {10, 500, 2100, 2100, 3100, 5000, store.size() - 1}) {
+            assertTrue(reading.seek(index));
+            assertEquals(index, reading.getIndex());
+            assertEquals(START + index * 40L, reading.getTimestamp());
+            assertEquals(index % 30000, reading.getX());
+        }
+        assertFalse(reading.seek(store.size()));
+        try {
+            reading.seek(5);
+            fail("Cursors only move forward");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void sealingReducesMemoryPerSample() {
+        int count = SampleStore.PAGE_SIZE * 100;
+        SampleStore store = createWalkingStore(count);
+        double raw = store.getMemoryUsage() / (double)count;
+        store.seal(count);
+        double sealed = store.getMemoryUsage() / (double)count;
+        System.out.println(String.format("Memory per sample: %.2f bytes uncompressed, %.2f bytes sealed", raw, sealed));
+        assertTrue(raw >= 14);
+        assertTrue(sealed < 7);
+        // The page being written is never sealed
+        store.append(START + count * 41L, 0, 0, 0);
+        store.seal(store.size());
+        assertEquals(count, store.indexOf(START + count * 41L));
+    }
+
+    /* A store keeping only recent readings, with readings every 40ms and x holding the reading index
+     */
+    private static SampleStore createRing(int retainedPages, int sparePages, RetentionPins pins, int count) {
+        SampleStore store = new SampleStore();
+        store.attachRetention(retainedPages, sparePages, pins);
+        for (int i = 0; i < count; i++)
+            store.append(START + i * 40L, i % 30000, -i % 30000, 1000);
+        return store;
+    }
+
+    @Test
+    public void ringKeepsRecentReadings() {
+        SampleStore store = createRing(4, 2, null, SampleStore.PAGE_SIZE * 20 + 5);
+        // Every slot holds an uncompressed page until the ring is sealed
+        long raw = store.getMemoryUsage();
+        assertTrue(raw <= SampleStore.getMaxRetentionMemory(4, 2));
+        // Pages no longer retained are left to be overwritten rather than sealed
+        store.seal(store.size());
+        assertTrue(store.getMemoryUsage() < raw * 3 / 4);
+        int first = SampleStore.PAGE_SIZE * 16;
+        assertEquals(first, store.getFirstIndex());
+        assertEquals(first, store.indexOf(START));
+        assertEquals(first + 100, store.indexOf(START + (first + 100) * 40L));
+        assertEquals(store.size(), store.indexOf(Long.MAX_VALUE));
+        SampleStore.Cursor reading = store.cursor();
+        for (int i = first; i < store.size(); i++) {
+            assertTrue(reading.next());
+            assertEquals(i, reading.getIndex());
+            assertEquals(START + i * 40L, reading.getTimestamp());
+            assertEquals(i % 30000, reading.getX());
+        }
+        assertFalse(reading.next());
+        assertEquals(START + first * 40L, store.getTimestamp(first));
+        try {
+            store.getTimestamp(SampleStore.PAGE_SIZE * 5);
+            fail("Overwritten readings cannot be read");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        try {
+            store.cursor(0, 10).next();
+            fail("Overwritten readings cannot be read");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void ringAllocatesOnlyNewPages() {
+        SampleStore store = createRing(4, 2, new RetentionPins(), SampleStore.PAGE_SIZE * 10);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = SampleStore.PAGE_SIZE * 10; i < SampleStore.PAGE_SIZE * 100; i++)
+            store.append(START + i * 40L, i % 30000, -i % 30000, 1000);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // One uncompressed page as each is started, and the measurement itself
+        assertTrue("Allocated " + allocated + " bytes", allocated < 90L * SampleStore.PAGE_SIZE * 15);
+    }
+
+    @Test
+    public void pinsHoldBackReadings() {
+        RetentionPins pins = new RetentionPins();
+        RetentionPins.Pin pin = pins.pin(START + 1100 * 40L, START + 1200 * 40L);
+        // Starting the ninth page would overwrite the second, which is pinned, so a spare page is used
+        SampleStore store = createRing(4, 3, pins, SampleStore.PAGE_SIZE * 8 + 1);
+        assertEquals(SampleStore.PAGE_SIZE, store.getFirstIndex());
+        assertEquals(3, store.getHeldBackPageCount());
+        SampleStore.Cursor reading = store.cursor(START + 1100 * 40L, START + 1200 * 40L);
+        assertEquals(100, reading.getCount());
+        while (reading.next())
+            assertEquals(reading.getIndex() % 30000, reading.getX());
+        // Once released, every page beyond those retained is reused
+        pin.release();
+        for (int i = store.size(); i < SampleStore.PAGE_SIZE * 9 + 1; i++)
+            store.append(START + i * 40L, i % 30000, -i % 30000, 1000);
+        assertEquals(SampleStore.PAGE_SIZE * 5, store.getFirstIndex());
+        assertEquals(0, store.getHeldBackPageCount());
+        assertEquals(0, store.getOverwrittenPinnedCount());
+        // Pins held longer than the spare pages allow are overwritten
+        pins.pin(START + 1100 * 40L, START + 1200 * 40L);
+        store = createRing(4, 3, pins, SampleStore.PAGE_SIZE * 9 + 1);
+        assertEquals(SampleStore.PAGE_SIZE * 5, store.getFirstIndex());
+        assertEquals(SampleStore.PAGE_SIZE, store.getOverwrittenPinnedCount());
+    }
+
+    @Test
+    public void readsRingWhileAppending() throws Exception {
+        final SampleStore store = createRing(4, 1, null, SampleStore.PAGE_SIZE);
+        final int count = SampleStore.PAGE_SIZE * 500;
+        final AtomicReference<String> failure = new AtomicReference<>();
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long ranges = 0;
+                while (store.size() < count && failure.get() == null) {
+                    // The last two pages' worth, as a live export would read
+                    int size = store.size();
+                    SampleStore.Cursor reading = store.cursor(START + (size - SampleStore.PAGE_SIZE * 2) * 40L, START + size * 40L);
+                    try {
+                        while (reading.next()) {
+                            int index = reading.getIndex();
+                            if (reading.getTimestamp() != START + index * 40L || reading.getX() != index % 30000)
+                                failure.compareAndSet(null, "Reading " + index + " read wrongly");
+                        }
+                    } catch (IllegalStateException e) {
+                        failure.compareAndSet(null, e.getMessage());
+                    }
+                    ranges++;
+                }
+                if (ranges == 0)
+                    failure.compareAndSet(null, "No ranges were read");
+            }
+        });
+        reader.start();
+        for (int i = store.size(); i < count; i++) {
+            store.append(START + i * 40L, i % 30000, -i % 30000, 1000);
+            // Still far faster than a watch, but readers get their page of grace
+            if (i % 256 == 0) {
+                // Sealing pages under readers, as syncing does
+                store.seal(i - SampleStore.PAGE_SIZE);
+                Thread.sleep(0, 100000);
+            }
+        }
+        reader.join();
+        assertEquals(null, failure.get());
+        assertEquals(count - SampleStore.PAGE_SIZE * 5, store.getFirstIndex());
+    }
+}
@@ -0,0 +1,80 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SealedChunkTest {
+    private static void assertRoundTrips(long[] timestamps, short[] x, short[] y, short[] z) {
+        SealedChunk chunk = SealedChunk.pack(timestamps, x, y, z, timestamps.length);
+        assertEquals(timestamps.length, chunk.getCount());
+        SealedChunk.Decoder decoder = new SealedChunk.Decoder();
+        decoder.reset(chunk);
+        for (int i = 0; i < timestamps.length; i++) {
+            assertTrue(decoder.next());
+            assertEquals(i, decoder.getIndex());
+            assertEquals(timestamps[i], decoder.getTimestamp());
+            assertEquals(x[i], decoder.getX());
+            assertEquals(y[i], decoder.getY());
+            assertEquals(z[i], decoder.getZ());
+        }
+        assertFalse(decoder.next());
+    }
+
+    @Test
+    public void roundTripsExtremes() {
+        long[] timestamps = {Long.MIN_VALUE, -1, 0, 0, 0, 1435000000000L, 1435000000040L, Long.MAX_VALUE, 5, 5};
+        short[] x = {Short.MIN_VALUE, Short.MAX_VALUE, Short.MIN_VALUE, 0, 0, 1, -1, 15, -16, Short.MAX_VALUE};
+        short[] y = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        short[] z = {-1000, -1001, -999, -1063, -937, -1500, 500, -1000, Short.MAX_VALUE, Short.MIN_VALUE};
+        assertRoundTrips(timestamps, x, y, z);
+        assertRoundTrips(new long[] {7}, new short[] {1}, new short[] {2}, new short[] {3});
+    }
+
+    @Test
+    public void roundTripsRandom() {
+        Random random = new Random(11);
+        for (int run = 0; run < 20; run++) {
+            int count = 1 + random.nextInt(SampleStore.PAGE_SIZE);
+            long[] timestamps = new long[count];
+            short[] x = new short[count];
+            short[] y = new short[count];
+            short[] z = new short[count];
+            long t = random.nextLong() >> 8;
+            for (int i = 0; i < count; i++) {
+                // Mostly steady, with occasional gaps
+                t += random.nextInt(20) == 0 ? random.nextInt(100000) : 40 + random.nextInt(3) - 1;
+                timestamps[i] = t;
+                // Widths from noise up to full range
+                int range = 1 << random.nextInt(17);
+                x[i] = (short)(random.nextInt(range) - range / 2);
+                y[i] = (short)(random.nextInt(range) - range / 2);
+                z[i] = (short)(random.nextInt(range) - range / 2);
+            }
+            assertRoundTrips(timestamps, x, y, z);
+        }
+    }
+
+    @Test
+    public void seeksForward() {
+        long[] timestamps = new long[100];
+        short[] values = new short[100];
+        for (int i = 0; i < 100; i++) {
+            timestamps[i] = 1000 + i * 40;
+            values[i] = (short)(i * i);
+        }
+        SealedChunk.Decoder decoder = new SealedChunk.Decoder();
+        decoder.reset(SealedChunk.pack(timestamps, values, values, values, 100));
+        decoder.seek(37);
+        assertEquals(1000 + 37 * 40, decoder.getTimestamp());
+        assertEquals(37 * 37, decoder.getX());
+        decoder.seek(37);
+        decoder.seek(99);
+        assertEquals(99 * 99, decoder.getZ());
+        assertFalse(decoder.next());
+    }
+}
@@ -0,0 +1,79 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class SensorRegistryTest {
+    private static final long HOUR = 3600000;
+
+    /* Register a sensor on its own watch, and fill its ring
+     */
+    private static Sensor register(SensorRegistry registry) {
+        Sensor sensor = new Sensor("WAIST", UUID.randomUUID(), 0, START);
+        registry.register(sensor);
+        return sensor;
+    }
+
+    /* Log for twice as long as a sensor should keep readings, syncing every
+     * page as the pipeline would
+     * @return How long the sensor keeps readings for (ms)
+     */
+    private static long getRetained(Sensor sensor, long millis) throws IOException {
+        int count = (int)(millis * 2 * FeatureExtractor.SAMPLE_RATE / 1000);
+        for (int i = 0; i < count; i++) {
+            sensor.addReading(i % 1000, 0, 0);
+            if (i % SampleStore.PAGE_SIZE == 0)
+                sensor.sync();
+        }
+        SampleStore readings = sensor.getReadings();
+        return (long)((readings.size() - readings.getFirstIndex()) * 1000 / FeatureExtractor.SAMPLE_RATE);
+    }
+
+    @Test
+    public void shortensRingsToFitBudget() throws IOException {
+        SensorRegistry registry = new SensorRegistry(1);
+        registry.setRetention(HOUR);
+        // Room for one full ring, and about half of another
+        long memory = registry.getRetentionMemory(HOUR);
+        registry.setRetentionBudget(memory * 3 / 2);
+        Sensor first = register(registry);
+        Sensor second = register(registry);
+        assertTrue(getRetained(first, HOUR) >= HOUR);
+        long retained = getRetained(second, HOUR);
+        assertTrue(retained < HOUR * 3 / 4);
+        assertTrue(retained > HOUR / 4);
+        // Not even the shortest ring fits now, so the session is refused
+        Sensor third = new Sensor("WAIST", UUID.randomUUID(), 0, START);
+        assertFalse(registry.isRefused(third.getLogUuid(), 0));
+        try {
+            registry.register(third);
+            fail("Rings which do not fit cannot be registered");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        assertEquals(2, registry.size());
+        assertTrue(registry.isRefused(third.getLogUuid(), 0));
+        assertFalse(registry.isRefused(first.getLogUuid(), 0));
+        // Clearing frees the budget for the next session
+        registry.clear();
+        assertFalse(registry.isRefused(third.getLogUuid(), 0));
+        assertTrue(getRetained(register(registry), HOUR) >= HOUR);
+    }
+
+    @Test
+    public void sealedRingsStayWellUnderBudget() throws IOException {
+        SensorRegistry registry = new SensorRegistry(1);
+        registry.setRetention(HOUR);
+        Sensor sensor = register(registry);
+        getRetained(sensor, HOUR);
+        assertTrue(sensor.getReadings().getMemoryUsage() < registry.getRetentionMemory(HOUR) / 3);
+    }
+}
@@ -0,0 +1,63 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class SensorTest {
+    @Test
+    public void stampsReadingsImmediately() {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        for (int i = 0; i < 10; i++)
+            sensor.addReading(i, 0, 0);
+        SampleStore readings = sensor.getReadings();
+        assertEquals(10, readings.size());
+        // Before the second timestamp the watch's nominal 25Hz is assumed
+        for (int i = 0; i < 10; i++)
+            assertEquals(START + i * 40L, readings.getTimestamp(i));
+    }
+
+    @Test
+    public void correctsToNextTimestamp() {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        for (int i = 0; i < 1000; i++)
+            sensor.addReading(i, 0, 0);
+        // The watch ran slightly slow
+        long next = START + 40123;
+        sensor.addTimestamp(next);
+        SampleStore readings = sensor.getReadings();
+        for (int i = 0; i < 1000; i++)
+            assertEquals(START + i * 40123L / 1000, readings.getTimestamp(i));
+
+        // The measured period is used for the next interval
+        for (int i = 0; i < 3; i++)
+            sensor.addReading(i, 0, 0);
+        assertEquals(next, readings.getTimestamp(1000));
+        assertEquals(next + 40123L / 1000, readings.getTimestamp(1001));
+        assertEquals(next + 2 * 40123L / 1000, readings.getTimestamp(1002));
+    }
+
+    @Test
+    public void correctsOnlyWithinWindow() {
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        int count = Sensor.CORRECTION_WINDOW + 500;
+        for (int i = 0; i < count; i++)
+            sensor.addReading(i, 0, 0);
+        sensor.addTimestamp(START + count * 50L);
+        SampleStore readings = sensor.getReadings();
+        // Readings which fell out of the window keep their estimates
+        for (int i = 0; i < 500; i++)
+            assertEquals(START + i * 40L, readings.getTimestamp(i));
+        long previous = readings.getTimestamp(499);
+        for (int i = 500; i < count; i++) {
+            long t = readings.getTimestamp(i);
+            assertTrue(t >= previous);
+            previous = t;
+        }
+        assertTrue(previous < START + count * 50L);
+        assertTrue(previous > START + count * 50L - 60);
+    }
+}
@@ -0,0 +1,165 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class SpillJournalTest {
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("journal", "");
+        dir.delete();
+        dir.mkdir();
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = dir.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        dir.delete();
+    }
+
+    private static void fill(SampleStore store, int from, int to) {
+        for (int i = from; i < to; i++)
+            store.append(START + i * 40L, i % 20000, -(i % 20000), 1000);
+    }
+
+    private static void assertReadings(SampleStore store, int count) {
+        assertEquals(count, store.size());
+        SampleStore.Cursor reading = store.cursor();
+        for (int i = 0; i < count; i++) {
+            assertTrue(reading.next());
+            assertEquals(START + i * 40L, reading.getTimestamp());
+            assertEquals(i % 20000, reading.getX());
+            assertEquals(-(i % 20000), reading.getY());
+            assertEquals(1000, reading.getZ());
+        }
+        assertFalse(reading.next());
+    }
+
+    @Test
+    public void dropsPagesOutsideHotWindow() throws IOException {
+        SampleStore store = new SampleStore();
+        store.attachJournal(SpillJournal.create(dir, "WAIST", LOG_UUID, 2), 2);
+        int count = SampleStore.PAGE_SIZE * 6 + 100;
+        fill(store, 0, count);
+        store.flushJournal();
+        assertEquals(count, store.getJournal().getRecordCount());
+        // The partial last page plus one full page stay on the heap
+        assertEquals(2, store.getResidentPageCount());
+        // Dropped pages are read back transparently
+        assertReadings(store, count);
+        assertEquals(START + 5 * 40L, store.getTimestamp(5));
+        assertEquals(SampleStore.PAGE_SIZE + 3, store.indexOf(START + (SampleStore.PAGE_SIZE + 3) * 40L));
+        SampleStore.Cursor slice = store.cursor(START + 40L, START + 3 * 40L);
+        assertTrue(slice.next());
+        assertEquals(1, slice.getX());
+        store.getJournal().close();
+    }
+
+    @Test
+    public void sealsOnlyJournaledPages() throws IOException {
+        SampleStore store = new SampleStore();
+        store.attachJournal(SpillJournal.create(dir, "WAIST", LOG_UUID, 2), 3);
+        int count = SampleStore.PAGE_SIZE * 6 + 100;
+        for (int flushed = 0; flushed < count; flushed += 700) {
+            fill(store, flushed, Math.min(count, flushed + 700));
+            // Sealing ahead of the journal would leave nothing to journal from
+            store.seal(store.size());
+            store.flushJournal(store.size() - 50);
+            store.seal(store.size());
+        }
+        store.flushJournal();
+        assertEquals(count, store.getJournal().getRecordCount());
+        assertReadings(store, count);
+        store.getJournal().close();
+        assertReadings(SampleStore.restore(SpillJournal.openAll(dir).get(0), 3), count);
+    }
+
+    @Test
+    public void restoresAfterRestart() throws IOException {
+        SampleStore store = new SampleStore();
+        store.attachJournal(SpillJournal.create(dir, "LEFT_ANKLE", LOG_UUID, 4), 2);
+        int count = SampleStore.PAGE_SIZE * 3 + 10;
+        fill(store, 0, count);
+        store.flushJournal();
+        // Readings that were never flushed are lost
+        fill(store, count, count + 5);
+        store.getJournal().close();
+
+        List<SpillJournal> journals = SpillJournal.openAll(dir);
+        assertEquals(1, journals.size());
+        SpillJournal journal = journals.get(0);
+        assertEquals("LEFT_ANKLE", journal.getName());
+        assertEquals(LOG_UUID, journal.getLogUuid());
+        assertEquals(4, journal.getTag());
+        SampleStore restored = SampleStore.restore(journal, 2);
+        assertReadings(restored, count);
+
+        // Appending continues where the journal left off
+        fill(restored, count, count + SampleStore.PAGE_SIZE);
+        restored.flushJournal();
+        assertReadings(restored, count + SampleStore.PAGE_SIZE);
+        assertEquals(count + SampleStore.PAGE_SIZE, journal.getRecordCount());
+        journal.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws IOException {
+        SampleStore store = new SampleStore();
+        store.attachJournal(SpillJournal.create(dir, "CHEST", LOG_UUID, 9), 2);
+        fill(store, 0, 50);
+        store.flushJournal();
+        store.getJournal().close();
+        // Simulate being killed half way through writing a record
+        File file = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(raf.length() + SpillJournal.RECORD_SIZE / 2);
+        raf.close();
+
+        SpillJournal journal = SpillJournal.open(file);
+        assertEquals(50, journal.getRecordCount());
+        assertReadings(SampleStore.restore(journal, 2), 50);
+        journal.close();
+    }
+
+    @Test
+    public void registryRestoresSensors() throws IOException {
+        SensorRegistry registry = new SensorRegistry(11, dir);
+        Sensor sensor = new Sensor("WAIST", LOG_UUID, 2, START);
+        registry.register(sensor);
+        for (int i = 0; i < 100; i++)
+            sensor.addReading(i, 0, 0);
+        sensor.addTimestamp(START + 4000);
+        registry.sync();
+        sensor.getReadings().getJournal().close();
+
+        SensorRegistry restored = new SensorRegistry(11, dir);
+        assertEquals(1, restored.restore());
+        Sensor restoredSensor = restored.get(LOG_UUID, 2);
+        assertEquals("WAIST", restoredSensor.getTitle());
+        assertEquals(sensor.getReadings().size(), restoredSensor.getReadings().size());
+        assertEquals(sensor.getStopTime(), restoredSensor.getStopTime());
+        // Readings after the restore carry on at the saved interval
+        restoredSensor.addReading(0, 0, 0);
+        assertEquals(START + 4000, restoredSensor.getStopTime());
+        restored.clear();
+        assertTrue(restored.isEmpty());
+        assertEquals(0, dir.listFiles().length);
+    }
+}
@@ -0,0 +1,146 @@
+package me.jbakita.pebbledatalogging;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static me.jbakita.pebbledatalogging.TestFixtures.LOG_UUID;
+import static me.jbakita.pebbledatalogging.TestFixtures.START;
+
+public class StreamTapTest {
+    private static final String[] NAMES = {"WAIST", "RIGHT_WRIST", "LEFT_WRIST", "RIGHT_ANKLE"};
+
+    private static List<Sensor> createSensors() {
+        List<Sensor> sensors = new ArrayList<>();
+        for (int tag = 0; tag < NAMES.length; tag++)
+            sensors.add(new Sensor(NAMES[tag], LOG_UUID, tag, START));
+        return sensors;
+    }
+
+    /* Add readings to every sensor, x holding the sensor's tag and y the index
+     */
+    private static void addReadings(List<Sensor> sensors, int count) {
+        for (Sensor sensor : sensors) {
+            SampleStore readings = sensor.getReadings();
+            for (int i = 0; i < count; i++) {
+                int index = readings.size();
+                readings.append(START + index * 40L, sensor.getTag(), (short)index, -1000);
+            }
+        }
+    }
+
+    private static void awaitSubscribers(StreamTap tap, int count) throws InterruptedException {
+        for (int i = 0; i < 500 && tap.getSubscriberCount() != count; i++)
+            Thread.sleep(10);
+        assertEquals(count, tap.getSubscriberCount());
+    }
+
+    @Test
+    public void deliversEveryReadingInOrder() throws Exception {
+        final int batches = 2000;
+        final int batchSize = 25;
+        StreamTap tap = new StreamTap(0, 64, StreamTap.Backpressure.BLOCK, 10000);
+        final StreamClient client = new StreamClient(tap.getPort());
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final String[] names = new String[NAMES.length];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final int[] next = new int[NAMES.length];
+                StreamClient.Listener listener = new StreamClient.Listener() {
+                    @Override
+                    public void onSensor(int id, UUID logUuid, int tag, String name) {
+                        names[id] = name;
+                    }
+
+                    @Override
+                    public void onReading(int id, int index, long timestamp, int x, int y, int z) {
+                        if (index != next[id] || timestamp != START + index * 40L || x != id || y != (short)index || z != -1000)
+                            failure.compareAndSet(null, "Sensor " + id + " reading " + index + " expected " + next[id]);
+                        next[id]++;
+                    }
+                };
+                try {
+                    while (client.getReadingCount() < (long)batches * batchSize * NAMES.length && client.read(listener));
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e.toString());
+                }
+            }
+        });
+        reader.start();
+        awaitSubscribers(tap, 1);
+        List<Sensor> sensors = createSensors();
+        long begin = System.nanoTime();
+        tap.publish(sensors);
+        for (int i = 0; i < batches; i++) {
+            addReadings(sensors, batchSize);
+            tap.publish(sensors);
+        }
+        reader.join(30000);
+        double seconds = (System.nanoTime() - begin) / 1e9;
+        tap.close();
+        client.close();
+        assertEquals(null, failure.get());
+        assertEquals((long)batches * batchSize * NAMES.length, client.getReadingCount());
+        assertEquals((long)batches * NAMES.length, client.getBatchCount());
+        assertEquals(0, client.getDroppedCount());
+        assertEquals(0, client.getOutOfOrderCount());
+        for (int i = 0; i < NAMES.length; i++)
+            assertEquals(NAMES[i], names[i]);
+        System.out.println(String.format("Stream tap: %.0f readings/s, %.1f MB/s", client.getReadingCount() / seconds,
+                client.getByteCount() / seconds / 1e6));
+    }
+
+    @Test
+    public void dropsForSlowSubscriber() throws Exception {
+        StreamTap tap = new StreamTap(0, 4, StreamTap.Backpressure.DROP, 0);
+        StreamClient client = new StreamClient(tap.getPort());
+        awaitSubscribers(tap, 1);
+        List<Sensor> sensors = createSensors().subList(0, 1);
+        tap.publish(sensors);
+        // Far more than the socket buffers hold, while the client reads nothing
+        long begin = System.nanoTime();
+        for (int i = 0; i < 2000; i++) {
+            addReadings(sensors, StreamTap.MAX_BATCH);
+            tap.publish(sensors);
+        }
+        long publishMillis = (System.nanoTime() - begin) / 1000000;
+        assertTrue("Publishing took " + publishMillis + "ms", publishMillis < 10000);
+        tap.close();
+        while (client.read(null));
+        client.close();
+        // Batches queued when the tap closed are lost, so fewer than all may be accounted for
+        assertTrue(client.getBatchCount() > 0);
+        assertTrue(client.getDroppedCount() > 0);
+        assertTrue(client.getBatchCount() + client.getDroppedCount() <= 2000);
+        assertEquals(0, client.getOutOfOrderCount());
+    }
+
+    @Test
+    public void disconnectsBlockingSubscriber() throws Exception {
+        StreamTap tap = new StreamTap(0, 4, StreamTap.Backpressure.BLOCK, 50);
+        StreamClient client = new StreamClient(tap.getPort());
+        awaitSubscribers(tap, 1);
+        List<Sensor> sensors = createSensors().subList(0, 1);
+        tap.publish(sensors);
+        long begin = System.nanoTime();
+        for (int i = 0; i < 2000; i++) {
+            addReadings(sensors, StreamTap.MAX_BATCH);
+            tap.publish(sensors);
+        }
+        long publishMillis = (System.nanoTime() - begin) / 1000000;
+        // Publishing waits once, for the timeout, then carries on without the subscriber
+        assertTrue("Publishing took " + publishMillis + "ms", publishMillis < 10000);
+        assertEquals(0, tap.getSubscriberCount());
+        assertTrue(Metrics.toText(Arrays.asList(tap.getMetrics())).contains("Slow subscribers disconnected: 1 subscribers"));
+        tap.close();
+        client.close();
+    }
+}
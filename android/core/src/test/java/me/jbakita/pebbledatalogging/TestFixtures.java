@@ -0,0 +1,47 @@
+package me.jbakita.pebbledatalogging;
+
+import java.util.ArrayList;
+import java.util.UUID;
+
+/**
+ * Values and helpers shared by the tests
+ */
+final class TestFixtures {
+    // Start of every recording made by the tests, in POSIX time in ms
+    static final long START = 1435000000000L;
+    static final UUID LOG_UUID = UUID.fromString("0f0e0d0c-0b0a-0908-0706-050403020100");
+
+    private TestFixtures() {
+    }
+
+    /**
+     * Encode a timestamp followed by count readings, as the watch does
+     */
+    static byte[] item(long timestamp, int count) {
+        byte[] data = new byte[(count + 1) * DataLogDecoder.RECORD_SIZE];
+        for (int i = 0; i < DataLogDecoder.RECORD_SIZE; i++)
+            data[i] = (byte)(timestamp >>> (8 * (DataLogDecoder.RECORD_SIZE - 1 - i)));
+        data[0] |= 0x80;
+        for (int i = 1; i <= count; i++) {
+            data[i * DataLogDecoder.RECORD_SIZE + 1] = (byte)i;
+            data[i * DataLogDecoder.RECORD_SIZE + 3] = (byte)-i;
+            data[i * DataLogDecoder.RECORD_SIZE + 5] = 100;
+        }
+        return data;
+    }
+
+    /**
+     * Records everything a decoder emits as strings for easy comparison
+     */
+    static class RecordingCallback implements DataLogDecoder.Callback {
+        final ArrayList<String> records = new ArrayList<>();
+        @Override
+        public void onTimestamp(long timestamp) {
+            records.add("T" + timestamp);
+        }
+        @Override
+        public void onReading(int x, int y, int z) {
+            records.add(x + "," + y + "," + z);
+        }
+    }
+}
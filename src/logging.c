@@ -15,12 +15,53 @@ static DataLoggingSessionRef logging_session;
 static enum states state;
 static int data_log_id;
 static int sample_num = 0;
+// Set when a data logging session is created, until its first timestamp is logged
+static bool session_needs_timestamp = false;
 // Debug, uncomment #define to enable
 // #define DEBUG_TIMING
 #ifdef DEBUG_TIMING
 static uint16_t lastMSReading = 0;
 static time_t lastSReading = 0;
 #endif
+// Compact encoding, uncomment #define to enable
+// Must be kept in sync with CompactDecoder in the Android app
+// #define COMPACT_ENCODING
+#ifdef COMPACT_ENCODING
+#define COMPACT_VERSION 1
+// Compact sessions are logged under the body location's tag plus this
+#define COMPACT_TAG 0x100
+#define COMPACT_ITEM_SIZE 64
+#define COMPACT_TIMESTAMP 0x80
+#define COMPACT_MAX_BATCH 25
+// Header (version, count, first X, Y and Z, 3 widths) plus the widest possible deltas
+#define COMPACT_MAX_FRAME_SIZE (11 + (3 * (COMPACT_MAX_BATCH - 1) * 17 + 7) / 8)
+#define LOG_TAG(id) ((id) | COMPACT_TAG)
+#define LOG_ITEM_SIZE COMPACT_ITEM_SIZE
+// The item being filled with frames
+static unsigned char stream_item[COMPACT_ITEM_SIZE];
+static uint8_t stream_fill = 0;
+#endif
+// Framed encoding, uncomment #define to enable
+// Each batch is logged as a single item headed by its timestamp
+// Must be kept in sync with FramedDecoder in the Android app
+// #define FRAMED_ENCODING
+#if defined(COMPACT_ENCODING) && defined(FRAMED_ENCODING)
+#error "COMPACT_ENCODING and FRAMED_ENCODING cannot both be enabled"
+#endif
+#ifdef FRAMED_ENCODING
+#define FRAMED_VERSION 1
+// Framed sessions are logged under the body location's tag plus this
+#define FRAMED_TAG 0x200
+#define FRAMED_MAX_BATCH 25
+// Version, count and timestamp, then up to FRAMED_MAX_BATCH 6 byte readings
+#define FRAMED_ITEM_SIZE (8 + FRAMED_MAX_BATCH * 6)
+#define LOG_TAG(id) ((id) | FRAMED_TAG)
+#define LOG_ITEM_SIZE FRAMED_ITEM_SIZE
+#endif
+#ifndef LOG_TAG
+#define LOG_TAG(id) (id)
+#define LOG_ITEM_SIZE 6
+#endif
 
 // Function declarations
 extern void main_deinit();
@@ -60,28 +101,141 @@ static void display_log_res(DataLoggingResult res, TextLayer * tl) {
   }
 }
 
+#ifdef COMPACT_ENCODING
+// Append a frame to the stream, logging each item as it fills
+static void stream_write(unsigned char * frame, uint16_t length) {
+  for (uint16_t i = 0; i < length; i++) {
+    stream_item[stream_fill++] = frame[i];
+    if (stream_fill == COMPACT_ITEM_SIZE) {
+      display_log_res(data_logging_log(logging_session, &stream_item, 1), text_layer);
+      stream_fill = 0;
+    }
+  }
+}
+
+// Pad and log the partially filled item, if any
+static void stream_flush() {
+  if (stream_fill == 0)
+    return;
+  memset(stream_item + stream_fill, 0, COMPACT_ITEM_SIZE - stream_fill);
+  display_log_res(data_logging_log(logging_session, &stream_item, 1), text_layer);
+  stream_fill = 0;
+}
+
+static uint32_t zigzag(int32_t value) {
+  return ((uint32_t)value << 1) ^ (uint32_t)(value >> 31);
+}
+
+// Get the number of bits needed for the widest zig-zag delta of an axis
+static uint8_t delta_width(AccelData * data, uint32_t num_samples, uint8_t axis) {
+  uint32_t all = 0;
+  for (uint32_t i = 1; i < num_samples; i++) {
+    int16_t * cur = &data[i].x;
+    int16_t * prev = &data[i - 1].x;
+    all |= zigzag(cur[axis] - prev[axis]);
+  }
+  uint8_t width = 0;
+  while (all) {
+    width++;
+    all >>= 1;
+  }
+  return width;
+}
+
+// Pack each delta of an axis, most significant bit first, into a zeroed frame
+static uint32_t put_deltas(unsigned char frame[], uint32_t bit, AccelData * data, uint32_t num_samples, uint8_t axis, uint8_t width) {
+  for (uint32_t i = 1; i < num_samples; i++) {
+    int16_t * cur = &data[i].x;
+    int16_t * prev = &data[i - 1].x;
+    uint32_t value = zigzag(cur[axis] - prev[axis]);
+    for (int b = width - 1; b >= 0; b--) {
+      if ((value >> b) & 1)
+        frame[bit >> 3] |= 0x80 >> (bit & 7);
+      bit++;
+    }
+  }
+  return bit;
+}
+
+// Log up to COMPACT_MAX_BATCH readings as a batch frame
+static void log_batch(AccelData * data, uint32_t num_samples) {
+  unsigned char frame[COMPACT_MAX_FRAME_SIZE];
+  memset(frame, 0, sizeof(frame));
+  frame[0] = COMPACT_VERSION;
+  frame[1] = num_samples;
+  encode_bytes(frame, 2, data[0].x, 2);
+  encode_bytes(frame, 4, data[0].y, 2);
+  encode_bytes(frame, 6, data[0].z, 2);
+  uint32_t bit = 11 * 8;
+  // AccelData holds x, y and z as consecutive int16_t
+  for (uint8_t axis = 0; axis < 3; axis++) {
+    frame[8 + axis] = delta_width(data, num_samples, axis);
+    bit = put_deltas(frame, bit, data, num_samples, axis, frame[8 + axis]);
+  }
+  stream_write(frame, (bit + 7) / 8);
+}
+#endif
+
+#ifdef FRAMED_ENCODING
+// Log up to FRAMED_MAX_BATCH readings as one item, taken from timestamp onwards
+static void log_frame(int64_t timestamp, AccelData * data, uint32_t num_samples) {
+  unsigned char frame[FRAMED_ITEM_SIZE];
+  // Unused reading slots are zeroed
+  memset(frame, 0, sizeof(frame));
+  frame[0] = FRAMED_VERSION;
+  frame[1] = num_samples;
+  encode_bytes(frame, 2, timestamp, 6);
+  for (uint32_t i = 0; i < num_samples; i++) {
+    encode_bytes(frame, 8 + i * 6, data[i].x, 2);
+    encode_bytes(frame, 10 + i * 6, data[i].y, 2);
+    encode_bytes(frame, 12 + i * 6, data[i].z, 2);
+  }
+  display_log_res(data_logging_log(logging_session, &frame, 1), text_layer);
+}
+#endif
+
 static void log_timestamp(int64_t timestamp) {
+#ifdef FRAMED_ENCODING
+  // A frame without readings
+  log_frame(timestamp, NULL, 0);
+#elif defined(COMPACT_ENCODING)
+  unsigned char frame[8];
+  frame[0] = COMPACT_VERSION;
+  frame[1] = COMPACT_TIMESTAMP;
+  encode_bytes(frame, 2, timestamp, 6);
+  stream_write(frame, 8);
+#else
   unsigned char packed_mess[6];
   encode_bytes(packed_mess, 0, timestamp, 6);
   // Timestamp messages are prefixed with a 1
   packed_mess[0] |= 0x80;
   data_logging_log(logging_session, &packed_mess, 1);
+#endif
 }
 
 // Stop and start the data logging session. This /should/ flush the buffer.
 static void flush_data_buffer(ClickRecognizerRef recognizer, void * context) {
+#ifdef COMPACT_ENCODING
+  stream_flush();
+#endif
   data_logging_finish(logging_session);
-  logging_session = data_logging_create(data_log_id, DATA_LOGGING_BYTE_ARRAY, 6, true);
+  logging_session = data_logging_create(LOG_TAG(data_log_id), DATA_LOGGING_BYTE_ARRAY, LOG_ITEM_SIZE, true);
+  // The phone can only place readings in time once their session has a timestamp
+  session_needs_timestamp = true;
 }
 
 // Push data from the accelerometer data service to the data logging service
 static void cache_accel(AccelData * data, uint32_t num_samples) {
-  /* On our first message and every 1000th reading we sync the
-   * timestamp to cope with limited data logging storage on the
+  /* At the start of every session and every 1000th reading we sync
+   * the timestamp to cope with limited data logging storage on the
    * Pebble.
    */
-  if (sample_num % 1000 == 0)
+#ifndef FRAMED_ENCODING
+  if (session_needs_timestamp || sample_num % 1000 == 0) {
     log_timestamp(data[0].timestamp);
+    session_needs_timestamp = false;
+  }
+#endif
 #ifdef DEBUG_TIMING
   if (sample_num == 0)
     time_ms(&lastSReading, &lastMSReading);
@@ -91,6 +245,19 @@ static void cache_accel(AccelData * data, uint32_t num_samples) {
     text_layer_set_text(text_layer, text);
     time_ms(&lastSReading, &lastMSReading);
   }
+#endif
+#ifdef COMPACT_ENCODING
+  for (uint32_t i = 0; i < num_samples; i += COMPACT_MAX_BATCH)
+    log_batch(data + i, num_samples - i < COMPACT_MAX_BATCH ? num_samples - i : COMPACT_MAX_BATCH);
+  sample_num += num_samples;
+  return;
+#endif
+#ifdef FRAMED_ENCODING
+  // Every frame carries the timestamp of its first reading
+  for (uint32_t i = 0; i < num_samples; i += FRAMED_MAX_BATCH)
+    log_frame(data[i].timestamp, data + i, num_samples - i < FRAMED_MAX_BATCH ? num_samples - i : FRAMED_MAX_BATCH);
+  sample_num += num_samples;
+  return;
 #endif
   // Array of 6 byte arrays
   unsigned char packed_data[num_samples][6];
@@ -151,7 +318,8 @@ void logging_init(int index){
   // NOT WORKING: Sample rate is always 25HZ regardless
   accel_service_set_sampling_rate(PAL_SAMPLE_RATE);
   // Start the data logging service, we use only one for the application duration
-  logging_session = data_logging_create(data_log_id, DATA_LOGGING_BYTE_ARRAY, 6, false);
+  logging_session = data_logging_create(LOG_TAG(data_log_id), DATA_LOGGING_BYTE_ARRAY, LOG_ITEM_SIZE, false);
+  session_needs_timestamp = true;
   // Start logging
   start(NULL, NULL);
   // Display window
@@ -162,6 +330,9 @@ void logging_deinit(){
   // This could cause inaccuracies <= 1s as the phone app assumes that every
   //  timestamp corelates to a reading set.
   log_timestamp((int64_t)time(NULL) * 1000 + (int64_t)time_ms(NULL, NULL));
+#ifdef COMPACT_ENCODING
+  stream_flush();
+#endif
   // When we don't need to log anything else, we can close off the session.
   data_logging_finish(logging_session);
   // De-register acceleration event handler (needed when using back to exit screen)